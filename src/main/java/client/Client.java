@@ -10,6 +10,8 @@ package client;
 public interface Client {
     void set(String key, String value);
 
+    void set(String key, String value, long ttl);
+
     String get(String key);
 
     void rm(String key);
@@ -0,0 +1,320 @@
+package client;
+
+import utils.BytesUtil;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/27 20:00
+ * @注释 多个服务端节点的客户端，按一致性哈希把key分到节点上
+ * 每个节点在环上放多个虚拟节点，位置取md5("host:port#i")；key取md5后落在环上，顺时针第一个虚拟节点的节点就是它的节点。
+ * 增删一个节点只影响环上相邻的一段，大约1/N的key换节点。这里只负责路由，换了节点的key要由调用方迁移。
+ * 每个节点一个SocketClient长连接；批量查、批量写按节点分组后并行发出
+ */
+public class ClusterClient implements Client, Closeable {
+
+    /**
+     * 默认每个节点的虚拟节点数
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+
+    /**
+     * 环：虚拟节点位置 -> 节点，增删节点时整个替换
+     */
+    private volatile TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * 节点 -> 连接
+     */
+    private final Map<String, SocketClient> clients = new LinkedHashMap<>();
+
+    /**
+     * 并行访问多个节点
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 每个请求的超时时间（毫秒），见SocketClient.setTimeout
+     */
+    private long timeout;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    /**
+     * @描述 构造方法
+     * @param nodes 节点地址，host:port
+     * @return null
+     * @Author taoxier
+     */
+    public ClusterClient(List<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ClusterClient(List<String> nodes, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "cluster-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (String node : nodes) {
+            addNode(node);
+        }
+    }
+
+    /**
+     * @描述 加一个节点，环上它的虚拟节点前面一段的key改由它负责
+     * @param node host:port
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void addNode(String node) {
+        if (clients.containsKey(node)) {
+            return;
+        }
+        int colon = node.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("-[异常抛出]：节点地址要是host:port " + node);
+        }
+        SocketClient client = new SocketClient(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        client.setTimeout(timeout);
+        clients.put(node, client);
+        TreeMap<Long, String> newRing = new TreeMap<>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            newRing.put(hash((node + "#" + i).getBytes(StandardCharsets.UTF_8)), node);
+        }
+        ring = newRing;
+    }
+
+    /**
+     * @描述 去掉一个节点，它的key改由环上顺时针的下一个节点负责
+     * @param node host:port
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void removeNode(String node) {
+        SocketClient client = clients.remove(node);
+        if (client == null) {
+            return;
+        }
+        TreeMap<Long, String> newRing = new TreeMap<>(ring);
+        newRing.values().removeIf(node::equals);
+        ring = newRing;
+        client.close();
+    }
+
+    public synchronized List<String> getNodes() {
+        return new ArrayList<>(clients.keySet());
+    }
+
+    public synchronized void setTimeout(long timeout) {
+        this.timeout = timeout;
+        for (SocketClient client : clients.values()) {
+            client.setTimeout(timeout);
+        }
+    }
+
+    /**
+     * @描述 key所在的节点
+     * @param key
+     * @return String host:port
+     * @Author taoxier
+     */
+    public String nodeFor(String key) {
+        return nodeFor(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String nodeFor(byte[] key) {
+        TreeMap<Long, String> current = ring;
+        if (current.isEmpty()) {
+            throw new IllegalStateException("-[异常抛出]：没有节点");
+        }
+        SortedMap<Long, String> tail = current.tailMap(hash(key));
+        return tail.isEmpty() ? current.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    private synchronized SocketClient client(String node) {
+        SocketClient client = clients.get(node);
+        if (client == null) {
+            throw new IllegalStateException("-[异常抛出]：节点已经去掉 " + node);
+        }
+        return client;
+    }
+
+    private SocketClient clientFor(String key) {
+        return client(nodeFor(key));
+    }
+
+    /**
+     * 环上的位置：md5的前8个字节
+     */
+    private static long hash(byte[] bytes) {
+        byte[] digest = MD5.get().digest(bytes);
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+
+    @Override
+    public void set(String key, String value) {
+        clientFor(key).set(key, value);
+    }
+
+    @Override
+    public void set(String key, String value, long ttl) {
+        clientFor(key).set(key, value, ttl);
+    }
+
+    @Override
+    public String get(String key) {
+        return clientFor(key).get(key);
+    }
+
+    @Override
+    public void rm(String key) {
+        clientFor(key).rm(key);
+    }
+
+    public boolean merge(String key, String operator, String operand) {
+        return clientFor(key).merge(key, operator, operand);
+    }
+
+    public void incr(String key, long delta) {
+        clientFor(key).incr(key, delta);
+    }
+
+    public boolean compareAndSet(String key, String expected, String value) {
+        return clientFor(key).compareAndSet(key, expected, value);
+    }
+
+    /**
+     * @描述 批量查，按节点分组后并行发出
+     * @param keys
+     * @return List<String> 和keys一一对应，没有的为null；有节点请求失败时返回null
+     * @Author taoxier
+     */
+    public List<String> multiGet(List<String> keys) {
+        Map<String, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            groups.computeIfAbsent(nodeFor(keys.get(i)), k -> new ArrayList<>()).add(i);
+        }
+        Map<String, Future<List<String>>> futures = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            List<String> nodeKeys = new ArrayList<>(group.getValue().size());
+            for (int i : group.getValue()) {
+                nodeKeys.add(keys.get(i));
+            }
+            SocketClient client = client(group.getKey());
+            futures.put(group.getKey(), executor.submit(() -> client.multiGet(nodeKeys)));
+        }
+        List<String> result = new ArrayList<>(Collections.nCopies(keys.size(), (String) null));
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            List<String> values = await(futures.get(group.getKey()));
+            if (values == null) {
+                return null;
+            }
+            for (int j = 0; j < values.size(); j++) {
+                result.set(group.getValue().get(j), values.get(j));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @描述 批量写，按节点分组后并行发出，每个节点上整批一次提交；不同节点之间不保证原子性
+     * @param entries value为null表示删除
+     * @return boolean 全部节点都成功时为true
+     * @Author taoxier
+     */
+    public boolean batch(Map<String, String> entries) {
+        Map<String, Map<String, String>> groups = new HashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            groups.computeIfAbsent(nodeFor(entry.getKey()), k -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+            SocketClient client = client(group.getKey());
+            futures.add(executor.submit(() -> client.batch(group.getValue())));
+        }
+        boolean success = true;
+        for (Future<Boolean> future : futures) {
+            success &= Boolean.TRUE.equals(await(future));
+        }
+        return success;
+    }
+
+    /**
+     * @描述 区间查：每个节点都查最多limit条，按key的字节序归并后取前limit条
+     * @param startKey
+     * @param endKey null表示到最后
+     * @param limit
+     * @return Map<String, String>
+     * @Author taoxier
+     */
+    public Map<String, String> scan(String startKey, String endKey, int limit) {
+        byte[] start = startKey.getBytes(StandardCharsets.UTF_8);
+        byte[] end = endKey == null ? null : endKey.getBytes(StandardCharsets.UTF_8);
+        List<Future<List<Map.Entry<byte[], byte[]>>>> futures = new ArrayList<>();
+        for (String node : getNodes()) {
+            SocketClient client = client(node);
+            futures.add(executor.submit(() -> client.scan(start, end, limit)));
+        }
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+        for (Future<List<Map.Entry<byte[], byte[]>>> future : futures) {
+            entries.addAll(await(future));
+        }
+        entries.sort((o1, o2) -> BytesUtil.compare(o1.getKey(), o2.getKey()));
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            result.put(new String(entry.getKey(), StandardCharsets.UTF_8), new String(entry.getValue(), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (SocketClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+        ring = new TreeMap<>();
+        executor.shutdownNow();
+    }
+}
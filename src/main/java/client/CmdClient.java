@@ -6,18 +6,38 @@
  * @version
  */
 package client;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * >mvn compile
  *>java -cp target/classes example.CmdClientUsage localhost 12345
+ *>java -cp target/classes example.CmdClientUsage localhost 12345 --bulk fixture.txt 4 256
 */
 
 public class CmdClient implements Client {
     private SocketClient socketClient;
     private Scanner scanner;
+    private String host;
+    private int port;
+
+    /**
+     * 批量模式里一次最多打印的出错行数
+     */
+    private static final int MAX_ERROR_SAMPLES = 10;
 
     public CmdClient(String host, int port) {
+        this.host = host;
+        this.port = port;
         this.socketClient = new SocketClient(host, port);
         this.scanner = new Scanner(System.in);
     }
@@ -26,7 +46,7 @@ public class CmdClient implements Client {
         System.out.println("---【进入命令行客户端】---");
         boolean running = true;
         while (running) {
-            System.out.print("--->请输入命令 ([set<k,v>]/[get<k>]/[rm<k>]/[exit]): ");
+            System.out.print("--->请输入命令 ([set<k,v>]/[setex<k,v,ttl>]/[get<k>]/[rm<k>]/[exit]): ");
             String input = scanner.nextLine().trim();
             String[] parts = input.split(" ");
             if (parts.length < 1) {
@@ -42,6 +62,17 @@ public class CmdClient implements Client {
                         socketClient.set(parts[1], parts[2]);
                     }
                     break;
+                case "setex":
+                    if (parts.length != 4) {
+                        System.out.println("-->请正确输入（setex<key,value,ttl毫秒>）：");
+                    } else {
+                        try {
+                            socketClient.set(parts[1], parts[2], Long.parseLong(parts[3]));
+                        } catch (NumberFormatException e) {
+                            System.out.println("-->ttl必须为数字");
+                        }
+                    }
+                    break;
                 case "get":
                     if (parts.length != 2) {
                         System.out.println("-->请正确输入（get<key>）：");
@@ -61,17 +92,236 @@ public class CmdClient implements Client {
                     System.out.println("---【退出命令行客户端】---");
                     break;
                 default:
-                    System.out.println("-->未知命令，请输入 set/get/rm/exit 中的一个。");
+                    System.out.println("-->未知命令，请输入 set/setex/get/rm/exit 中的一个。");
             }
         }
         scanner.close();
     }
 
+    /**
+     * @描述 批量模式：从文件或标准输入逐行读命令（格式和交互模式一样，空行和#开头的行跳过），不打印每条的结果，
+     * 最后打印吞吐和出错统计。命令按key分给concurrency个连接，同一个key的命令在同一个连接上按顺序执行；
+     * 每个连接每次取最多window条，连续的set、rm合成一个BATCH请求，连续的get合成一个MGET请求，setex逐条发送
+     * @param in
+     * @param concurrency 连接数
+     * @param window 每个连接一次最多发送的命令数
+     * @return void
+     * @Author taoxier
+     */
+    public void startBulkMode(InputStream in, int concurrency, int window) throws IOException, InterruptedException {
+        System.out.println("---【进入批量模式】---");
+        BulkStats stats = new BulkStats();
+        List<BlockingQueue<BulkLine>> queues = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            BlockingQueue<BulkLine> queue = new ArrayBlockingQueue<>(window * 2);
+            queues.add(queue);
+            Thread worker = new Thread(() -> bulkWorker(queue, window, stats), "bulk-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        long start = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String input;
+            long lineNo = 0;
+            while ((input = reader.readLine()) != null) {
+                lineNo++;
+                input = input.trim();
+                if (input.isEmpty() || input.startsWith("#")) {
+                    continue;
+                }
+                stats.lines.incrementAndGet();
+                String[] parts = input.split(" ");
+                String error = validate(parts);
+                if (error != null) {
+                    stats.error(lineNo, error);
+                    continue;
+                }
+                if ("exit".equals(parts[0])) {
+                    stats.lines.decrementAndGet();
+                    break;
+                }
+                //同一个key总是分给同一个连接
+                int worker = Math.floorMod(parts[1].hashCode(), concurrency);
+                queues.get(worker).put(new BulkLine(lineNo, parts));
+            }
+        } finally {
+            for (BlockingQueue<BulkLine> queue : queues) {
+                queue.put(BulkLine.END);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("---【批量模式完成】--- 命令 " + stats.lines.get() + " 条，成功 " + stats.succeeded.get()
+                + " 条，失败 " + stats.failed.get() + " 条（其中格式错误 " + stats.invalid.get() + " 条），get没有值 "
+                + stats.notFound.get() + " 条，耗时 " + millis + "ms，" + stats.lines.get() * 1000 / millis + " 条/秒");
+        for (String sample : stats.samples) {
+            System.out.println("-->" + sample);
+        }
+    }
+
+    /**
+     * @描述 检查一行命令的格式
+     * @param parts
+     * @return String 错误信息，格式正确时为null
+     * @Author taoxier
+     */
+    private static String validate(String[] parts) {
+        switch (parts[0].toLowerCase()) {
+            case "set":
+                return parts.length == 3 ? null : "set<key,value>格式不正确";
+            case "setex":
+                if (parts.length != 4) {
+                    return "setex<key,value,ttl毫秒>格式不正确";
+                }
+                try {
+                    return Long.parseLong(parts[3]) > 0 ? null : "ttl必须大于0";
+                } catch (NumberFormatException e) {
+                    return "ttl必须为数字";
+                }
+            case "get":
+            case "rm":
+                return parts.length == 2 ? null : parts[0] + "<key>格式不正确";
+            case "exit":
+                return null;
+            default:
+                return "未知命令 " + parts[0];
+        }
+    }
+
+    /**
+     * @描述 批量模式的一个连接：每次取最多window条，连续的同类命令合成一个请求
+     * @param queue
+     * @param window
+     * @param stats
+     * @return void
+     * @Author taoxier
+     */
+    private void bulkWorker(BlockingQueue<BulkLine> queue, int window, BulkStats stats) {
+        try (SocketClient client = new SocketClient(host, port)) {
+            client.setVerbose(false);
+            List<BulkLine> lines = new ArrayList<>(window);
+            boolean end = false;
+            while (!end) {
+                lines.add(queue.take());
+                queue.drainTo(lines, window - 1);
+                if (lines.get(lines.size() - 1) == BulkLine.END) {
+                    lines.remove(lines.size() - 1);
+                    end = true;
+                }
+                int i = 0;
+                while (i < lines.size()) {
+                    String action = lines.get(i).action();
+                    int j = i + 1;
+                    if ("set".equals(action) || "rm".equals(action)) {
+                        while (j < lines.size() && ("set".equals(lines.get(j).action()) || "rm".equals(lines.get(j).action()))) {
+                            j++;
+                        }
+                        List<byte[]> keys = new ArrayList<>(j - i);
+                        List<byte[]> values = new ArrayList<>(j - i);
+                        for (BulkLine line : lines.subList(i, j)) {
+                            keys.add(line.utf8(1));
+                            values.add("set".equals(line.action()) ? line.utf8(2) : null);
+                        }
+                        stats.result(lines.subList(i, j), client.batch(keys, values));
+                    } else if ("get".equals(action)) {
+                        while (j < lines.size() && "get".equals(lines.get(j).action())) {
+                            j++;
+                        }
+                        List<byte[]> keys = new ArrayList<>(j - i);
+                        for (BulkLine line : lines.subList(i, j)) {
+                            keys.add(line.utf8(1));
+                        }
+                        List<byte[]> values = client.multiGetBytes(keys);
+                        stats.result(lines.subList(i, j), values != null);
+                        if (values != null) {
+                            for (byte[] value : values) {
+                                if (value == null) {
+                                    stats.notFound.incrementAndGet();
+                                }
+                            }
+                        }
+                    } else {
+                        BulkLine line = lines.get(i);
+                        stats.result(lines.subList(i, j), client.set(line.utf8(1), line.utf8(2), Long.parseLong(line.parts[3])));
+                    }
+                    i = j;
+                }
+                lines.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 批量模式里的一行命令
+     */
+    private static class BulkLine {
+        private static final BulkLine END = new BulkLine(0, new String[]{""});
+
+        private final long lineNo;
+        private final String[] parts;
+
+        private BulkLine(long lineNo, String[] parts) {
+            this.lineNo = lineNo;
+            this.parts = parts;
+        }
+
+        private String action() {
+            return parts[0].toLowerCase();
+        }
+
+        private byte[] utf8(int i) {
+            return parts[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 批量模式的统计，各个连接一起更新
+     */
+    private static class BulkStats {
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong invalid = new AtomicLong();
+        private final AtomicLong notFound = new AtomicLong();
+        private final List<String> samples = new ArrayList<>();
+
+        private void error(long lineNo, String message) {
+            invalid.incrementAndGet();
+            failed.incrementAndGet();
+            sample("第" + lineNo + "行：" + message);
+        }
+
+        private void result(List<BulkLine> lines, boolean success) {
+            if (success) {
+                succeeded.addAndGet(lines.size());
+                return;
+            }
+            failed.addAndGet(lines.size());
+            sample("第" + lines.get(0).lineNo + "行起" + lines.size() + "条：请求失败");
+        }
+
+        private synchronized void sample(String message) {
+            if (samples.size() < MAX_ERROR_SAMPLES) {
+                samples.add(message);
+            }
+        }
+    }
+
     @Override
     public void set(String key, String value) {
 
     }
 
+    @Override
+    public void set(String key, String value, long ttl) {
+
+    }
+
     @Override
     public String get(String key) {
         return null;
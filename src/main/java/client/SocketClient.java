@@ -10,69 +10,290 @@ package client;
 import dto.ActionDTO;
 import dto.ActionTypeEnum;
 import dto.RespDTO;
+import dto.RespStatusTypeEnum;
+import model.command.MergeOperators;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-public class SocketClient implements Client {
+public class SocketClient implements Client, Closeable {
     private String host;
     private int port;
+    /*
+     * 长连接，第一次请求时建立，出错后断开，下一个请求重新连接
+     * */
+    private Socket socket;
+    private ObjectOutputStream oos;
+    private ObjectInputStream ois;
+    /*
+     * 是否打印每个响应，批量导入时关掉
+     * */
+    private boolean verbose = true;
+    /*
+     * 每个请求的超时时间（毫秒），服务端超过这个时间还没执行就返回BUSY；0表示不限
+     * */
+    private long timeout;
 
     public SocketClient(String host, int port) {
         this.host = host;
         this.port = port;
     }
 
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
     @Override
     public void set(String key, String value) {
-        try (Socket socket = new Socket(host, port);
-             ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream ois = new ObjectInputStream(socket.getInputStream())) {
-            // 传输序列化对象
-            ActionDTO dto = new ActionDTO(ActionTypeEnum.SET, key, value);
-            oos.writeObject(dto);
-            oos.flush();
-            RespDTO resp = (RespDTO) ois.readObject();
-            System.out.println("resp data: "+ resp.toString());
-            // 接收响应数据
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        }
+        set(utf8(key), utf8(value));
+    }
+
+    public boolean set(byte[] key, byte[] value) {
+        return succeeded(request(new ActionDTO(ActionTypeEnum.SET, key, value)));
+    }
+
+    @Override
+    public void set(String key, String value, long ttl) {
+        set(utf8(key), utf8(value), ttl);
+    }
+
+    public boolean set(byte[] key, byte[] value, long ttl) {
+        return succeeded(request(new ActionDTO(ActionTypeEnum.SETEX, key, value, ttl)));
     }
 
     @Override
     public String get(String key) {
-        try (Socket socket = new Socket(host, port);
-             ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream ois = new ObjectInputStream(socket.getInputStream())) {
+        byte[] value = get(utf8(key));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public byte[] get(byte[] key) {
+        RespDTO resp = request(new ActionDTO(ActionTypeEnum.GET, key, null));
+        return resp == null ? null : resp.getValue();
+    }
+
+    @Override
+    public void rm(String key) {
+        rm(utf8(key));
+    }
+
+    public boolean rm(byte[] key) {
+        return succeeded(request(new ActionDTO(ActionTypeEnum.RM, key, null)));
+    }
+
+    /**
+     * @描述 合并，服务端不读旧值，一次请求完成计数、追加之类的更新
+     * @param key
+     * @param operator 合并运算的名字，见MergeOperators
+     * @param operand
+     * @return boolean 服务端没有这个合并运算时返回false
+     * @Author taoxier
+     */
+    public boolean merge(String key, String operator, String operand) {
+        return merge(utf8(key), operator, utf8(operand));
+    }
+
+    public boolean merge(byte[] key, String operator, byte[] operand) {
+        ActionDTO dto = new ActionDTO(ActionTypeEnum.MERGE, key, operand);
+        dto.setOperator(operator);
+        return succeeded(request(dto));
+    }
+
+    /**
+     * @描述 计数器加delta
+     * @param key
+     * @param delta
+     * @return void
+     * @Author taoxier
+     */
+    public void incr(String key, long delta) {
+        merge(key, MergeOperators.INCREMENT, Long.toString(delta));
+    }
+
+    /**
+     * @描述 比较并设置
+     * @param key
+     * @param expected 为null表示key不存在
+     * @param value
+     * @return boolean 是否修改
+     * @Author taoxier
+     */
+    public boolean compareAndSet(String key, String expected, String value) {
+        return compareAndSet(utf8(key), utf8(expected), utf8(value));
+    }
+
+    public boolean compareAndSet(byte[] key, byte[] expected, byte[] value) {
+        ActionDTO dto = new ActionDTO(ActionTypeEnum.CAS, key, value);
+        dto.setExpected(expected);
+        return succeeded(request(dto));
+    }
+
+    /**
+     * @描述 批量查，一次请求
+     * @param keys
+     * @return List<String> 和keys一一对应，没有的为null；请求失败时返回null
+     * @Author taoxier
+     */
+    public List<String> multiGet(List<String> keys) {
+        List<byte[]> byteKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            byteKeys.add(utf8(key));
+        }
+        List<byte[]> values = multiGetBytes(byteKeys);
+        if (values == null) {
+            return null;
+        }
+        List<String> result = new ArrayList<>(values.size());
+        for (byte[] value : values) {
+            result.add(value == null ? null : new String(value, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    public List<byte[]> multiGetBytes(List<byte[]> keys) {
+        ActionDTO dto = new ActionDTO(ActionTypeEnum.MGET, (byte[]) null, null);
+        dto.setKeys(new ArrayList<>(keys));
+        RespDTO resp = request(dto);
+        if (resp == null || resp.getStatus() != RespStatusTypeEnum.SUCCESS) {
+            return null;
+        }
+        return resp.getValues();
+    }
+
+    /**
+     * @描述 批量写，一次请求，服务端整批一次提交
+     * @param entries value为null表示删除
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean batch(Map<String, String> entries) {
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        List<byte[]> values = new ArrayList<>(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            keys.add(utf8(entry.getKey()));
+            values.add(utf8(entry.getValue()));
+        }
+        return batch(keys, values);
+    }
+
+    public boolean batch(List<byte[]> keys, List<byte[]> values) {
+        ActionDTO dto = new ActionDTO(ActionTypeEnum.BATCH, (byte[]) null, null);
+        dto.setKeys(new ArrayList<>(keys));
+        dto.setValues(new ArrayList<>(values));
+        return succeeded(request(dto));
+    }
+
+    /**
+     * @描述 区间查[startKey, endKey)，按key的字节序返回最多limit条，主节点和副本都可以查
+     * @param startKey
+     * @param endKey 为null表示到最后
+     * @param limit
+     * @return Map<String, String>
+     * @Author taoxier
+     */
+    public Map<String, String> scan(String startKey, String endKey, int limit) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : scan(utf8(startKey), utf8(endKey), limit)) {
+            result.put(new String(entry.getKey(), StandardCharsets.UTF_8), new String(entry.getValue(), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] startKey, byte[] endKey, int limit) {
+        ActionDTO dto = new ActionDTO(ActionTypeEnum.SCAN, startKey, endKey);
+        dto.setLimit(limit);
+        RespDTO resp = request(dto);
+        List<Map.Entry<byte[], byte[]>> result = new ArrayList<>();
+        if (resp == null || resp.getKeys() == null) {
+            return result;
+        }
+        for (int i = 0; i < resp.getKeys().size(); i++) {
+            result.add(new AbstractMap.SimpleImmutableEntry<>(resp.getKeys().get(i), resp.getValues().get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * @描述 让服务端创建检查点，建在服务端配置的检查点根目录下
+     * @param name 根目录下的相对路径，不能是绝对路径或者带..
+     * @return boolean 是否成功，服务端没配置根目录时失败
+     * @Author taoxier
+     */
+    public boolean checkpoint(String name) {
+        RespDTO resp = request(new ActionDTO(ActionTypeEnum.CHECKPOINT, utf8(name), null));
+        return resp != null && resp.getStatus() == RespStatusTypeEnum.SUCCESS;
+    }
+
+    /**
+     * @描述 发一个请求并等待响应，key和value按字节传输
+     * @param dto
+     * @return RespDTO
+     * @Author taoxier
+     */
+    private synchronized RespDTO request(ActionDTO dto) {
+        try {
+            if (socket == null) {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                oos = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                oos.flush();
+                ois = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+            }
+            dto.setTimeout(timeout);
             // 传输序列化对象
-            ActionDTO dto = new ActionDTO(ActionTypeEnum.GET, key, null);
             oos.writeObject(dto);
             oos.flush();
-            RespDTO resp = (RespDTO) ois.readObject();
-            System.out.println("resp data: "+ resp.toString());
+            oos.reset();
             // 接收响应数据
+            RespDTO resp = (RespDTO) ois.readObject();
+            if (verbose) {
+                System.out.println("resp data: " + resp.toString());
+            }
+            return resp;
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
+            close();
         }
         return null;
     }
 
+    /**
+     * @描述 断开长连接，之后的请求会重新连接
+     * @param
+     * @return void
+     * @Author taoxier
+     */
     @Override
-    public void rm(String key) {
-        try(Socket socket=new Socket(host,port);
-        ObjectOutputStream oos=new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream ois=new ObjectInputStream(socket.getInputStream())) {
-            //传输序列化对象
-            ActionDTO dto=new ActionDTO(ActionTypeEnum.RM,key,null);
-            oos.writeObject(dto);
-            oos.flush();
-            RespDTO resp=(RespDTO) ois.readObject();
-            System.out.println("resp data: "+resp.toString());
-            //接收响应数据
-        }catch (IOException|ClassNotFoundException e){
+    public synchronized void close() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        socket = null;
+        oos = null;
+        ois = null;
+    }
+
+    private static boolean succeeded(RespDTO resp) {
+        return resp != null && resp.getStatus() == RespStatusTypeEnum.SUCCESS;
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
     }
 
 }
@@ -0,0 +1,127 @@
+package controller;
+
+import model.command.SetCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import service.NormalStore;
+import service.ReplicationLog;
+import service.Snapshot;
+import utils.CommandCodec;
+import utils.LoggerUtil;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/22 20:30
+ * @注释 主节点给一个副本发复制流
+ * 从副本已经应用到的序列号的下一条开始，按帧发送复制日志里的记录；副本要的记录已经不在复制日志里时，
+ * 先在快照上逐批读出全部数据发给副本做全量同步，再从快照的序列号之后接着发。没有新记录时定期发心跳
+ */
+public class ReplicationSender {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(ReplicationSender.class);
+    private final String logFormat = "[ReplicationSender][{}]: {}";
+
+    /**
+     * 每批最多发送的记录数
+     */
+    private static final int BATCH = 1000;
+
+    /**
+     * 没有新记录时的心跳间隔
+     */
+    private static final long HEARTBEAT_MILLIS = 500;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final NormalStore store;
+
+    private final ReplicationLog replicationLog;
+
+    private final ObjectOutputStream oos;
+
+    public ReplicationSender(NormalStore store, ObjectOutputStream oos) {
+        this.store = store;
+        this.replicationLog = store.getReplicationLog();
+        this.oos = oos;
+    }
+
+    /**
+     * @描述 一直发送，直到副本断开连接
+     * @param appliedSeq 副本已经应用到的序列号，FULL_SYNC_SEQ表示要求全量同步
+     * @return void
+     * @Author taoxier
+     */
+    public void send(long appliedSeq) throws IOException, InterruptedException {
+        //副本上次全量同步没做完，它的序列号不代表已经有了之前的全部数据
+        long next = appliedSeq == ReplicationLog.FULL_SYNC_SEQ ? sendSnapshot() + 1 : appliedSeq + 1;
+        while (true) {
+            List<byte[]> records = replicationLog.read(next, BATCH, HEARTBEAT_MILLIS);
+            if (records == null) {
+                //副本落后太多，或者副本比主节点还新（主节点换了数据），重新全量同步
+                next = sendSnapshot() + 1;
+                continue;
+            }
+            if (records.isEmpty()) {
+                writeFrame(ReplicationLog.FRAME_HEARTBEAT, replicationLog.lastSeq(), EMPTY);
+            }
+            for (byte[] record : records) {
+                writeFrame(ReplicationLog.FRAME_RECORD, next++, record);
+            }
+            oos.flush();
+        }
+    }
+
+    /**
+     * @描述 全量同步：按快照逐批发送全部set命令，序列号都改成快照的序列号
+     * @param
+     * @return long 快照的序列号
+     * @Author taoxier
+     */
+    private long sendSnapshot() throws IOException {
+        try (Snapshot snapshot = store.snapshot()) {
+            long seq = snapshot.getSequence();
+            LoggerUtil.info(LOGGER, logFormat, "sendSnapshot", "seq " + seq);
+            String from = "";
+            long count = 0;
+            while (true) {
+                List<SetCommand> batch = snapshot.scanCommands(from, null, BATCH);
+                for (SetCommand set : batch) {
+                    set.setSeq(seq);
+                    byte[] record = new byte[CommandCodec.encodedSize(set)];
+                    CommandCodec.encode(set, ByteBuffer.wrap(record));
+                    writeFrame(ReplicationLog.FRAME_SNAPSHOT, seq, record);
+                }
+                count += batch.size();
+                if (batch.size() < BATCH) {
+                    break;
+                }
+                from = batch.get(batch.size() - 1).getKey() + '\u0000';
+            }
+            writeFrame(ReplicationLog.FRAME_SNAPSHOT_END, seq, EMPTY);
+            oos.flush();
+            LoggerUtil.info(LOGGER, logFormat, "sendSnapshot", "done " + count);
+            return seq;
+        }
+    }
+
+    /**
+     * @描述 写一帧：帧类型 + 序列号 + 主节点最新序列号 + 长度 + 内容
+     * @param type
+     * @param seq
+     * @param payload
+     * @return void
+     * @Author taoxier
+     */
+    private void writeFrame(byte type, long seq, byte[] payload) throws IOException {
+        oos.writeByte(type);
+        oos.writeLong(seq);
+        oos.writeLong(replicationLog.lastSeq());
+        oos.writeInt(payload.length);
+        oos.write(payload);
+    }
+}
@@ -0,0 +1,498 @@
+package controller;
+
+import dto.ActionDTO;
+import dto.ActionTypeEnum;
+import dto.RespDTO;
+import dto.RespStatusTypeEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import service.Store;
+import service.WriteBatch;
+import utils.LoggerUtil;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/25 20:30
+ * @注释 服务端请求合并
+ * 各个连接的线程把get、mget、set、setex、rm、merge、cas、batch交给分发线程后等待响应。读和写分两条通道，各有一个分发线程：
+ * 写通道每次取出队列里已经到达的全部写请求，合成一个WriteBatch一次提交（只拿一次写锁、wal一次写入）；
+ * 读通道把到达的读请求合成一次multiGet（按key排序、只取一次版本）。写入被流控减速或停住时读照常执行，
+ * 不同连接的请求之间本来就没有先后。通道空闲、队列为空时调用方直接在自己的线程上执行，单个连接不多付一次线程切换。
+ * 每个请求先单独检查，不合法的只拒绝它自己，不影响同一批里其他连接的请求。
+ * 队列有上限，存储跟不上时队列满了直接返回BUSY，不让等待的请求无限堆积；取出时已经过了截止时间的请求也不再执行；
+ * 关闭后还在排队的请求都返回FAIL，之后提交的请求直接返回FAIL。
+ * cas也走写通道，在同一批的WriteBatch提交之后逐个执行；scan、checkpoint、复制不合并，在连接线程上执行，
+ * 但要先拿到名额，名额用完时等到截止时间为止，等不到回BUSY
+ */
+public class RequestDispatcher implements Closeable {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(RequestDispatcher.class);
+    private final String logFormat = "[RequestDispatcher][{}]: {}";
+
+    /**
+     * 一批最多合并的请求数
+     */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * 分发线程等待请求的间隔，关闭后最多这么久退出
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * 默认的队列长度，读写各一个队列
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * 同时执行的scan、checkpoint最多几个，同时连着的副本最多几个
+     */
+    public static final int DEFAULT_STAGE_PERMITS = 4;
+    public static final int DEFAULT_MAX_REPLICAS = 4;
+
+    private final Store store;
+
+    /**
+     * 写通道和读通道
+     */
+    private final Lane writeLane;
+    private final Lane readLane;
+
+    /**
+     * scan、checkpoint的名额和复制流的名额，复制流一直占着连接，分开算免得把scan挤掉
+     */
+    private final Semaphore stagePermits = new Semaphore(DEFAULT_STAGE_PERMITS);
+    private final Semaphore replicaPermits = new Semaphore(DEFAULT_MAX_REPLICAS);
+
+    /**
+     * 因为队列满、超过截止时间、名额用完被拒绝的请求数
+     */
+    private final AtomicLong rejectedQueueFull = new AtomicLong();
+    private final AtomicLong rejectedDeadline = new AtomicLong();
+    private final AtomicLong rejectedStageFull = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public RequestDispatcher(Store store) {
+        this(store, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public RequestDispatcher(Store store, int queueCapacity) {
+        this.store = store;
+        this.writeLane = new Lane("request-dispatcher-write", queueCapacity, this::dispatchWrites);
+        this.readLane = new Lane("request-dispatcher-read", queueCapacity, this::dispatchReads);
+    }
+
+    /**
+     * @描述 能合并执行的请求类型
+     * @param type
+     * @return boolean
+     * @Author taoxier
+     */
+    public static boolean accepts(ActionTypeEnum type) {
+        return type == ActionTypeEnum.GET || type == ActionTypeEnum.MGET || isWrite(type);
+    }
+
+    private static boolean isWrite(ActionTypeEnum type) {
+        return type == ActionTypeEnum.SET || type == ActionTypeEnum.SETEX || type == ActionTypeEnum.RM
+                || type == ActionTypeEnum.MERGE || type == ActionTypeEnum.BATCH || type == ActionTypeEnum.CAS;
+    }
+
+    /**
+     * @描述 不合并、在连接线程上执行，但要先拿名额的请求类型
+     * @param type
+     * @return boolean
+     * @Author taoxier
+     */
+    public static boolean staged(ActionTypeEnum type) {
+        return type == ActionTypeEnum.SCAN || type == ActionTypeEnum.CHECKPOINT || type == ActionTypeEnum.REPLICATE;
+    }
+
+    /**
+     * @描述 执行staged请求前拿一个名额：有截止时间的最多等到截止时间，没有的不等；拿到后执行完要调用release
+     * @param dto
+     * @param deadline 截止时间戳（毫秒），0表示不限
+     * @return RespDTO 拿到名额返回null，否则是要回给客户端的响应：超过截止时间或者名额用完回BUSY，已关闭回FAIL
+     * @Author taoxier
+     */
+    public RespDTO acquire(ActionDTO dto, long deadline) throws InterruptedException {
+        if (closed) {
+            return new RespDTO(RespStatusTypeEnum.FAIL, null);
+        }
+        long wait = 0;
+        if (deadline > 0) {
+            wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                rejectedDeadline.incrementAndGet();
+                return new RespDTO(RespStatusTypeEnum.BUSY, null);
+            }
+        }
+        if (!permits(dto.getType()).tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+            rejectedStageFull.incrementAndGet();
+            return new RespDTO(RespStatusTypeEnum.BUSY, null);
+        }
+        return null;
+    }
+
+    /**
+     * @描述 还回acquire拿到的名额
+     * @param dto
+     * @return void
+     * @Author taoxier
+     */
+    public void release(ActionDTO dto) {
+        permits(dto.getType()).release();
+    }
+
+    private Semaphore permits(ActionTypeEnum type) {
+        return type == ActionTypeEnum.REPLICATE ? replicaPermits : stagePermits;
+    }
+
+    /**
+     * @描述 提交一个请求，等分发线程执行完返回响应
+     * @param dto
+     * @param deadline 截止时间戳（毫秒），0表示不限
+     * @return RespDTO 队列已满或者超过截止时间时返回BUSY，已关闭时返回FAIL
+     * @Author taoxier
+     */
+    public RespDTO submit(ActionDTO dto, long deadline) throws InterruptedException {
+        if (closed) {
+            return new RespDTO(RespStatusTypeEnum.FAIL, null);
+        }
+        Request request = new Request(dto, deadline);
+        return (isWrite(dto.getType()) ? writeLane : readLane).submit(request);
+    }
+
+    /**
+     * @描述 请求的参数是否齐全，不齐全的请求不进批，免得加到一半抛异常连累同一批的其他请求；
+     * 合并运算有没有注册在加进WriteBatch时检查，没注册时什么都不会加进去
+     * @param dto
+     * @return boolean
+     * @Author taoxier
+     */
+    private static boolean valid(ActionDTO dto) {
+        ActionTypeEnum type = dto.getType();
+        if (type == ActionTypeEnum.MGET) {
+            return dto.getKeys() != null && !dto.getKeys().contains(null);
+        }
+        if (type == ActionTypeEnum.BATCH) {
+            return dto.getKeys() != null && dto.getValues() != null && dto.getValues().size() == dto.getKeys().size()
+                    && !dto.getKeys().contains(null);
+        }
+        if (dto.getKey() == null) {
+            return false;
+        }
+        if (type == ActionTypeEnum.SET || type == ActionTypeEnum.SETEX || type == ActionTypeEnum.MERGE
+                || type == ActionTypeEnum.CAS) {
+            if (dto.getValue() == null) {
+                return false;
+            }
+        }
+        if (type == ActionTypeEnum.SETEX) {
+            return dto.getTtl() > 0;
+        }
+        if (type == ActionTypeEnum.MERGE) {
+            return dto.getOperator() != null;
+        }
+        return true;
+    }
+
+    /**
+     * @描述 批里的请求先过一遍：超过截止时间的回BUSY，参数不全的回FAIL，剩下的才执行
+     * @param batch
+     * @return List<Request> 要执行的请求
+     * @Author taoxier
+     */
+    private List<Request> admit(List<Request> batch) {
+        List<Request> admitted = new ArrayList<>(batch.size());
+        long now = System.currentTimeMillis();
+        for (Request request : batch) {
+            if (request.deadline > 0 && request.deadline < now) {
+                //客户端已经不等了，执行也没用
+                rejectedDeadline.incrementAndGet();
+                request.complete(new RespDTO(RespStatusTypeEnum.BUSY, null));
+            } else if (!valid(request.dto)) {
+                LoggerUtil.debug(LOGGER, logFormat, "admit", "reject " + request.dto.toString());
+                request.complete(new RespDTO(RespStatusTypeEnum.FAIL, null));
+            } else {
+                admitted.add(request);
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * @描述 执行一批写请求：合成一个WriteBatch一次提交，cas要先读再写，提交之后逐个执行
+     * @param batch
+     * @return void
+     * @Author taoxier
+     */
+    private void dispatchWrites(List<Request> batch) {
+        WriteBatch writeBatch = new WriteBatch();
+        List<Request> writes = new ArrayList<>();
+        List<Request> swaps = new ArrayList<>();
+        for (Request request : admit(batch)) {
+            ActionDTO dto = request.dto;
+            try {
+                if (dto.getType() == ActionTypeEnum.CAS) {
+                    swaps.add(request);
+                    continue;
+                }
+                if (dto.getType() == ActionTypeEnum.SET) {
+                    writeBatch.put(dto.getKey(), dto.getValue());
+                } else if (dto.getType() == ActionTypeEnum.SETEX) {
+                    writeBatch.put(dto.getKey(), dto.getValue(), dto.getTtl());
+                } else if (dto.getType() == ActionTypeEnum.RM) {
+                    writeBatch.rm(dto.getKey());
+                } else if (dto.getType() == ActionTypeEnum.BATCH) {
+                    addAll(writeBatch, dto);
+                } else {
+                    writeBatch.merge(dto.getKey(), dto.getOperator(), dto.getValue());
+                }
+                writes.add(request);
+            } catch (IllegalArgumentException e) {
+                //没注册的合并运算，只拒绝这一个请求
+                LoggerUtil.debug(LOGGER, logFormat, "dispatchWrites", "reject " + e.getMessage() + " " + dto.toString());
+                request.complete(new RespDTO(RespStatusTypeEnum.FAIL, null));
+            }
+        }
+        if (!writes.isEmpty()) {
+            RespStatusTypeEnum status = RespStatusTypeEnum.SUCCESS;
+            try {
+                store.write(writeBatch);
+            } catch (RuntimeException e) {
+                LoggerUtil.error(LOGGER, e, logFormat, "dispatchWrites", "write batch of " + writes.size() + " failed");
+                status = RespStatusTypeEnum.FAIL;
+            }
+            for (Request request : writes) {
+                request.complete(new RespDTO(status, null));
+            }
+        }
+        for (Request request : swaps) {
+            ActionDTO dto = request.dto;
+            boolean swapped = false;
+            try {
+                swapped = store.compareAndSet(dto.getKey(), dto.getExpected(), dto.getValue());
+            } catch (RuntimeException e) {
+                LoggerUtil.error(LOGGER, e, logFormat, "dispatchWrites", "cas failed " + dto.toString());
+            }
+            request.complete(new RespDTO(swapped ? RespStatusTypeEnum.SUCCESS : RespStatusTypeEnum.FAIL, null));
+        }
+    }
+
+    /**
+     * @描述 执行一批读请求：合成一次multiGet
+     * @param batch
+     * @return void
+     * @Author taoxier
+     */
+    private void dispatchReads(List<Request> batch) {
+        List<Request> reads = admit(batch);
+        if (reads.isEmpty()) {
+            return;
+        }
+        List<byte[]> keys = new ArrayList<>();
+        for (Request request : reads) {
+            if (request.dto.getType() == ActionTypeEnum.GET) {
+                keys.add(request.dto.getKey());
+            } else {
+                keys.addAll(request.dto.getKeys());
+            }
+        }
+        List<byte[]> values = store.multiGet(keys);
+        int p = 0;
+        for (Request request : reads) {
+            if (request.dto.getType() == ActionTypeEnum.GET) {
+                request.complete(new RespDTO(RespStatusTypeEnum.SUCCESS, values.get(p++)));
+                continue;
+            }
+            int n = request.dto.getKeys().size();
+            RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, null);
+            resp.setValues(new ArrayList<>(values.subList(p, p + n)));
+            p += n;
+            request.complete(resp);
+        }
+    }
+
+    /**
+     * @描述 BATCH请求的全部写入加进writeBatch，value为null的是删除
+     * @param writeBatch
+     * @param dto
+     * @return void
+     * @Author taoxier
+     */
+    static void addAll(WriteBatch writeBatch, ActionDTO dto) {
+        for (int i = 0; i < dto.getKeys().size(); i++) {
+            byte[] value = dto.getValues().get(i);
+            if (value == null) {
+                writeBatch.rm(dto.getKeys().get(i));
+            } else {
+                writeBatch.put(dto.getKeys().get(i), value);
+            }
+        }
+    }
+
+    public long getRejectedQueueFull() {
+        return rejectedQueueFull.get();
+    }
+
+    public long getRejectedDeadline() {
+        return rejectedDeadline.get();
+    }
+
+    public long getRejectedStageFull() {
+        return rejectedStageFull.get();
+    }
+
+    public int getQueueSize() {
+        return writeLane.queue.size() + readLane.queue.size();
+    }
+
+    /**
+     * @描述 停止分发线程，还在排队的请求都返回FAIL，等待的连接线程不会一直卡住
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writeLane.close();
+        readLane.close();
+    }
+
+    /**
+     * 一条通道：一个有界队列和一个分发线程，一次执行一批
+     */
+    private final class Lane {
+        private final BlockingQueue<Request> queue;
+
+        /**
+         * 执行一批请求时持有，分发线程和直接执行的调用方不会同时执行
+         */
+        private final ReentrantLock executing = new ReentrantLock();
+
+        private final Consumer<List<Request>> handler;
+
+        private Lane(String name, int queueCapacity, Consumer<List<Request>> handler) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.handler = handler;
+            Thread thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private RespDTO submit(Request request) throws InterruptedException {
+            if (queue.isEmpty() && executing.tryLock()) {
+                //没有排队也没有在执行的批，合并不到别的请求，直接执行
+                try {
+                    execute(Collections.singletonList(request));
+                } finally {
+                    executing.unlock();
+                }
+            } else if (!queue.offer(request)) {
+                rejectedQueueFull.incrementAndGet();
+                return new RespDTO(RespStatusTypeEnum.BUSY, null);
+            } else if (closed) {
+                //close清空队列时这个请求可能还没入队
+                failPending();
+            }
+            try {
+                return request.response.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        private void run() {
+            List<Request> batch = new ArrayList<>();
+            while (!closed) {
+                try {
+                    Request first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    //直接执行的调用方可能卡在写入流控上，等锁时也要能发现关闭
+                    while (!executing.tryLock(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (closed) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (!executing.isHeldByCurrentThread()) {
+                    for (Request request : batch) {
+                        request.complete(new RespDTO(RespStatusTypeEnum.FAIL, null));
+                    }
+                    break;
+                }
+                try {
+                    //等锁期间到达的请求也合进这一批
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    execute(batch);
+                } finally {
+                    executing.unlock();
+                }
+                batch.clear();
+            }
+        }
+
+        private void execute(List<Request> batch) {
+            try {
+                handler.accept(batch);
+            } catch (Throwable t) {
+                //已经有响应的请求不受影响
+                LoggerUtil.error(LOGGER, t, logFormat, "execute", "batch of " + batch.size() + " failed");
+                for (Request request : batch) {
+                    request.complete(new RespDTO(RespStatusTypeEnum.FAIL, null));
+                }
+            }
+        }
+
+        private void failPending() {
+            Request request;
+            while ((request = queue.poll()) != null) {
+                request.complete(new RespDTO(RespStatusTypeEnum.FAIL, null));
+            }
+        }
+
+        private void close() {
+            //不中断分发线程：它可能正在读写文件，中断会把存储的文件通道关掉；它最多POLL_MILLIS后自己退出
+            failPending();
+        }
+    }
+
+    /**
+     * 一个等待执行的请求
+     */
+    private static class Request {
+        private final ActionDTO dto;
+        private final long deadline;
+        private final CompletableFuture<RespDTO> response = new CompletableFuture<>();
+
+        private Request(ActionDTO dto, long deadline) {
+            this.dto = dto;
+            this.deadline = deadline;
+        }
+
+        private void complete(RespDTO resp) {
+            response.complete(resp);
+        }
+    }
+}
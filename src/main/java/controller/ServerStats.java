@@ -0,0 +1,48 @@
+package controller;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/26 20:00
+ * @注释 服务端准入控制的统计，取的时候生成一份
+ */
+@Getter
+@Setter
+public class ServerStats {
+
+    /**
+     * 当前连接数
+     */
+    private int connections;
+
+    /**
+     * 连接数已满被拒绝的连接数
+     */
+    private long rejectedConnections;
+
+    /**
+     * 分发队列当前长度
+     */
+    private int queuedRequests;
+
+    /**
+     * 队列已满、超过截止时间、scan等请求名额用完被拒绝的请求数
+     */
+    private long rejectedQueueFull;
+    private long rejectedDeadline;
+    private long rejectedStageFull;
+
+    @Override
+    public String toString() {
+        return "ServerStats{" +
+                "connections=" + connections +
+                ", rejectedConnections=" + rejectedConnections +
+                ", queuedRequests=" + queuedRequests +
+                ", rejectedQueueFull=" + rejectedQueueFull +
+                ", rejectedDeadline=" + rejectedDeadline +
+                ", rejectedStageFull=" + rejectedStageFull +
+                '}';
+    }
+}
@@ -7,6 +7,8 @@
  */
 package controller;
 
+import dto.RespDTO;
+import dto.RespStatusTypeEnum;
 import lombok.Getter;
 import lombok.Setter;
 import org.slf4j.Logger;
@@ -15,10 +17,21 @@ import service.NormalStore;
 import service.Store;
 import utils.LoggerUtil;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Setter
 @Getter
@@ -29,11 +42,44 @@ public class SocketServerController implements Controller {
     private String host;
     private int port;
     private Store store;
+    /*
+     * 只读节点（副本）只处理get和scan
+     * */
+    private boolean readOnly;
+    /*
+     * 最大连接数，超过时新连接直接返回BUSY并断开
+     * */
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    /*
+     * 连接线程和分发线程之间的队列长度，满了请求直接返回BUSY
+     * */
+    private int queueCapacity = RequestDispatcher.DEFAULT_QUEUE_CAPACITY;
+    /*
+     * 检查点根目录，客户端的检查点请求只给名字，建在这个目录下；为null时不接受检查点请求
+     * */
+    private String checkpointRoot;
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+
+    /**
+     * 被拒绝的连接最多等多久发来第一个请求，最多排队多少个，再多直接断开
+     */
+    private static final int REJECT_TIMEOUT_MILLIS = 1000;
+    private static final int REJECT_BACKLOG = 64;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private volatile RequestDispatcher dispatcher;
 
     public SocketServerController(String host, int port, Store store) {
+        this(host, port, store, false);
+    }
+
+    public SocketServerController(String host, int port, Store store, boolean readOnly) {
         this.host = host;
         this.port = port;
         this.store = store;
+        this.readOnly = readOnly;
     }
 
     @Override
@@ -53,22 +99,88 @@ public class SocketServerController implements Controller {
 
     @Override
     public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        ExecutorService rejector = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(REJECT_BACKLOG));
+        try (ServerSocket serverSocket = new ServerSocket(port);
+             RequestDispatcher dispatcher = new RequestDispatcher(store, queueCapacity)) {
+            this.dispatcher = dispatcher;
             LoggerUtil.info(LOGGER, logFormat,"startServer","Server started, waiting for connections...");
 
             while (true) {
                 try {
                     Socket socket = serverSocket.accept();
+                    if (connections.incrementAndGet() > maxConnections) {
+                        //不再为它起线程，交给拒绝线程回BUSY
+                        connections.decrementAndGet();
+                        rejectedConnections.incrementAndGet();
+                        try {
+                            rejector.execute(() -> reject(socket));
+                        } catch (RejectedExecutionException e) {
+                            socket.close();
+                        }
+                        continue;
+                    }
                     LoggerUtil.info(LOGGER, logFormat,"startServer","New client connected");
-                    // 为每个客户端连接创建一个新的线程
-                    new Thread(new SocketServerHandler(socket, store)).start();
+                    // 为每个客户端连接创建一个新的线程，读写请求交给同一个分发线程合并执行
+                    SocketServerHandler handler = new SocketServerHandler(socket, store, readOnly, dispatcher,
+                            checkpointRoot);
+                    new Thread(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            connections.decrementAndGet();
+                        }
+                    }).start();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            rejector.shutdownNow();
         }
 
     }
+
+    /**
+     * @描述 连接数已满：读完客户端的第一个请求，回BUSY后断开；不读就断开的话客户端会被重置，读不到BUSY
+     * @param socket
+     * @return void
+     * @Author taoxier
+     */
+    private void reject(Socket socket) {
+        try (Socket s = socket;
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+            oos.flush();
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(s.getInputStream()));
+            ois.readObject();
+            oos.writeObject(new RespDTO(RespStatusTypeEnum.BUSY, null));
+            oos.flush();
+        } catch (IOException | ClassNotFoundException e) {
+            LoggerUtil.debug(LOGGER, logFormat, "reject", e.toString());
+        }
+        LoggerUtil.debug(LOGGER, logFormat, "reject", "too many connections " + maxConnections);
+    }
+
+    /**
+     * @描述 准入控制的统计
+     * @param
+     * @return ServerStats
+     * @Author taoxier
+     */
+    public ServerStats getStats() {
+        ServerStats stats = new ServerStats();
+        stats.setConnections(connections.get());
+        stats.setRejectedConnections(rejectedConnections.get());
+        RequestDispatcher current = dispatcher;
+        if (current != null) {
+            stats.setQueuedRequests(current.getQueueSize());
+            stats.setRejectedQueueFull(current.getRejectedQueueFull());
+            stats.setRejectedDeadline(current.getRejectedDeadline());
+            stats.setRejectedStageFull(current.getRejectedStageFull());
+        }
+        return stats;
+    }
 }
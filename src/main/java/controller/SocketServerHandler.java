@@ -13,10 +13,19 @@ import dto.RespDTO;
 import dto.RespStatusTypeEnum;
 import service.NormalStore;
 import service.Store;
+import service.WriteBatch;
 import utils.LoggerUtil;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,47 +35,71 @@ public class SocketServerHandler implements Runnable {
     private final Logger LOGGER = LoggerFactory.getLogger(SocketServerHandler.class);
     private Socket socket;
     private Store store;
+    /*
+     * 只读节点（副本）拒绝写请求
+     * */
+    private boolean readOnly;
+    /*
+     * 请求合并的分发线程，为null时在连接线程上直接执行
+     * */
+    private RequestDispatcher dispatcher;
+    /*
+     * 检查点根目录，客户端只给名字，检查点建在这个目录下；为null时拒绝检查点请求
+     * */
+    private String checkpointRoot;
 
     public SocketServerHandler(Socket socket, Store store) {
+        this(socket, store, false);
+    }
+
+    public SocketServerHandler(Socket socket, Store store, boolean readOnly) {
+        this(socket, store, readOnly, null);
+    }
+
+    public SocketServerHandler(Socket socket, Store store, boolean readOnly, RequestDispatcher dispatcher) {
+        this(socket, store, readOnly, dispatcher, null);
+    }
+
+    public SocketServerHandler(Socket socket, Store store, boolean readOnly, RequestDispatcher dispatcher,
+                               String checkpointRoot) {
         this.socket = socket;
         this.store = store;
+        this.readOnly = readOnly;
+        this.dispatcher = dispatcher;
+        this.checkpointRoot = checkpointRoot;
     }
 
     @Override
     public void run() {
-        try (ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-             ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream())) {
-
-            // 接收序列化对象
-            ActionDTO dto = (ActionDTO) ois.readObject();
-            LoggerUtil.debug(LOGGER, "[SocketServerHandler][ActionDTO]: {}", dto.toString());
-//            System.out.println("" + dto.toString());
-
-            // 处理命令逻辑
-            if (dto.getType() == ActionTypeEnum.GET) {
-                String value = this.store.get(dto.getKey());
-                LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "get action resp" + dto.toString());
-                RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, value);
-                oos.writeObject(resp);
-                oos.flush();
-            }
-            if (dto.getType() == ActionTypeEnum.SET) {
-                this.store.set(dto.getKey(), dto.getValue());
-                LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "set action resp" + dto.toString());
-                RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, null);
-                oos.writeObject(resp);
-                oos.flush();
-            }
-            if (dto.getType() == ActionTypeEnum.RM) {
-                this.store.rm(dto.getKey());
-                LoggerUtil.debug(LOGGER,"[SocketServerHandler][run]: {}", "rm action resp" + dto.toString());
-                RespDTO resp=new RespDTO(RespStatusTypeEnum.SUCCESS,null);
-                oos.writeObject(resp);
-                oos.flush();
-            }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            //一个响应攒在缓冲区里一次发出，不分成几个小包等对端的延迟确认
+            socket.setTcpNoDelay(true);
+            oos.flush();
 
+            //长连接，一直处理到客户端断开
+            while (true) {
+                ActionDTO dto;
+                try {
+                    // 接收序列化对象
+                    dto = (ActionDTO) ois.readObject();
+                } catch (EOFException | SocketException e) {
+                    //客户端断开
+                    break;
+                }
+                LoggerUtil.debug(LOGGER, "[SocketServerHandler][ActionDTO]: {}", dto.toString());
+                //截止时间从服务端收到请求开始算，不依赖两边的时钟一致
+                long deadline = dto.getTimeout() > 0 ? System.currentTimeMillis() + dto.getTimeout() : 0;
+                if (!handle(dto, deadline, oos)) {
+                    break;
+                }
+                //不保留已发送对象的引用，长连接上不会越积越多
+                oos.reset();
+            }
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             try {
                 socket.close();
@@ -76,5 +109,209 @@ public class SocketServerHandler implements Runnable {
         }
     }
 
+    /**
+     * @描述 处理一个请求并写回响应
+     * @param dto
+     * @param deadline 截止时间戳（毫秒），0表示不限
+     * @param oos
+     * @return boolean 连接能否继续处理下一个请求，复制流占用连接后返回false
+     * @Author taoxier
+     */
+    private boolean handle(ActionDTO dto, long deadline, ObjectOutputStream oos) throws IOException, InterruptedException {
+        // 只读节点不接受写
+        if (readOnly && (dto.getType() == ActionTypeEnum.SET || dto.getType() == ActionTypeEnum.SETEX
+                || dto.getType() == ActionTypeEnum.RM || dto.getType() == ActionTypeEnum.MERGE
+                || dto.getType() == ActionTypeEnum.CAS || dto.getType() == ActionTypeEnum.BATCH)) {
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "read only, reject " + dto.toString());
+            oos.writeObject(new RespDTO(RespStatusTypeEnum.FAIL, null));
+            oos.flush();
+            return true;
+        }
+
+        //读写交给分发线程，和其他连接的请求合并执行
+        if (dispatcher != null && RequestDispatcher.accepts(dto.getType())) {
+            oos.writeObject(dispatcher.submit(dto, deadline));
+            oos.flush();
+            return true;
+        }
+
+        if (deadline > 0 && deadline < System.currentTimeMillis()) {
+            oos.writeObject(new RespDTO(RespStatusTypeEnum.BUSY, null));
+            oos.flush();
+            return true;
+        }
+
+        //scan、checkpoint、复制在连接线程上执行，先拿分发线程给的名额，同时执行的个数有上限
+        boolean staged = dispatcher != null && RequestDispatcher.staged(dto.getType());
+        if (staged) {
+            RespDTO rejected = dispatcher.acquire(dto, deadline);
+            if (rejected != null) {
+                oos.writeObject(rejected);
+                oos.flush();
+                return true;
+            }
+        }
+        try {
+            return execute(dto, oos);
+        } finally {
+            if (staged) {
+                dispatcher.release(dto);
+            }
+        }
+    }
+
+    /**
+     * @描述 在连接线程上执行请求并写回响应
+     * @param dto
+     * @param oos
+     * @return boolean 连接能否继续处理下一个请求，复制流占用连接后返回false
+     * @Author taoxier
+     */
+    private boolean execute(ActionDTO dto, ObjectOutputStream oos) throws IOException, InterruptedException {
+        // 处理命令逻辑
+        if (dto.getType() == ActionTypeEnum.GET) {
+            byte[] value = this.store.get(dto.getKey());
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "get action resp" + dto.toString());
+            RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, value);
+            oos.writeObject(resp);
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.SET) {
+            this.store.set(dto.getKey(), dto.getValue());
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "set action resp" + dto.toString());
+            RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, null);
+            oos.writeObject(resp);
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.SETEX) {
+            this.store.set(dto.getKey(), dto.getValue(), dto.getTtl());
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "setex action resp" + dto.toString());
+            RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, null);
+            oos.writeObject(resp);
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.RM) {
+            this.store.rm(dto.getKey());
+            LoggerUtil.debug(LOGGER,"[SocketServerHandler][run]: {}", "rm action resp" + dto.toString());
+            RespDTO resp=new RespDTO(RespStatusTypeEnum.SUCCESS,null);
+            oos.writeObject(resp);
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.MERGE) {
+            RespStatusTypeEnum status = RespStatusTypeEnum.SUCCESS;
+            try {
+                this.store.merge(dto.getKey(), dto.getOperator(), dto.getValue());
+            } catch (IllegalArgumentException e) {
+                //没注册的合并运算
+                LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "merge fail " + e.getMessage());
+                status = RespStatusTypeEnum.FAIL;
+            }
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "merge action resp" + dto.toString());
+            oos.writeObject(new RespDTO(status, null));
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.CAS) {
+            boolean swapped = this.store.compareAndSet(dto.getKey(), dto.getExpected(), dto.getValue());
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "cas action resp " + swapped + dto.toString());
+            oos.writeObject(new RespDTO(swapped ? RespStatusTypeEnum.SUCCESS : RespStatusTypeEnum.FAIL, null));
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.BATCH) {
+            WriteBatch writeBatch = new WriteBatch();
+            RequestDispatcher.addAll(writeBatch, dto);
+            this.store.write(writeBatch);
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "batch action resp " + dto.toString());
+            oos.writeObject(new RespDTO(RespStatusTypeEnum.SUCCESS, null));
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.MGET) {
+            RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, null);
+            resp.setValues(this.store.multiGet(dto.getKeys()));
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "mget action resp " + dto.toString());
+            oos.writeObject(resp);
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.SCAN) {
+            List<Map.Entry<byte[], byte[]>> entries = this.store.scan(dto.getKey(), dto.getValue(), dto.getLimit());
+            List<byte[]> keys = new ArrayList<>(entries.size());
+            List<byte[]> values = new ArrayList<>(entries.size());
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                keys.add(entry.getKey());
+                values.add(entry.getValue());
+            }
+            LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "scan action resp " + keys.size());
+            RespDTO resp = new RespDTO(RespStatusTypeEnum.SUCCESS, null);
+            resp.setKeys(keys);
+            resp.setValues(values);
+            oos.writeObject(resp);
+            oos.flush();
+        }
+        if (dto.getType() == ActionTypeEnum.REPLICATE) {
+            //没开复制日志的节点不能做主节点
+            if (!(store instanceof NormalStore) || ((NormalStore) store).getReplicationLog() == null) {
+                oos.writeObject(new RespDTO(RespStatusTypeEnum.FAIL, null));
+                oos.flush();
+                return true;
+            }
+            LoggerUtil.info(LOGGER, "[SocketServerHandler][run]: {}", "replica connected from seq " + dto.getSeq());
+            oos.writeObject(new RespDTO(RespStatusTypeEnum.SUCCESS, null));
+            oos.flush();
+            //一直发到副本断开
+            try {
+                new ReplicationSender((NormalStore) store, oos).send(dto.getSeq());
+            } catch (IOException e) {
+                LoggerUtil.info(LOGGER, "[SocketServerHandler][run]: {}", "replica disconnected " + e);
+            }
+            return false;
+        }
+        if (dto.getType() == ActionTypeEnum.CHECKPOINT) {
+            RespStatusTypeEnum status = RespStatusTypeEnum.SUCCESS;
+            Path dir = store instanceof NormalStore ? checkpointDir(dto.getKey()) : null;
+            if (dir == null) {
+                LoggerUtil.debug(LOGGER, "[SocketServerHandler][run]: {}", "checkpoint reject " + dto.toString());
+                status = RespStatusTypeEnum.FAIL;
+            } else {
+                try {
+                    ((NormalStore) store).checkpoint(dir.toString());
+                } catch (RuntimeException e) {
+                    LoggerUtil.error(LOGGER, e, "[SocketServerHandler][run]: {}", "checkpoint fail " + dto.toString());
+                    status = RespStatusTypeEnum.FAIL;
+                }
+            }
+            oos.writeObject(new RespDTO(status, null));
+            oos.flush();
+        }
+        return true;
+    }
 
+    /**
+     * @描述 检查点名字对应的目录：名字按UTF-8解码，只能是检查点根目录下的相对路径，
+     * 绝对路径、带..的路径都拒绝，免得客户端在服务端任意位置建目录
+     * @param name
+     * @return Path 不合法或者没配置根目录时返回null
+     * @Author taoxier
+     */
+    private Path checkpointDir(byte[] name) {
+        if (checkpointRoot == null || name == null || name.length == 0) {
+            return null;
+        }
+        String relative = new String(name, StandardCharsets.UTF_8);
+        for (String part : relative.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                return null;
+            }
+        }
+        try {
+            Path root = Paths.get(checkpointRoot).toAbsolutePath().normalize();
+            Path path = Paths.get(relative);
+            if (path.isAbsolute() || path.getRoot() != null) {
+                return null;
+            }
+            Path dir = root.resolve(path).normalize();
+            //规范化之后还要在根目录下，并且不能是根目录本身
+            return dir.startsWith(root) && !dir.equals(root) ? dir : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
 }
@@ -11,26 +11,91 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 @Setter
 @Getter
 public class ActionDTO implements Serializable {
     private ActionTypeEnum type;
-    private String key;
-    private String value;
+    /*
+     * key和value按字节传输，服务端直接写入存储，不做转换
+     * */
+    private byte[] key;
+    private byte[] value;
+    /*
+     * 存活时间（毫秒），只有SETEX用到
+     * */
+    private long ttl;
+    /*
+     * SCAN最多返回的条数
+     * */
+    private int limit;
+    /*
+     * REPLICATE时副本已经应用到的序列号，-1表示要求全量同步
+     * */
+    private long seq;
+    /*
+     * MERGE的合并运算名字
+     * */
+    private String operator;
+    /*
+     * CAS期望的当前值，null表示key不存在
+     * */
+    private byte[] expected;
+    /*
+     * MGET、BATCH的key
+     * */
+    private List<byte[]> keys;
+    /*
+     * BATCH的value，和keys一一对应，null表示删除
+     * */
+    private List<byte[]> values;
+    /*
+     * 超时时间（毫秒），服务端收到后超过这个时间还没开始执行就不再执行，返回BUSY；0表示不限
+     * */
+    private long timeout;
 
-    public ActionDTO(ActionTypeEnum type, String key, String value) {
+    public ActionDTO(ActionTypeEnum type, byte[] key, byte[] value) {
         this.type = type;
         this.key = key;
         this.value = value;
     }
 
+    public ActionDTO(ActionTypeEnum type, byte[] key, byte[] value, long ttl) {
+        this(type, key, value);
+        this.ttl = ttl;
+    }
+
+    public ActionDTO(ActionTypeEnum type, String key, String value) {
+        this(type, utf8(key), utf8(value));
+    }
+
+    public ActionDTO(ActionTypeEnum type, String key, String value, long ttl) {
+        this(type, utf8(key), utf8(value), ttl);
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String str(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
     @Override
     public String toString() {
         return "ActionDTO{" +
                 "type=" + type +
-                ", key='" + key + '\'' +
-                ", value='" + value + '\'' +
+                ", key='" + str(key) + '\'' +
+                ", value='" + str(value) + '\'' +
+                ", ttl=" + ttl +
+                ", limit=" + limit +
+                ", seq=" + seq +
+                ", operator=" + operator +
+                ", expected='" + str(expected) + '\'' +
+                (keys == null ? "" : ", keys=" + keys.size()) +
+                ", timeout=" + timeout +
                 '}';
     }
 }
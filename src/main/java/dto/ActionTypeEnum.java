@@ -19,5 +19,37 @@ public enum ActionTypeEnum {
     /*
     * 查
     * */
-    GET
+    GET,
+    /*
+     * 带过期时间的增、改
+     * */
+    SETEX,
+    /*
+     * 区间查，key和value是区间的开始和结束（不含），limit是最多返回的条数
+     * */
+    SCAN,
+    /*
+     * 副本向主节点要复制流，seq是副本已经应用到的序列号
+     * */
+    REPLICATE,
+    /*
+     * 在线检查点，key是检查点的名字（UTF-8），建在服务端配置的检查点根目录下
+     * */
+    CHECKPOINT,
+    /*
+     * 合并，value是操作数，operator是合并运算的名字
+     * */
+    MERGE,
+    /*
+     * 比较并设置，key的当前值等于expected时改成value，expected为null表示key不存在
+     * */
+    CAS,
+    /*
+     * 批量查，keys是要查的key，返回的values和keys一一对应
+     * */
+    MGET,
+    /*
+     * 批量写，keys和values一一对应，value为null表示删除，整批在服务端一次提交
+     * */
+    BATCH
 }
\ No newline at end of file
@@ -11,23 +11,41 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 @Setter
 @Getter
 public class RespDTO implements Serializable {
     private RespStatusTypeEnum status;
-    private String value;
+    /*
+     * 按字节返回value
+     * */
+    private byte[] value;
+    /*
+     * SCAN的结果，按key的字节序，keys和values一一对应
+     * */
+    private List<byte[]> keys;
+    private List<byte[]> values;
 
-    public RespDTO(RespStatusTypeEnum status, String value) {
+    public RespDTO(RespStatusTypeEnum status, byte[] value) {
         this.status = status;
         this.value = value;
     }
 
+    /*
+     * value按UTF-8转成字符串
+     * */
+    public String getValueString() {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
     @Override
     public String toString() {
         return "RespDTO{" +
                 "status=" + status +
-                ", value='" + value + '\'' +
+                ", value='" + getValueString() + '\'' +
+                (keys == null ? "" : ", keys=" + keys.size()) +
                 '}';
     }
 }
@@ -16,5 +16,10 @@ public enum RespStatusTypeEnum {
     /*
     * 失败
     * */
-    FAIL
+    FAIL,
+
+    /*
+    * 服务端忙：连接数已满、请求队列已满或者等到执行时已经超时，请求没有执行，可以稍后重试
+    * */
+    BUSY
 }
@@ -0,0 +1,29 @@
+package example;
+
+import client.ClusterClient;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/27 21:00
+ * @注释 多节点客户端，先在12345、12346、12347各起一个SocketServerController，数据目录各用各的
+ */
+public class ClusterClientUsage {
+    public static void main(String[] args) {
+        ClusterClient client = new ClusterClient(Arrays.asList("localhost:12345", "localhost:12346", "localhost:12347"));
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            entries.put("user" + i, "name" + i);
+        }
+        client.batch(entries);
+        System.out.println(client.multiGet(Arrays.asList("user1", "user5", "user9")));
+        System.out.println("user1 on " + client.nodeFor("user1"));
+        System.out.println(client.scan("user", null, 100));
+
+        client.close();
+    }
+}
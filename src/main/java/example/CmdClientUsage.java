@@ -2,15 +2,18 @@ package example;
 
 import client.CmdClient;
 
+import java.io.FileInputStream;
+import java.io.InputStream;
+
 /**
  * @Author taoxier
  * @Date 2024/7/2 2:52
  * @注释
  */
 public class CmdClientUsage {
-    public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("---【使用方法：Main <server_host> <server_port>】---");
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 && !(args.length >= 4 && args.length <= 6 && "--bulk".equals(args[2]))) {
+            System.err.println("---【使用方法：Main <server_host> <server_port> [--bulk <file|-> [concurrency] [window]]】---");
             return;
         }
 
@@ -26,7 +29,21 @@ public class CmdClientUsage {
         // 使用命令行参数实例化CmdClient
         CmdClient cmdClient = new CmdClient(serverHost, serverPort);
 
-        // 启动交互模式
-        cmdClient.startInteractiveMode();
+        if (args.length == 2) {
+            // 启动交互模式
+            cmdClient.startInteractiveMode();
+            return;
+        }
+
+        // 批量模式，-表示从标准输入读
+        int concurrency = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        int window = args.length > 5 ? Integer.parseInt(args[5]) : 256;
+        if (concurrency <= 0 || window <= 0) {
+            System.err.println("--->concurrency和window必须大于0");
+            return;
+        }
+        try (InputStream in = "-".equals(args[3]) ? System.in : new FileInputStream(args[3])) {
+            cmdClient.startBulkMode(in, concurrency, window);
+        }
     }
 }
@@ -0,0 +1,40 @@
+package example;
+
+import controller.SocketServerController;
+import service.NormalStore;
+import service.Replicator;
+import service.StoreOptions;
+
+import java.io.File;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/22 21:30
+ * @注释 主从复制，主节点和副本各起一个进程，端口不同
+ * >java -cp target/classes example.ReplicationUsage primary 12345 data1
+ * >java -cp target/classes example.ReplicationUsage replica 12346 data2 localhost 12345
+ */
+public class ReplicationUsage {
+    public static void main(String[] args) {
+        if (args.length < 3 || "replica".equals(args[0]) && args.length != 5) {
+            System.err.println("---【使用方法：primary <port> <dataDir> 或 replica <port> <dataDir> <primary_host> <primary_port>】---");
+            return;
+        }
+        int port = Integer.parseInt(args[1]);
+        String dataDir = args[2] + File.separator;
+
+        StoreOptions options = new StoreOptions();
+        //主节点保留最近64MB的写入，副本落后更多时全量同步
+        options.setReplicationLogSize(64L * 1024 * 1024);
+        NormalStore store = new NormalStore(dataDir, options);
+
+        if ("primary".equals(args[0])) {
+            new SocketServerController("localhost", port, store).startServer();
+            return;
+        }
+        Replicator replicator = new Replicator(store, args[3], Integer.parseInt(args[4]));
+        replicator.start();
+        //副本只读，提供get和scan
+        new SocketServerController("localhost", port, store, true).startServer();
+    }
+}
@@ -19,6 +19,11 @@ public abstract class AbstractCommand implements Command {
     * */
     private CommandTypeEnum type;
 
+    /*
+    * 序列号，每次写入单调递增，用于多版本和快照读
+    * */
+    private long seq;
+
     public AbstractCommand(CommandTypeEnum type) {
         this.type = type;
     }
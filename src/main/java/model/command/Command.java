@@ -9,4 +9,8 @@ package model.command;
 
 public interface Command {
     String getKey();
+
+    long getSeq();
+
+    void setSeq(long seq);
 }
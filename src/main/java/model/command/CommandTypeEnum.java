@@ -15,5 +15,13 @@ public enum CommandTypeEnum {
     /*
     * 删
     * */
-    RM
+    RM,
+    /*
+    * 范围删除
+    * */
+    RANGE_RM,
+    /*
+    * 合并
+    * */
+    MERGE
 }
@@ -0,0 +1,113 @@
+package model.command;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/24 20:00
+ * @注释 合并命令，写入时不读旧值，读的时候把它和更旧的命令合并成一个set
+ * 一条合并命令可以有多个操作数，从旧到新排列：持久化和压缩时找不到旧值的几条合并命令合成一条，
+ * 找到旧值（set、rm或者被范围删除）时直接算出结果，变成set命令。
+ * 合并结果沿用旧值的过期时间；每个操作数记下写入时间，写入时旧值已经过期的从空值重新开始，
+ * 这样不管什么时候合并（读、持久化、压缩），结果都一样
+ */
+@Setter
+@Getter
+public class MergeCommand extends AbstractCommand {
+    private String key;
+
+    /*
+    * 操作数，从旧到新
+    * */
+    private List<Operand> operands;
+
+    public MergeCommand(String key, String operator, String operand) {
+        this(key, Collections.singletonList(new Operand(operator, operand, System.currentTimeMillis())));
+    }
+
+    public MergeCommand(String key, List<Operand> operands) {
+        super(CommandTypeEnum.MERGE);
+        this.key = key;
+        this.operands = operands;
+    }
+
+    /**
+     * @描述 把一串合并命令依次合并到旧值上
+     * @param merges 同一个key的合并命令，从新到旧
+     * @param existing 旧值，没有或已过期时为null
+     * @param expireAt 旧值的过期时间，没有旧值时为0
+     * @return SetCommand 序列号是最新一条合并命令的序列号
+     * @Author taoxier
+     */
+    public static SetCommand resolve(List<MergeCommand> merges, String existing, long expireAt) {
+        String value = existing;
+        for (int i = merges.size() - 1; i >= 0; i--) {
+            for (Operand operand : merges.get(i).getOperands()) {
+                if (expireAt > 0 && operand.getTimestamp() >= expireAt) {
+                    //写入这个操作数时旧值已经过期，之前的结果作废，从空值重新开始，不再过期
+                    value = null;
+                    expireAt = 0;
+                }
+                value = MergeOperators.get(operand.getOperator()).merge(value, operand.getValue());
+            }
+        }
+        MergeCommand newest = merges.get(0);
+        SetCommand set = new SetCommand(newest.getKey(), value, expireAt);
+        set.setSeq(newest.getSeq());
+        return set;
+    }
+
+    /**
+     * @描述 把一串找不到旧值的合并命令合成一条
+     * @param merges 同一个key的合并命令，从新到旧
+     * @return MergeCommand 序列号是最新一条的序列号
+     * @Author taoxier
+     */
+    public static MergeCommand combine(List<MergeCommand> merges) {
+        if (merges.size() == 1) {
+            return merges.get(0);
+        }
+        List<Operand> operands = new ArrayList<>();
+        for (int i = merges.size() - 1; i >= 0; i--) {
+            operands.addAll(merges.get(i).getOperands());
+        }
+        MergeCommand newest = merges.get(0);
+        MergeCommand combined = new MergeCommand(newest.getKey(), operands);
+        combined.setSeq(newest.getSeq());
+        return combined;
+    }
+
+    /**
+     * 一个操作数和它的合并运算
+     */
+    @Setter
+    @Getter
+    public static class Operand {
+
+        /*
+        * 合并运算的名字，见MergeOperators
+        * */
+        private String operator;
+
+        /*
+        * 操作数，字节串
+        * */
+        private String value;
+
+        /*
+        * 写入时间（毫秒）
+        * */
+        private long timestamp;
+
+        public Operand(String operator, String value, long timestamp) {
+            this.operator = operator;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package model.command;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/24 19:30
+ * @注释 合并运算，把一个操作数合并到已有的值上，用MergeOperators按名字注册
+ * 合并命令写入时不读旧值，读和压缩时从旧到新依次合并；value和操作数都是字节串（见BytesUtil）
+ */
+public interface MergeOperator {
+
+    /**
+     * @描述 名字，合并命令里按名字记录用的哪个运算
+     * @param
+     * @return String
+     * @Author taoxier
+     */
+    String name();
+
+    /**
+     * @描述 合并
+     * @param existing 已有的值，key不存在、已删除或已过期时为null
+     * @param operand 操作数
+     * @return String 合并后的值，不能为null
+     * @Author taoxier
+     */
+    String merge(String existing, String operand);
+}
@@ -0,0 +1,108 @@
+package model.command;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/24 19:40
+ * @注释 合并运算的注册表，内置increment、append、max
+ * 数据里只记录运算的名字，读写同一份数据的进程要注册同样的运算
+ */
+public class MergeOperators {
+
+    /**
+     * 按十进制整数相加，旧值不存在或不是整数时当作0
+     */
+    public static final String INCREMENT = "increment";
+
+    /**
+     * 追加到旧值后面
+     */
+    public static final String APPEND = "append";
+
+    /**
+     * 按十进制整数取较大的，旧值不存在或不是整数时取操作数
+     */
+    public static final String MAX = "max";
+
+    private static final ConcurrentHashMap<String, MergeOperator> OPERATORS = new ConcurrentHashMap<>();
+
+    static {
+        register(new MergeOperator() {
+            @Override
+            public String name() {
+                return INCREMENT;
+            }
+
+            @Override
+            public String merge(String existing, String operand) {
+                return Long.toString(parse(existing, 0) + parse(operand, 0));
+            }
+        });
+        register(new MergeOperator() {
+            @Override
+            public String name() {
+                return APPEND;
+            }
+
+            @Override
+            public String merge(String existing, String operand) {
+                return existing == null ? operand : existing + operand;
+            }
+        });
+        register(new MergeOperator() {
+            @Override
+            public String name() {
+                return MAX;
+            }
+
+            @Override
+            public String merge(String existing, String operand) {
+                long value = parse(operand, 0);
+                return Long.toString(existing == null ? value : Math.max(parse(existing, value), value));
+            }
+        });
+    }
+
+    /**
+     * @描述 注册合并运算，同名的会被替换
+     * @param operator
+     * @return void
+     * @Author taoxier
+     */
+    public static void register(MergeOperator operator) {
+        OPERATORS.put(operator.name(), operator);
+    }
+
+    /**
+     * @描述 按名字取合并运算
+     * @param name
+     * @return MergeOperator
+     * @Author taoxier
+     */
+    public static MergeOperator get(String name) {
+        MergeOperator operator = OPERATORS.get(name);
+        if (operator == null) {
+            throw new IllegalArgumentException("-[异常抛出]：未注册的合并运算 " + name);
+        }
+        return operator;
+    }
+
+    /**
+     * @描述 字节串按十进制整数解析，不是整数时返回defaultValue
+     * @param value
+     * @param defaultValue
+     * @return long
+     * @Author taoxier
+     */
+    private static long parse(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
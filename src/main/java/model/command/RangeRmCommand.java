@@ -0,0 +1,45 @@
+/*
+ *@Type RangeRmCommand.java
+ * @Desc
+ * @Author taoxier
+ * @date 2024/8/13 21:05
+ * @version
+ */
+package model.command;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Setter
+@Getter
+public class RangeRmCommand extends AbstractCommand {
+    /*
+    * 范围起点（包含）
+    * */
+    private String key;
+
+    /*
+    * 范围终点（不包含）
+    * */
+    private String endKey;
+
+    public RangeRmCommand(String key, String endKey) {
+        super(CommandTypeEnum.RANGE_RM);
+        this.key = key;
+        this.endKey = endKey;
+    }
+
+    /*
+    * 是否删除了序列号为seq的key：key在范围内，且数据写在这次删除之前
+    * */
+    public boolean covers(String k, long seq) {
+        return k.compareTo(key) >= 0 && k.compareTo(endKey) < 0 && seq < getSeq();
+    }
+
+    /*
+    * key是否在范围内
+    * */
+    public boolean contains(String k) {
+        return k.compareTo(key) >= 0 && k.compareTo(endKey) < 0;
+    }
+}
@@ -9,6 +9,7 @@ package model.command;
 
 import lombok.Getter;
 import lombok.Setter;
+import model.vlog.ValuePointer;
 
 @Setter
 @Getter
@@ -17,9 +18,31 @@ public class SetCommand extends AbstractCommand {
 
     private String value;
 
+    /*
+    * 过期时间戳（毫秒），0表示不过期
+    * */
+    private long expireAt;
+
+    /*
+    * 键值分离时value在值日志中的位置，这时value为null；null表示value就在命令里
+    * */
+    private ValuePointer valuePointer;
+
     public SetCommand(String key, String value) {
         super(CommandTypeEnum.SET);
         this.key = key;
         this.value = value;
     }
+
+    public SetCommand(String key, String value, long expireAt) {
+        this(key, value);
+        this.expireAt = expireAt;
+    }
+
+    /*
+    * 在给定时间是否已过期
+    * */
+    public boolean expiredAt(long now) {
+        return expireAt > 0 && expireAt <= now;
+    }
 }
@@ -0,0 +1,157 @@
+package model.memtable;
+
+import model.command.Command;
+import model.command.MergeCommand;
+import model.command.RangeRmCommand;
+import model.command.SetCommand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/14 20:20
+ * @注释 内存表的公共部分：版本计数、引用计数和范围删除
+ * 范围删除单独存放，不进点数据的索引，读的时候和点数据按序列号比较
+ */
+public abstract class AbstractMemTable implements MemTable {
+
+    /**
+     * 版本数，单独计数，不用遍历索引
+     */
+    private final AtomicInteger size;
+
+    /**
+     * 范围删除，写得很少，用写时复制的列表
+     */
+    private final CopyOnWriteArrayList<RangeRmCommand> rangeTombstones;
+
+    /**
+     * 引用计数，创建者持有一个引用，每个包含它的版本各持有一个
+     */
+    private final AtomicInteger refs;
+
+    protected AbstractMemTable() {
+        this.size = new AtomicInteger();
+        this.rangeTombstones = new CopyOnWriteArrayList<>();
+        this.refs = new AtomicInteger(1);
+    }
+
+    @Override
+    public void put(Command command) {
+        if (command instanceof RangeRmCommand) {
+            rangeTombstones.add((RangeRmCommand) command);
+            size.incrementAndGet();
+            return;
+        }
+        if (putPoint(command)) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * @描述 写入一个点数据版本
+     * @param command
+     * @return boolean 是否新增了一个版本
+     * @Author taoxier
+     */
+    protected abstract boolean putPoint(Command command);
+
+    /**
+     * @描述 释放内存表占用的内存，引用归零时调用一次
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    protected void release() {
+    }
+
+    @Override
+    public Command get(String key) {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    @Override
+    public RangeRmCommand getRangeTombstone(String key, long seq) {
+        RangeRmCommand result = null;
+        for (RangeRmCommand rangeRmCommand : rangeTombstones) {
+            if (rangeRmCommand.getSeq() <= seq && rangeRmCommand.contains(key)
+                    && (result == null || rangeRmCommand.getSeq() > result.getSeq())) {
+                result = rangeRmCommand;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @描述 持久化时key的最新版本是合并命令：在本内存表里往旧找，找到旧值就算出结果，
+     * 找不到时把这几条合并命令合成一条，旧值留给更旧的表
+     * @param newest key的最新版本
+     * @return Command
+     * @Author taoxier
+     */
+    protected Command foldMerges(Command newest) {
+        if (!(newest instanceof MergeCommand)) {
+            return newest;
+        }
+        List<MergeCommand> merges = new ArrayList<>();
+        merges.add((MergeCommand) newest);
+        while (true) {
+            long seq = merges.get(merges.size() - 1).getSeq() - 1;
+            Command older = get(newest.getKey(), seq);
+            RangeRmCommand rangeRmCommand = getRangeTombstone(newest.getKey(), seq);
+            if (rangeRmCommand != null && (older == null || rangeRmCommand.getSeq() > older.getSeq())) {
+                return MergeCommand.resolve(merges, null, 0);
+            }
+            if (older == null) {
+                return MergeCommand.combine(merges);
+            }
+            if (older instanceof MergeCommand) {
+                merges.add((MergeCommand) older);
+                continue;
+            }
+            if (older instanceof SetCommand) {
+                //旧值过期了也带上过期时间，见MergeCommand.resolve
+                return MergeCommand.resolve(merges, ((SetCommand) older).getValue(), ((SetCommand) older).getExpireAt());
+            }
+            return MergeCommand.resolve(merges, null, 0);
+        }
+    }
+
+    @Override
+    public List<RangeRmCommand> getRangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    @Override
+    public boolean ref() {
+        while (true) {
+            int n = refs.get();
+            if (n <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void unref() {
+        if (refs.decrementAndGet() == 0) {
+            release();
+        }
+    }
+}
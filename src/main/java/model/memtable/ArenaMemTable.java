@@ -0,0 +1,428 @@
+package model.memtable;
+
+import model.command.Command;
+import model.command.MergeCommand;
+import model.command.RmCommand;
+import model.command.SetCommand;
+import utils.ByteBufferUtil;
+import utils.CommandCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/14 20:40
+ * @注释 堆外多版本内存表
+ * key、value和跳表节点都分配在堆外的内存块里，跳表指针只存地址（块号 << 32 | 块内偏移），
+ * 堆上只有少量内存块对象，不会因为数据量大产生大量小对象；引用归零时整块释放。
+ * 排序和SkipListMemTable一致：key按字节无符号升序，序列号降序。key和value是字节串（见BytesUtil），每个字符存一个字节。
+ * 只有持有写锁的线程写入，读不加锁：节点写完后才链入跳表，链入后再发布节点地址，
+ * 读到还没发布的地址时等它发布，保证读到的节点内容完整
+ */
+public class ArenaMemTable extends AbstractMemTable {
+
+    /**
+     * 默认内存块大小
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * 跳表最大层数
+     */
+    private static final int MAX_HEIGHT = 12;
+
+    /**
+     * 空地址
+     */
+    private static final long NIL = -1L;
+
+    /**
+     * 节点头部：序列号、过期时间、key长度、value长度、层数，之后是每层的next指针，再之后是key和value的字节
+     */
+    private static final int SEQ_OFFSET = 0;
+    private static final int EXPIRE_AT_OFFSET = 8;
+    private static final int KEY_LEN_OFFSET = 16;
+    private static final int VALUE_LEN_OFFSET = 20;
+    private static final int HEIGHT_OFFSET = 24;
+    private static final int NEXT_OFFSET = 32;
+
+    /**
+     * value长度的特殊值：删除命令、值为null的set命令
+     */
+    private static final int RM_VALUE = -1;
+    private static final int NULL_VALUE = -2;
+
+    /**
+     * 过期时间的特殊值：合并命令，value是编码后的操作数
+     */
+    private static final long MERGE_EXPIRE_AT = -1L;
+
+    /**
+     * 内存块大小
+     */
+    private final int chunkSize;
+
+    /**
+     * 头节点每层的next指针
+     */
+    private final AtomicLongArray head;
+
+    /**
+     * 内存块，扩容时整体替换数组
+     */
+    private volatile ByteBuffer[] chunks;
+
+    /**
+     * 当前内存块已分配到的位置，只有写线程访问
+     */
+    private int chunkPosition;
+
+    /**
+     * 最近发布的节点地址，地址随分配单调递增，不大于它的节点都已写完
+     */
+    private volatile long published;
+
+    /**
+     * 当前最高层数，只有写线程访问
+     */
+    private int height;
+
+    public ArenaMemTable() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public ArenaMemTable(int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.head = new AtomicLongArray(MAX_HEIGHT);
+        for (int i = 0; i < MAX_HEIGHT; i++) {
+            head.set(i, NIL);
+        }
+        this.chunks = new ByteBuffer[]{ByteBuffer.allocateDirect(chunkSize)};
+        this.chunkPosition = 0;
+        this.published = NIL;
+        this.height = 1;
+    }
+
+    @Override
+    protected boolean putPoint(Command command) {
+        String key = command.getKey();
+        long seq = command.getSeq();
+        long expireAt = 0;
+        String value = null;
+        int valueLen;
+        if (command instanceof SetCommand) {
+            SetCommand set = (SetCommand) command;
+            value = set.getValue();
+            expireAt = set.getExpireAt();
+            valueLen = value == null ? NULL_VALUE : value.length();
+        } else if (command instanceof MergeCommand) {
+            value = CommandCodec.operandsToByteString((MergeCommand) command);
+            expireAt = MERGE_EXPIRE_AT;
+            valueLen = value.length();
+        } else {
+            valueLen = RM_VALUE;
+        }
+
+        //找每层的前驱，新节点插在同key同序列号的旧节点之前
+        long[] prev = new long[MAX_HEIGHT];
+        long x = NIL;
+        for (int level = height - 1; level >= 0; level--) {
+            long next = nextNode(x, level);
+            while (next != NIL && compare(next, key, seq) < 0) {
+                x = next;
+                next = nextNode(x, level);
+            }
+            prev[level] = x;
+        }
+
+        int nodeHeight = randomHeight();
+        if (nodeHeight > height) {
+            for (int level = height; level < nodeHeight; level++) {
+                prev[level] = NIL;
+            }
+            height = nodeHeight;
+        }
+
+        //分配并写节点
+        int nodeSize = NEXT_OFFSET + 8 * nodeHeight + key.length() + Math.max(valueLen, 0);
+        long node = allocate(nodeSize);
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node);
+        chunk.putLong(offset + SEQ_OFFSET, seq);
+        chunk.putLong(offset + EXPIRE_AT_OFFSET, expireAt);
+        chunk.putInt(offset + KEY_LEN_OFFSET, key.length());
+        chunk.putInt(offset + VALUE_LEN_OFFSET, valueLen);
+        chunk.putInt(offset + HEIGHT_OFFSET, nodeHeight);
+        int p = offset + NEXT_OFFSET + 8 * nodeHeight;
+        p = putByteString(chunk, p, key);
+        if (valueLen > 0) {
+            putByteString(chunk, p, value);
+        }
+
+        //自底向上链入：先设置自己的next，再让前驱指向自己
+        for (int level = 0; level < nodeHeight; level++) {
+            chunk.putLong(offset + NEXT_OFFSET + 8 * level, nextNode(prev[level], level));
+            setNextNode(prev[level], level, node);
+        }
+        published = node;
+        return true;
+    }
+
+    /**
+     * @描述 读序列号不大于seq的最新版本
+     * @param key
+     * @param seq
+     * @return Command
+     * @Author taoxier
+     */
+    @Override
+    public Command get(String key, long seq) {
+        long node = seekCeiling(key, seq);
+        if (node == NIL || compareKey(node, key) != 0) {
+            return null;
+        }
+        return decode(node);
+    }
+
+    /**
+     * @描述 按key升序遍历每个key的最新版本，用于持久化，合并命令见foldMerges
+     * @param
+     * @return Iterator<Command>
+     * @Author taoxier
+     */
+    @Override
+    public Iterator<Command> iterator() {
+        return iterator(null);
+    }
+
+    @Override
+    public Iterator<Command> iterator(final String from) {
+        return new Iterator<Command>() {
+            private long next = from == null ? nextNode(NIL, 0) : seekCeiling(from, Long.MAX_VALUE);
+
+            @Override
+            public boolean hasNext() {
+                return next != NIL;
+            }
+
+            @Override
+            public Command next() {
+                if (next == NIL) {
+                    throw new NoSuchElementException();
+                }
+                Command result = decode(next);
+                String key = result.getKey();
+                next = nextNode(next, 0);
+                //跳过同一个key的旧版本
+                while (next != NIL && compareKey(next, key) == 0) {
+                    next = nextNode(next, 0);
+                }
+                return foldMerges(result);
+            }
+        };
+    }
+
+    /**
+     * @描述 释放全部内存块
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    protected void release() {
+        ByteBuffer[] released = chunks;
+        chunks = new ByteBuffer[0];
+        for (ByteBuffer chunk : released) {
+            ByteBufferUtil.free(chunk);
+        }
+    }
+
+    /**
+     * @描述 第一个不小于(key, seq)的节点，即key相同时序列号不大于seq的最新版本
+     * @param key
+     * @param seq
+     * @return long
+     * @Author taoxier
+     */
+    private long seekCeiling(String key, long seq) {
+        long x = NIL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = nextNode(x, level);
+            while (next != NIL && compare(next, key, seq) < 0) {
+                x = next;
+                next = nextNode(x, level);
+            }
+        }
+        return nextNode(x, 0);
+    }
+
+    /**
+     * @描述 节点和(key, seq)比较：key升序，序列号降序
+     * @param node
+     * @param key
+     * @param seq
+     * @return int
+     * @Author taoxier
+     */
+    private int compare(long node, String key, long seq) {
+        int c = compareKey(node, key);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(seq, chunk(node).getLong(offset(node) + SEQ_OFFSET));
+    }
+
+    /**
+     * @描述 节点的key和key按字节无符号比较，结果和字节串的String.compareTo一致
+     * @param node
+     * @param key
+     * @return int
+     * @Author taoxier
+     */
+    private int compareKey(long node, String key) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node);
+        int keyLen = chunk.getInt(offset + KEY_LEN_OFFSET);
+        int p = offset + NEXT_OFFSET + 8 * chunk.getInt(offset + HEIGHT_OFFSET);
+        int n = Math.min(keyLen, key.length());
+        for (int i = 0; i < n; i++, p++) {
+            int c1 = chunk.get(p) & 0xff;
+            int c2 = key.charAt(i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return keyLen - key.length();
+    }
+
+    /**
+     * @描述 把节点还原成命令
+     * @param node
+     * @return Command
+     * @Author taoxier
+     */
+    private Command decode(long node) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node);
+        int keyLen = chunk.getInt(offset + KEY_LEN_OFFSET);
+        int valueLen = chunk.getInt(offset + VALUE_LEN_OFFSET);
+        int p = offset + NEXT_OFFSET + 8 * chunk.getInt(offset + HEIGHT_OFFSET);
+        String key = getByteString(chunk, p, keyLen);
+        p += keyLen;
+        Command command;
+        if (valueLen == RM_VALUE) {
+            command = new RmCommand(key);
+        } else if (chunk.getLong(offset + EXPIRE_AT_OFFSET) == MERGE_EXPIRE_AT) {
+            command = new MergeCommand(key, CommandCodec.operandsFromByteString(getByteString(chunk, p, valueLen)));
+        } else {
+            String value = null;
+            if (valueLen != NULL_VALUE) {
+                value = getByteString(chunk, p, valueLen);
+            }
+            command = new SetCommand(key, value, chunk.getLong(offset + EXPIRE_AT_OFFSET));
+        }
+        command.setSeq(chunk.getLong(offset + SEQ_OFFSET));
+        return command;
+    }
+
+    /**
+     * @描述 写字节串，每个字符一个字节
+     * @param chunk
+     * @param p
+     * @param s
+     * @return int 写完后的位置
+     * @Author taoxier
+     */
+    private static int putByteString(ByteBuffer chunk, int p, String s) {
+        for (int i = 0; i < s.length(); i++, p++) {
+            char c = s.charAt(i);
+            if (c > 0xff) {
+                throw new IllegalArgumentException("-[异常抛出]：不是字节串 " + s);
+            }
+            chunk.put(p, (byte) c);
+        }
+        return p;
+    }
+
+    private static String getByteString(ByteBuffer chunk, int p, int len) {
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = chunk.get(p + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @描述 读节点第level层的next指针，node为NIL表示头节点；读到还没发布的节点时等它发布
+     * @param node
+     * @param level
+     * @return long
+     * @Author taoxier
+     */
+    private long nextNode(long node, int level) {
+        long next;
+        if (node == NIL) {
+            next = head.get(level);
+        } else {
+            next = chunk(node).getLong(offset(node) + NEXT_OFFSET + 8 * level);
+        }
+        if (next != NIL) {
+            while (next > published) {
+                Thread.yield();
+            }
+        }
+        return next;
+    }
+
+    private void setNextNode(long node, int level, long next) {
+        if (node == NIL) {
+            head.set(level, next);
+        } else {
+            chunk(node).putLong(offset(node) + NEXT_OFFSET + 8 * level, next);
+        }
+    }
+
+    /**
+     * @描述 分配一段8字节对齐的空间，当前块放不下时新开一块，超大的节点单独一块
+     * @param size
+     * @return long 地址
+     * @Author taoxier
+     */
+    private long allocate(int size) {
+        size = (size + 7) & ~7;
+        ByteBuffer[] current = chunks;
+        if (chunkPosition + size > current[current.length - 1].capacity()) {
+            ByteBuffer[] grown = new ByteBuffer[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = ByteBuffer.allocateDirect(Math.max(chunkSize, size));
+            chunks = grown;
+            current = grown;
+            chunkPosition = 0;
+        }
+        long address = ((long) (current.length - 1) << 32) | chunkPosition;
+        chunkPosition += size;
+        return address;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks[(int) (address >>> 32)];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static int randomHeight() {
+        int h = 1;
+        //每层1/4的概率长高
+        while (h < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(4) == 0) {
+            h++;
+        }
+        return h;
+    }
+}
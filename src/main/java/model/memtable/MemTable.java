@@ -0,0 +1,87 @@
+package model.memtable;
+
+import model.command.Command;
+import model.command.RangeRmCommand;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/14 20:10
+ * @注释 内存表
+ * 同一个key的每次写入都按序列号保留一个版本，读的时候取不大于序列号的最新版本；
+ * 遍历时按key升序输出每个key的最新版本，持久化时交给SsTable.createFromMemTable
+ */
+public interface MemTable extends Iterable<Command> {
+
+    /**
+     * @描述 写入一个版本，只有持有写锁的线程调用
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    void put(Command command);
+
+    /**
+     * @描述 读序列号不大于seq的最新版本
+     * @param key
+     * @param seq
+     * @return Command
+     * @Author taoxier
+     */
+    Command get(String key, long seq);
+
+    /**
+     * @描述 读最新版本
+     * @param key
+     * @return Command
+     * @Author taoxier
+     */
+    Command get(String key);
+
+    /**
+     * @描述 覆盖key且序列号不大于seq的最新范围删除
+     * @param key
+     * @param seq
+     * @return RangeRmCommand
+     * @Author taoxier
+     */
+    RangeRmCommand getRangeTombstone(String key, long seq);
+
+    /**
+     * @描述 从第一个不小于from的key开始，按key升序遍历每个key的最新版本，范围查询用，不用每次从头遍历
+     * @param from 字节串，为null表示从头开始
+     * @return Iterator<Command>
+     * @Author taoxier
+     */
+    Iterator<Command> iterator(String from);
+
+    List<RangeRmCommand> getRangeTombstones();
+
+    /**
+     * @描述 版本数，用于判断是否需要持久化
+     * @param
+     * @return int
+     * @Author taoxier
+     */
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * @描述 增加引用，失败说明内存表已经被释放
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    boolean ref();
+
+    /**
+     * @描述 释放引用，归零时释放内存表占用的内存
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    void unref();
+}
@@ -0,0 +1,30 @@
+package model.memtable;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/14 20:30
+ * @注释 内存表实现
+ */
+public enum MemTableTypeEnum {
+    /*
+    * 堆内跳表，默认
+    * */
+    SKIP_LIST,
+    /*
+    * 堆外内存块，数据和跳表索引都放在堆外，减少GC压力
+    * */
+    ARENA;
+
+    /**
+     * @描述 新建一个该实现的内存表
+     * @param
+     * @return MemTable
+     * @Author taoxier
+     */
+    public MemTable newMemTable() {
+        if (this == ARENA) {
+            return new ArenaMemTable();
+        }
+        return new SkipListMemTable();
+    }
+}
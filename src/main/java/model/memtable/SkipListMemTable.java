@@ -0,0 +1,121 @@
+package model.memtable;
+
+import model.command.Command;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/4 15:20
+ * @注释 多版本内存表，堆内跳表实现
+ * 同一个key的每次写入都按序列号保留一个版本，按key升序、序列号降序排列，
+ * 这样快照可以读到不大于自己序列号的最新版本；持久化时只输出每个key的最新版本，合并命令和旧版本合并后输出
+ */
+public class SkipListMemTable extends AbstractMemTable {
+
+    /**
+     * 内部key的比较器：key升序，序列号降序
+     */
+    private static final Comparator<InternalKey> COMPARATOR = new Comparator<InternalKey>() {
+        @Override
+        public int compare(InternalKey o1, InternalKey o2) {
+            int c = o1.key.compareTo(o2.key);
+            if (c != 0) {
+                return c;
+            }
+            return Long.compare(o2.seq, o1.seq);
+        }
+    };
+
+    /**
+     * 所有版本
+     */
+    private final ConcurrentSkipListMap<InternalKey, Command> table;
+
+    public SkipListMemTable() {
+        this.table = new ConcurrentSkipListMap<>(COMPARATOR);
+    }
+
+    @Override
+    protected boolean putPoint(Command command) {
+        return table.put(new InternalKey(command.getKey(), command.getSeq()), command) == null;
+    }
+
+    /**
+     * @描述 读序列号不大于seq的最新版本
+     * @param key
+     * @param seq
+     * @return Command
+     * @Author taoxier
+     */
+    @Override
+    public Command get(String key, long seq) {
+        Map.Entry<InternalKey, Command> entry = table.ceilingEntry(new InternalKey(key, seq));
+        if (entry == null || !entry.getKey().key.equals(key)) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * @描述 按key升序遍历每个key的最新版本，用于持久化，合并命令见foldMerges
+     * @param
+     * @return Iterator<Command>
+     * @Author taoxier
+     */
+    @Override
+    public Iterator<Command> iterator() {
+        return iterator(null);
+    }
+
+    @Override
+    public Iterator<Command> iterator(String from) {
+        //同一个key序列号大的排在前面，(from, Long.MAX_VALUE)排在from的所有版本之前
+        final Iterator<Map.Entry<InternalKey, Command>> it = (from == null ? table
+                : table.tailMap(new InternalKey(from, Long.MAX_VALUE), true)).entrySet().iterator();
+        return new Iterator<Command>() {
+            private Map.Entry<InternalKey, Command> next = it.hasNext() ? it.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Command next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Command result = next.getValue();
+                String key = next.getKey().key;
+                next = null;
+                //跳过同一个key的旧版本
+                while (it.hasNext()) {
+                    Map.Entry<InternalKey, Command> e = it.next();
+                    if (!e.getKey().key.equals(key)) {
+                        next = e;
+                        break;
+                    }
+                }
+                return foldMerges(result);
+            }
+        };
+    }
+
+    /**
+     * 内部key，用户key加序列号
+     */
+    private static final class InternalKey {
+        private final String key;
+        private final long seq;
+
+        private InternalKey(String key, long seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package model.sstable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/17 19:40
+ * @注释 块缓存，缓存ssTable的数据段和索引块
+ * 按字节数限制总大小，超出时淘汰最久没用的块；分成多个分片各自加锁，减少读线程之间的竞争。
+ * 所有ssTable共用一个缓存，块按（表编号，块在文件中的位置）区分
+ */
+public class BlockCache {
+
+    /**
+     * 分片数，2的幂
+     */
+    private static final int SHARDS = 16;
+
+    /**
+     * 每个块除数据外大约占用的字节数，计入容量
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Shard[] shards;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    /**
+     * @param capacity 容量，字节
+     */
+    public BlockCache(long capacity) {
+        this.shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(Math.max(1, capacity / SHARDS));
+        }
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * @描述 取缓存的块，没有返回null
+     * @param tableId
+     * @param offset
+     * @return byte[]
+     * @Author taoxier
+     */
+    public byte[] get(long tableId, long offset) {
+        BlockKey key = new BlockKey(tableId, offset);
+        byte[] block = shard(key).get(key);
+        if (block == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return block;
+    }
+
+    /**
+     * @描述 放入一个块，比单个分片容量还大的块不缓存
+     * @param tableId
+     * @param offset
+     * @param block
+     * @return void
+     * @Author taoxier
+     */
+    public void put(long tableId, long offset, byte[] block) {
+        BlockKey key = new BlockKey(tableId, offset);
+        shard(key).put(key, block);
+    }
+
+    /**
+     * @描述 当前缓存的字节数
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Shard shard(BlockKey key) {
+        return shards[key.hashCode() & (SHARDS - 1)];
+    }
+
+    private static long charge(byte[] block) {
+        return block.length + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * 一个分片：按访问顺序排列的LinkedHashMap，最久没用的在最前
+     */
+    private static final class Shard {
+        private final long capacity;
+        private final LinkedHashMap<BlockKey, byte[]> blocks;
+        private long size;
+
+        private Shard(long capacity) {
+            this.capacity = capacity;
+            this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        private synchronized byte[] get(BlockKey key) {
+            return blocks.get(key);
+        }
+
+        private synchronized void put(BlockKey key, byte[] block) {
+            if (charge(block) > capacity) {
+                return;
+            }
+            byte[] old = blocks.put(key, block);
+            if (old != null) {
+                size -= charge(old);
+            }
+            size += charge(block);
+            Iterator<Map.Entry<BlockKey, byte[]>> it = blocks.entrySet().iterator();
+            while (size > capacity && it.hasNext()) {
+                Map.Entry<BlockKey, byte[]> eldest = it.next();
+                size -= charge(eldest.getValue());
+                it.remove();
+            }
+        }
+
+        private synchronized long size() {
+            return size;
+        }
+    }
+
+    /**
+     * 块的标识：表编号加块在文件中的位置
+     */
+    private static final class BlockKey {
+        private final long tableId;
+        private final long offset;
+
+        private BlockKey(long tableId, long offset) {
+            this.tableId = tableId;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return tableId == other.tableId && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = tableId * 31 + offset;
+            h ^= h >>> 32;
+            h *= 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 29));
+        }
+    }
+}
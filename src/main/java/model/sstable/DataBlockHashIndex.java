@@ -0,0 +1,141 @@
+package model.sstable;
+
+import utils.CommandCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/29 20:00
+ * @注释 数据段内的哈希索引，开放定址（线性探测）的槽位表，key的哈希 -> 记录在数据段内的偏移
+ * 写在数据段的记录后面：槽位（每个4字节，空槽为-1）+ 4字节槽位数 + 4字节记录区长度。
+ * 点查时从key的哈希所在的槽开始，碰到空槽说明不在这个数据段，碰到偏移就比一次key；
+ * 连续探测太多次还没有结果时退回顺序查找，最坏情况和没有哈希索引一样。
+ * 只对按TableMetaInfo.FLAG_HASH_INDEX标记的表生效，其余表的数据段里只有记录
+ */
+public final class DataBlockHashIndex {
+
+    /**
+     * 每条记录的槽位数，槽位数是记录数的两倍，不命中时平均探测两三次
+     */
+    public static final int SLOTS_PER_ENTRY = 2;
+
+    /**
+     * 最多探测的槽位数，超过后退回顺序查找
+     */
+    public static final int MAX_PROBES = 8;
+
+    /**
+     * 空槽
+     */
+    private static final int EMPTY = -1;
+
+    /**
+     * lookup的结果：肯定不在这个数据段
+     */
+    public static final int NOT_FOUND = -1;
+
+    /**
+     * lookup的结果：探测次数用完，要顺序查找
+     */
+    public static final int FALLBACK = -2;
+
+    /**
+     * 槽位数和记录区长度两个int
+     */
+    private static final int TRAILER_SIZE = 8;
+
+    private DataBlockHashIndex() {
+    }
+
+    /**
+     * @描述 key的哈希，写表和查找都用字节串算，结果和JVM无关
+     * @param key 字节串
+     * @return int 非负数
+     * @Author taoxier
+     */
+    public static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & Integer.MAX_VALUE;
+    }
+
+    /**
+     * @描述 数据段的槽位数
+     * @param entries 记录数
+     * @return int
+     * @Author taoxier
+     */
+    public static int slotCount(int entries) {
+        return Math.max(1, entries * SLOTS_PER_ENTRY);
+    }
+
+    /**
+     * @描述 构建槽位表
+     * @param hashes 每条记录key的哈希
+     * @param offsets 每条记录在数据段内的偏移
+     * @param entries 记录数
+     * @return int[] 槽位，空槽为-1
+     * @Author taoxier
+     */
+    public static int[] build(int[] hashes, int[] offsets, int entries) {
+        int[] slots = new int[slotCount(entries)];
+        Arrays.fill(slots, EMPTY);
+        for (int i = 0; i < entries; i++) {
+            int slot = hashes[i] % slots.length;
+            while (slots[slot] != EMPTY) {
+                slot = slot + 1 == slots.length ? 0 : slot + 1;
+            }
+            slots[slot] = offsets[i];
+        }
+        return slots;
+    }
+
+    /**
+     * @描述 哈希索引所占字节数
+     * @param entries 记录数
+     * @return int
+     * @Author taoxier
+     */
+    public static int size(int entries) {
+        return slotCount(entries) * 4 + TRAILER_SIZE;
+    }
+
+    /**
+     * @描述 数据段里记录区的长度，记录区后面是哈希索引
+     * @param block 带哈希索引的数据段
+     * @return int
+     * @Author taoxier
+     */
+    public static int recordsLength(ByteBuffer block) {
+        return block.getInt(block.limit() - 4);
+    }
+
+    /**
+     * @描述 在数据段里找key对应记录的偏移
+     * @param block 带哈希索引的数据段
+     * @param key 字节串
+     * @return int 记录的偏移（指向4字节长度）；NOT_FOUND表示不在这个数据段，FALLBACK表示要顺序查找
+     * @Author taoxier
+     */
+    public static int lookup(ByteBuffer block, String key) {
+        int limit = block.limit();
+        int slotCount = block.getInt(limit - TRAILER_SIZE);
+        int slotsStart = limit - TRAILER_SIZE - slotCount * 4;
+        int slot = hash(key) % slotCount;
+        for (int probe = 0; probe < MAX_PROBES && probe < slotCount; probe++) {
+            int offset = block.getInt(slotsStart + slot * 4);
+            if (offset == EMPTY) {
+                return NOT_FOUND;
+            }
+            if (CommandCodec.compareKey(block, offset + 4, key) == 0) {
+                return offset;
+            }
+            slot = slot + 1 == slotCount ? 0 : slot + 1;
+        }
+        return FALLBACK;
+    }
+}
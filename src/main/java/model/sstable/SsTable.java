@@ -1,24 +1,36 @@
 package model.sstable;
 
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.alibaba.fastjson.TypeReference;
 import model.Position;
 import model.command.Command;
-import model.command.RmCommand;
-import model.command.SetCommand;
+import model.command.RangeRmCommand;
+import model.memtable.MemTable;
+import model.vlog.ValueLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import utils.BytesUtil;
+import utils.CommandCodec;
 import utils.CommandUtil;
 import utils.LoggerUtil;
+import utils.RateLimiter;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.File;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -33,10 +45,40 @@ public class SsTable implements Closeable {
     private final String logFormat = "[SsTable][{}][{}]: {}";
 
     /**
-     * 稀疏索引
+     * 表编号生成器，块缓存用表编号区分不同表的块
+     */
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /**
+     * 稀疏索引，版本5之前的表整体常驻内存；两级索引的表为null
      */
     private TreeMap<String, Position> sparseIndex;
 
+    /**
+     * 顶层索引，两级索引的表常驻内存，指向磁盘上的索引块
+     */
+    private TreeMap<String, Position> topIndex;
+
+    /**
+     * 是否是两级索引的表
+     */
+    private boolean partitioned;
+
+    /**
+     * 块缓存，缓存索引块和数据段，为null时每次都读文件
+     */
+    private final BlockCache blockCache;
+
+    /**
+     * 表编号，进程内唯一
+     */
+    private final long id;
+
+    /**
+     * 范围删除，常驻内存
+     */
+    private List<RangeRmCommand> rangeTombstones;
+
     /**
      * 文件索引信息
      */
@@ -52,10 +94,63 @@ public class SsTable implements Closeable {
      */
     private final String filePath;
 
-    private SsTable(String filePath, int partSize) {
+    /**
+     * 引用计数，表列表本身持有一个引用，快照每持有一次加一
+     */
+    private final AtomicInteger refs;
+
+    /**
+     * 是否已被压缩淘汰，淘汰后引用归零时删除文件
+     */
+    private volatile boolean obsolete;
+
+    /**
+     * 所在层级，0层是内存表直接持久化的表，1层是压缩后的表
+     */
+    private int level;
+
+    /**
+     * 表内最小序列号，构建时统计，加载时取自文件索引信息（版本8开始）或MANIFEST
+     */
+    private long minSeq;
+
+    /**
+     * 表里最小、最大的key，常驻内存，查找时不相交的表不用读文件；表里没有数据时都为null
+     */
+    private String minKey;
+    private String maxKey;
+
+    /**
+     * 是否知道key范围，旧格式（JSON）的表不知道，查找时不能跳过
+     */
+    private boolean keyRangeKnown;
+
+    /**
+     * 导入的外部表整体的序列号，表里记录的序列号都是0，读出来时换成它；不是导入的表为0
+     */
+    private long globalSeq;
+
+    /**
+     * 是否是旧格式的表，旧格式里key和value是普通字符串，读出来后转成字节串
+     */
+    private boolean legacy;
+
+    /**
+     * 是否是二进制编码的表，之前的版本是JSON
+     */
+    private boolean binary;
+
+    /**
+     * 数据段末尾是否有哈希索引，见DataBlockHashIndex
+     */
+    private boolean hashIndex;
+
+    private SsTable(String filePath, int partSize, BlockCache blockCache) {
         this.tableMetaInfo = new TableMetaInfo();//索引
         this.tableMetaInfo.setPartSize(partSize);
         this.filePath = filePath;
+        this.blockCache = blockCache;
+        this.id = NEXT_ID.incrementAndGet();
         try {
             this.tableFile = new RandomAccessFile(filePath, RW);
             tableFile.seek(0);
@@ -63,88 +158,47 @@ public class SsTable implements Closeable {
             throw new RuntimeException(t);
         }
         sparseIndex = new TreeMap<>();
+        rangeTombstones = Collections.emptyList();
+        refs = new AtomicInteger(1);
     }
 
     /**
-     * @描述 把数据段写入文件
-     * @param partData
+     * @描述 根据内存表创建数据表ssTable，交给SsTableBuilder边遍历边写
+     * @param commands 按key升序的命令
+     * @param rangeTombstones 范围删除
+     * @param rateLimiter 写文件的限速器，可以为null
+     * @param valueLog 值日志，可以为null
+     * @param directIo 是否绕过页缓存写，之后读表仍然经过页缓存
+     * @param hashIndex 每个数据段后面是否写哈希索引
      * @return void
      * @Author taoxier
      */
-    private void writeDataPart(JSONObject partData) {
-        try {
-            byte[] partDataBytes = partData.toJSONString().getBytes(StandardCharsets.UTF_8);
-            long start = tableFile.getFilePointer();//记录开始位置
-            tableFile.write(partDataBytes);//写
-
-            //记录数据段的第一个key到稀疏索引中
-            Optional<String> firstKey = partData.keySet().stream().findFirst();//取第一个key
-//            firstKey.ifPresent(s -> sparseIndex.put(s, new Position(start, partDataBytes.length)));//存
-            //存
-            firstKey.ifPresent(new Consumer<String>() {
-                @Override
-                public void accept(String s) {
-                    sparseIndex.put(s, new Position(start, partDataBytes.length));
-                }
-            });
-            partData.clear();//写完清空
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void initFromMemTable(Iterable<Command> commands, List<RangeRmCommand> rangeTombstones,
+                                  RateLimiter rateLimiter, ValueLog valueLog, boolean directIo, boolean hashIndex,
+                                  String tableType) {
+        //一次建完，中间不会在这个线程上再开构建器，用线程复用的缓冲区
+        SsTableBuilder builder = new SsTableBuilder(filePath, (int) tableMetaInfo.getPartSize(),
+                SsTableBuilder.DEFAULT_INDEX_BLOCK_SIZE, rateLimiter, valueLog, directIo, true);
+        builder.setHashIndex(hashIndex);
+        for (Command cmd : commands) {
+            builder.add(cmd);
         }
-    }
-
-    /**
-     * @描述 根据内存表创建数据表ssTable
-     * @param memTable
-     * @return void
-     * @Author taoxier
-     */
-    private void initFromMemTable(TreeMap<String, Command> memTable,String tableType) {
-        try {
-            JSONObject partData = new JSONObject(true);//保持属性的插入顺序
-            tableMetaInfo.setDataStart(tableFile.getFilePointer());//获取当前流在文件中的读/写位置(文件指针)
-            for (Command cmd : memTable.values()) {
-                //set
-                if (cmd instanceof SetCommand) {
-                    SetCommand set = (SetCommand) cmd;
-                    partData.put(set.getKey(), set);
-                }
-
-                //rm
-                if (cmd instanceof RmCommand) {
-                    RmCommand rm = (RmCommand) cmd;
-                    partData.put(rm.getKey(), rm);
-                }
-
-                //如果达到分段阈值，写入数据段
-                if (partData.size() >= tableMetaInfo.getPartSize()) {
-                    writeDataPart(partData);
-                }
-            }
-
-            //最后可能剩点
-            if (partData.size() > 0) {
-                writeDataPart(partData);
-            }
-
-            long dataPartLen = tableFile.getFilePointer();//获取当前文件指针
-            tableMetaInfo.setDataLen(dataPartLen);//记录数据区长度
-
-            //保存稀疏索引
-            byte[] indexBytes = JSONObject.toJSONString(sparseIndex).getBytes(StandardCharsets.UTF_8);
-            tableMetaInfo.setIndexStart(tableFile.getFilePointer());//记录稀疏索引开始位置
-            tableFile.write(indexBytes);//写入稀疏索引
-            tableMetaInfo.setIndexLen(indexBytes.length);//记录稀疏索引区长度
-//            LoggerUtil.debug(LOGGER, "[SsTable][initFromMemTable][sparseIndex]: {}", sparseIndex);
-            LoggerUtil.debug(LOGGER, logFormat, tableType, "sparseIndex", sparseIndex);
-
-            //保存文件索引信息
-            tableMetaInfo.writeToFile(tableFile);
-            LoggerUtil.info(LOGGER, "[SsTable]["+tableType+"]: {},{}", filePath, tableMetaInfo);
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        for (RangeRmCommand rangeRmCommand : rangeTombstones) {
+            builder.addRangeTombstone(rangeRmCommand);
         }
+        tableMetaInfo = builder.finish();
+        binary = true;
+        partitioned = true;
+        this.hashIndex = tableMetaInfo.hasHashIndex();
+        sparseIndex = null;
+        topIndex = builder.getTopIndex();
+        this.rangeTombstones = new ArrayList<>(builder.getRangeTombstones());
+        minSeq = builder.getMinSeq();
+        minKey = tableMetaInfo.getMinKey();
+        maxKey = tableMetaInfo.getMaxKey();
+        keyRangeKnown = true;
+        LoggerUtil.debug(LOGGER, logFormat, tableType, "topIndex", topIndex);
+        LoggerUtil.info(LOGGER, "[SsTable]["+tableType+"]: {},{}", filePath, tableMetaInfo);
     }
 
     /**
@@ -160,17 +214,60 @@ public class SsTable implements Closeable {
 //            LoggerUtil.debug(LOGGER, "[SsTable][initFromFile][tableMetaInfo]: {}", tableMetaInfo);
             LoggerUtil.debug(LOGGER, logFormat, "initFromFile", "tableMetaInfo", tableMetaInfo);
 
-            //再读稀疏索引区
+            this.tableMetaInfo = tableMetaInfo;//记录文件索引信息
+            this.legacy = tableMetaInfo.getVersion() < TableMetaInfo.BYTE_STRING_VERSION;
+            this.binary = tableMetaInfo.getVersion() >= TableMetaInfo.BINARY_VERSION;
+            this.partitioned = tableMetaInfo.getVersion() >= TableMetaInfo.PARTITIONED_INDEX_VERSION;
+            this.hashIndex = tableMetaInfo.hasHashIndex();
+
+            //再读稀疏索引区，两级索引的表只读顶层索引
             byte[] indexBytes = new byte[(int) tableMetaInfo.getIndexLen()];
             tableFile.seek(tableMetaInfo.getIndexStart());//跳到稀疏索引区开始位置
-            tableFile.read(indexBytes);//读稀疏索引区
+            tableFile.readFully(indexBytes);//读稀疏索引区
+
+            if (binary) {
+                if (partitioned) {
+                    topIndex = decodeIndex(indexBytes);
+                } else {
+                    sparseIndex = decodeIndex(indexBytes);
+                }
+                if (tableMetaInfo.getRangeDelLen() > 0) {
+                    List<RangeRmCommand> list = new ArrayList<>();
+                    for (Command command : decodeRecords(read(tableMetaInfo.getRangeDelStart(), (int) tableMetaInfo.getRangeDelLen()))) {
+                        list.add((RangeRmCommand) command);
+                    }
+                    rangeTombstones = list;
+                }
+                if (tableMetaInfo.getVersion() >= TableMetaInfo.KEY_RANGE_VERSION) {
+                    minKey = tableMetaInfo.getMinKey();
+                    maxKey = tableMetaInfo.getMaxKey();
+                    minSeq = tableMetaInfo.getMinSeq();
+                } else {
+                    //版本8之前没有key范围区，打开时读一次最后一个数据段
+                    minKey = readFirstKey();
+                    maxKey = readLastKey();
+                }
+                keyRangeKnown = true;
+                LoggerUtil.debug(LOGGER, logFormat, "initFromFile", "sparseIndex", partitioned ? topIndex : sparseIndex);
+                return;
+            }
 
             String indexString = new String(indexBytes, StandardCharsets.UTF_8);
 //            LoggerUtil.debug(LOGGER, "[SsTable][initFromFile][indexStr]: {}", indexString);
             LoggerUtil.debug(LOGGER, logFormat, "initFromFile", "indexString", indexString);
             sparseIndex = JSONObject.parseObject(indexString, new TypeReference<TreeMap<String, Position>>() {
             });//存到稀疏索引
-            this.tableMetaInfo = tableMetaInfo;//记录文件索引信息
+
+            //版本2开始有范围删除区
+            if (tableMetaInfo.getVersion() >= 2 && tableMetaInfo.getRangeDelLen() > 0) {
+                byte[] rangeDelBytes = read(tableMetaInfo.getRangeDelStart(), (int) tableMetaInfo.getRangeDelLen());
+                JSONArray array = JSONArray.parseArray(new String(rangeDelBytes, StandardCharsets.UTF_8));
+                List<RangeRmCommand> list = new ArrayList<>(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    list.add((RangeRmCommand) decode(array.getJSONObject(i)));
+                }
+                rangeTombstones = list;
+            }
 //            LoggerUtil.debug(LOGGER, "[SsTable][initFromFile][sparseIndex]: {}", sparseIndex);
             LoggerUtil.debug(LOGGER, logFormat, "initFromFile", "sparseIndex", sparseIndex);
 
@@ -187,9 +284,29 @@ public class SsTable implements Closeable {
      * @return SsTable
      * @Author taoxier
      */
-    public static SsTable createFromMemTable(String filePath, int partSize, TreeMap<String, Command> memTable) {
-        SsTable ssTable = new SsTable(filePath, partSize);
-        ssTable.initFromMemTable(memTable,"initFromMemTable");
+    public static SsTable createFromMemTable(String filePath, int partSize, MemTable memTable) {
+        return createFromMemTable(filePath, partSize, memTable, null, null, null, false, false);
+    }
+
+    /**
+     * @描述 根据内存表创建ssTable，读的时候经过块缓存
+     * @param filePath
+     * @param partSize
+     * @param memTable
+     * @param blockCache
+     * @param rateLimiter 写文件的限速器，可以为null
+     * @param valueLog 大value写进值日志，可以为null
+     * @param directIo 是否绕过页缓存写
+     * @param hashIndex 每个数据段后面是否写哈希索引
+     * @return SsTable
+     * @Author taoxier
+     */
+    public static SsTable createFromMemTable(String filePath, int partSize, MemTable memTable, BlockCache blockCache,
+                                             RateLimiter rateLimiter, ValueLog valueLog, boolean directIo,
+                                             boolean hashIndex) {
+        SsTable ssTable = new SsTable(filePath, partSize, blockCache);
+        ssTable.initFromMemTable(memTable, memTable.getRangeTombstones(), rateLimiter, valueLog, directIo, hashIndex,
+                "initFromMemTable");
         return ssTable;
     }
 
@@ -198,12 +315,36 @@ public class SsTable implements Closeable {
     * @param filePath
     * @param partSize
     * @param compressTable
+    * @param rangeTombstones 保留下来的范围删除
     * @return SsTable
     * @Author taoxier
     */
-    public static SsTable createFromCompressTable(String filePath, int partSize, TreeMap<String, Command> compressTable) {
-        SsTable ssTable = new SsTable(filePath, partSize);
-        ssTable.initFromMemTable(compressTable,"initFromCompressTable");
+    public static SsTable createFromCompressTable(String filePath, int partSize, SortedMap<String, Command> compressTable,
+                                                  List<RangeRmCommand> rangeTombstones) {
+        return createFromCompressTable(filePath, partSize, compressTable, rangeTombstones, null, null, null, false, false);
+    }
+
+    /**
+     * @描述 根据压缩表创建ssTable，读的时候经过块缓存
+     * @param filePath
+     * @param partSize
+     * @param compressTable
+     * @param rangeTombstones 保留下来的范围删除
+     * @param blockCache
+     * @param rateLimiter 写文件的限速器，可以为null
+     * @param valueLog 大value写进值日志，已经是指针的原样保留，可以为null
+     * @param directIo 是否绕过页缓存写
+     * @param hashIndex 每个数据段后面是否写哈希索引
+     * @return SsTable
+     * @Author taoxier
+     */
+    public static SsTable createFromCompressTable(String filePath, int partSize, SortedMap<String, Command> compressTable,
+                                                  List<RangeRmCommand> rangeTombstones, BlockCache blockCache,
+                                                  RateLimiter rateLimiter, ValueLog valueLog, boolean directIo,
+                                                  boolean hashIndex) {
+        SsTable ssTable = new SsTable(filePath, partSize, blockCache);
+        ssTable.initFromMemTable(compressTable.values(), rangeTombstones, rateLimiter, valueLog, directIo, hashIndex,
+                "initFromCompressTable");
         return ssTable;
     }
 
@@ -214,7 +355,18 @@ public class SsTable implements Closeable {
      * @Author taoxier
      */
     public static SsTable createFromFile(String filePath) {
-        SsTable ssTable = new SsTable(filePath, 0);
+        return createFromFile(filePath, null);
+    }
+
+    /**
+     * @描述 根据文件创建ssTable，读的时候经过块缓存
+     * @param filePath
+     * @param blockCache
+     * @return SsTable
+     * @Author taoxier
+     */
+    public static SsTable createFromFile(String filePath, BlockCache blockCache) {
+        SsTable ssTable = new SsTable(filePath, 0, blockCache);
         ssTable.initFromFile();
         return ssTable;
     }
@@ -226,7 +378,24 @@ public class SsTable implements Closeable {
      * @Author taoxier
      */
     public Command query(String key) {
+        if (!mayContain(key)) {
+            return null;
+        }
+        if (partitioned) {
+            return withGlobalSeq(queryPartitioned(key));
+        }
+        if (binary) {
+            return withGlobalSeq(queryBinary(key));
+        }
         try {
+            if (legacy) {
+                //旧格式的表按普通字符串存key，不能用UTF-8表示的key不会在里面
+                String legacyKey = BytesUtil.byteStringToUtf8(key);
+                if (!BytesUtil.utf8ToByteString(legacyKey).equals(key)) {
+                    return null;
+                }
+                key = legacyKey;
+            }
             LinkedList<Position> sparseKeyPositionSection = new LinkedList<>();
             Position lastSmallPosition = null;
             Position firstBigPosition = null;
@@ -269,18 +438,16 @@ public class SsTable implements Closeable {
             }
 
             //在区间寻找key
-            byte[] dataPart = new byte[(int) len];
-            tableFile.seek(start);
-            tableFile.read(dataPart);//获取区间的数据
+            byte[] dataPart = read(start, (int) len);//获取区间的数据
             int dataPartStart = 0;
 
             for (Position position : sparseKeyPositionSection) {
-                JSONObject dataPartJson = JSONObject.parseObject(new String(dataPart, dataPartStart, (int) position.getLen()));//指定的起始位置和长度
+                JSONObject dataPartJson = JSONObject.parseObject(new String(dataPart, dataPartStart, (int) position.getLen(), StandardCharsets.UTF_8));//指定的起始位置和长度
 //                LoggerUtil.debug(LOGGER, "[SsTable][initFromFile][dataPartJson]: {}", dataPartJson);
                 LoggerUtil.debug(LOGGER, logFormat, "initFromFile", "dataPartJson", dataPartJson);
                 if (dataPartJson.containsKey(key)) {
                     JSONObject value = dataPartJson.getJSONObject(key);
-                    return CommandUtil.jsonToCommand(value);//将value对象转换为特定的类型，并返回该对象
+                    return decode(value);//将value对象转换为特定的类型，并返回该对象
                 }
                 dataPartStart += (int) position.getLen();//更新dataPartStart的值，移动到下一个Position的起始位置
             }
@@ -290,12 +457,575 @@ public class SsTable implements Closeable {
         }
     }
 
+    /**
+     * @描述 在二进制编码的表中查询：数据段按key有序，key只可能在第一个key不大于它的那一段里，
+     * 段内逐条直接比较记录里的key，只解码命中的那一条
+     * @param key
+     * @return Command
+     * @Author taoxier
+     */
+    private Command queryBinary(String key) {
+        Map.Entry<String, Position> part = sparseIndex.floorEntry(key);
+        if (part == null) {
+            return null;
+        }
+        return searchPart(part.getValue(), key);
+    }
+
+    /**
+     * @描述 在两级索引的表中查询：顶层索引找到索引块，索引块里最后一个不大于key的条目就是key所在的数据段
+     * @param key
+     * @return Command
+     * @Author taoxier
+     */
+    private Command queryPartitioned(String key) {
+        Map.Entry<String, Position> block = topIndex.floorEntry(key);
+        if (block == null) {
+            return null;
+        }
+        ByteBuffer index = ByteBuffer.wrap(readBlock(block.getValue()));
+        Position part = null;
+        int p = 0;
+        while (p < index.limit()) {
+            if (CommandCodec.compareByteString(index, p, key) > 0) {
+                break;
+            }
+            p += 4 + index.getInt(p);
+            part = new Position(index.getLong(p), index.getLong(p + 8));
+            p += 16;
+        }
+        if (part == null) {
+            return null;
+        }
+        return searchPart(part, key);
+    }
+
+    /**
+     * @描述 在一个数据段内查找key，有哈希索引时直接定位到记录，探测次数用完时退回顺序查找
+     * @param position
+     * @param key
+     * @return Command
+     * @Author taoxier
+     */
+    private Command searchPart(Position position, String key) {
+        ByteBuffer data = ByteBuffer.wrap(readBlock(position));
+        int end = data.limit();
+        if (hashIndex) {
+            int offset = DataBlockHashIndex.lookup(data, key);
+            if (offset == DataBlockHashIndex.NOT_FOUND) {
+                return null;
+            }
+            if (offset >= 0) {
+                return CommandCodec.decode(data, offset + 4);
+            }
+            end = DataBlockHashIndex.recordsLength(data);
+        }
+        int p = 0;
+        while (p < end) {
+            int len = data.getInt(p);
+            int c = CommandCodec.compareKey(data, p + 4, key);
+            if (c == 0) {
+                return CommandCodec.decode(data, p + 4);
+            }
+            if (c > 0) {
+                break;
+            }
+            p += 4 + len;
+        }
+        return null;
+    }
+
+    /**
+     * @描述 解码索引：连续的4字节key长度 + key + 开始位置 + 长度
+     * @param bytes
+     * @return TreeMap<String, Position>
+     * @Author taoxier
+     */
+    private static TreeMap<String, Position> decodeIndex(byte[] bytes) {
+        TreeMap<String, Position> index = new TreeMap<>();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int p = 0;
+        while (p < bytes.length) {
+            int keyLen = buffer.getInt(p);
+            String key = CommandCodec.getByteString(buffer, p + 4, keyLen);
+            p += 4 + keyLen;
+            index.put(key, new Position(buffer.getLong(p), buffer.getLong(p + 8)));
+            p += 16;
+        }
+        return index;
+    }
+
+    /**
+     * @描述 完整的稀疏索引：每个数据段的第一个key和位置，两级索引的表逐个读索引块，不经过块缓存
+     * 旧格式的表key转成字节串，这时的顺序不一定和数据段的顺序一致，见isLegacy
+     * @param
+     * @return TreeMap<String, Position>
+     * @Author taoxier
+     */
+    public TreeMap<String, Position> partIndex() {
+        if (!partitioned) {
+            if (!legacy) {
+                return new TreeMap<>(sparseIndex);
+            }
+            TreeMap<String, Position> index = new TreeMap<>();
+            for (Map.Entry<String, Position> entry : sparseIndex.entrySet()) {
+                index.put(BytesUtil.utf8ToByteString(entry.getKey()), entry.getValue());
+            }
+            return index;
+        }
+        TreeMap<String, Position> index = new TreeMap<>();
+        for (Position block : topIndex.values()) {
+            index.putAll(decodeIndex(read(block.getStart(), (int) block.getLen())));
+        }
+        return index;
+    }
+
+    /**
+     * @描述 按key升序读[startKey, endKey)内的命令，最多limit条，只读和区间重叠的数据段，经过块缓存
+     * 同一个key在表里只有一条；旧格式的表读全部数据段后再过滤排序
+     * @param startKey
+     * @param endKey 为null表示到最后
+     * @param limit
+     * @return List<Command>
+     * @Author taoxier
+     */
+    public List<Command> scan(String startKey, String endKey, int limit) {
+        List<Command> result = new ArrayList<>();
+        if (!overlaps(startKey, endKey)) {
+            return result;
+        }
+        if (!binary) {
+            TreeMap<String, Command> sorted = new TreeMap<>();
+            for (Position position : partIndex().values()) {
+                for (Command command : readDataPart(position)) {
+                    if (inRange(command.getKey(), startKey, endKey)) {
+                        sorted.put(command.getKey(), command);
+                    }
+                }
+            }
+            for (Command command : sorted.values()) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                result.add(command);
+            }
+            return result;
+        }
+        if (!partitioned) {
+            scanParts(sparseIndex, startKey, endKey, limit, result);
+            return withGlobalSeq(result);
+        }
+        String from = topIndex.floorKey(startKey);
+        for (Map.Entry<String, Position> block : (from == null ? topIndex : topIndex.tailMap(from, true)).entrySet()) {
+            if (endKey != null && block.getKey().compareTo(endKey) >= 0) {
+                break;
+            }
+            if (scanParts(decodeIndex(readBlock(block.getValue())), startKey, endKey, limit, result)) {
+                break;
+            }
+        }
+        return withGlobalSeq(result);
+    }
+
+    /**
+     * @描述 表里可能有key：在[minKey, maxKey]内，不知道key范围时总是true
+     * @param key
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean mayContain(String key) {
+        return !keyRangeKnown || minKey != null && key.compareTo(minKey) >= 0 && key.compareTo(maxKey) <= 0;
+    }
+
+    /**
+     * @描述 [minKey, maxKey]和[startKey, endKey)是否相交，不知道key范围时总是true
+     * @param startKey
+     * @param endKey 为null表示到最后
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean overlaps(String startKey, String endKey) {
+        return !keyRangeKnown || minKey != null && maxKey.compareTo(startKey) >= 0
+                && (endKey == null || minKey.compareTo(endKey) < 0);
+    }
+
+    /**
+     * @描述 是否知道key范围，不知道时firstKey、lastKey返回null
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean isKeyRangeKnown() {
+        return keyRangeKnown;
+    }
+
+    /**
+     * @描述 表里第一个key，旧格式的表返回null
+     * @param
+     * @return String
+     * @Author taoxier
+     */
+    public String firstKey() {
+        return minKey;
+    }
+
+    /**
+     * @描述 表里最后一个key，旧格式的表返回null
+     * @param
+     * @return String
+     * @Author taoxier
+     */
+    public String lastKey() {
+        return maxKey;
+    }
+
+    private String readFirstKey() {
+        TreeMap<String, Position> index = partitioned ? topIndex : sparseIndex;
+        return index.isEmpty() ? null : index.firstKey();
+    }
+
+    /**
+     * @描述 读最后一个数据段得到最后一个key，版本8之前的表打开时用
+     * @param
+     * @return String
+     * @Author taoxier
+     */
+    private String readLastKey() {
+        TreeMap<String, Position> parts = partitioned ? topIndex : sparseIndex;
+        if (parts.isEmpty()) {
+            return null;
+        }
+        if (partitioned) {
+            parts = decodeIndex(readBlock(parts.lastEntry().getValue()));
+        }
+        List<Command> commands = decodePart(readBlock(parts.lastEntry().getValue()));
+        return commands.get(commands.size() - 1).getKey();
+    }
+
+    /**
+     * @描述 导入的表把读出来的命令换成表的序列号
+     * @param command
+     * @return Command
+     * @Author taoxier
+     */
+    private Command withGlobalSeq(Command command) {
+        if (globalSeq > 0 && command != null) {
+            command.setSeq(globalSeq);
+        }
+        return command;
+    }
+
+    private List<Command> withGlobalSeq(List<Command> commands) {
+        if (globalSeq > 0) {
+            for (Command command : commands) {
+                command.setSeq(globalSeq);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * @描述 从第一个可能包含startKey的数据段开始顺序读，放进result
+     * @param parts 数据段第一个key到位置
+     * @param startKey
+     * @param endKey
+     * @param limit
+     * @param result
+     * @return boolean 是否已经读到endKey或者够limit条
+     * @Author taoxier
+     */
+    private boolean scanParts(TreeMap<String, Position> parts, String startKey, String endKey, int limit,
+                              List<Command> result) {
+        String from = parts.floorKey(startKey);
+        for (Map.Entry<String, Position> part : (from == null ? parts : parts.tailMap(from, true)).entrySet()) {
+            if (endKey != null && part.getKey().compareTo(endKey) >= 0) {
+                return true;
+            }
+            for (Command command : decodePart(readBlock(part.getValue()))) {
+                if (endKey != null && command.getKey().compareTo(endKey) >= 0) {
+                    return true;
+                }
+                if (command.getKey().compareTo(startKey) >= 0) {
+                    result.add(command);
+                    if (result.size() >= limit) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean inRange(String key, String startKey, String endKey) {
+        return key.compareTo(startKey) >= 0 && (endKey == null || key.compareTo(endKey) < 0);
+    }
+
+    /**
+     * @描述 解码连续的4字节长度 + 记录
+     * @param bytes
+     * @return List<Command>
+     * @Author taoxier
+     */
+    private static List<Command> decodeRecords(byte[] bytes) {
+        return decodeRecords(bytes, bytes.length);
+    }
+
+    private static List<Command> decodeRecords(byte[] bytes, int end) {
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        List<Command> commands = new ArrayList<>();
+        int p = 0;
+        while (p < end) {
+            int len = data.getInt(p);
+            commands.add(CommandCodec.decode(data, p + 4));
+            p += 4 + len;
+        }
+        return commands;
+    }
+
+    /**
+     * @描述 解码一个数据段里的全部记录，跳过末尾的哈希索引
+     * @param block
+     * @return List<Command>
+     * @Author taoxier
+     */
+    private List<Command> decodePart(byte[] block) {
+        if (!hashIndex) {
+            return decodeRecords(block);
+        }
+        return decodeRecords(block, DataBlockHashIndex.recordsLength(ByteBuffer.wrap(block)));
+    }
+
+    /**
+     * @描述 覆盖key且序列号不大于seq的最新范围删除
+     * @param key
+     * @param seq
+     * @return RangeRmCommand
+     * @Author taoxier
+     */
+    public RangeRmCommand rangeTombstone(String key, long seq) {
+        RangeRmCommand result = null;
+        for (RangeRmCommand rangeRmCommand : rangeTombstones) {
+            if (rangeRmCommand.getSeq() <= seq && rangeRmCommand.contains(key)
+                    && (result == null || rangeRmCommand.getSeq() > result.getSeq())) {
+                result = rangeRmCommand;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @描述 读取一个数据段里的全部命令，用于压缩，不经过块缓存，避免把热点块挤出去
+     * @param position
+     * @return List<Command>
+     * @Author taoxier
+     */
+    public List<Command> readDataPart(Position position) {
+        byte[] partDataBytes = read(position.getStart(), (int) position.getLen());
+        if (binary) {
+            return withGlobalSeq(decodePart(partDataBytes));
+        }
+        JSONObject dataObject = JSONObject.parseObject(new String(partDataBytes, StandardCharsets.UTF_8));
+        List<Command> commands = new ArrayList<>(dataObject.size());
+        for (String key : dataObject.keySet()) {
+            Command cmd = decode(dataObject.getJSONObject(key));
+            if (cmd != null) {
+                commands.add(cmd);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * @描述 JSON转命令，旧格式的表把key和value转成字节串
+     * @param value
+     * @return Command
+     * @Author taoxier
+     */
+    private Command decode(JSONObject value) {
+        Command command = CommandUtil.jsonToCommand(value);
+        if (legacy && command != null) {
+            BytesUtil.fromLegacy(command);
+        }
+        return command;
+    }
+
+    /**
+     * @描述 读一个块（索引块或数据段），先查块缓存，没有再读文件并放入缓存
+     * @param position
+     * @return byte[]
+     * @Author taoxier
+     */
+    private byte[] readBlock(Position position) {
+        if (blockCache == null) {
+            return read(position.getStart(), (int) position.getLen());
+        }
+        byte[] block = blockCache.get(id, position.getStart());
+        if (block == null) {
+            block = read(position.getStart(), (int) position.getLen());
+            blockCache.put(id, position.getStart(), block);
+        }
+        return block;
+    }
+
+    /**
+     * @描述 按位置读文件，不移动文件指针，多个线程可以同时读
+     * @param start
+     * @param len
+     * @return byte[]
+     * @Author taoxier
+     */
+    private byte[] read(long start, int len) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(len);
+            while (buffer.hasRemaining()) {
+                if (tableFile.getChannel().read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("-[异常抛出]：读ssTable越界 " + filePath);
+                }
+            }
+            return buffer.array();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 增加引用，失败说明表已经被释放
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean ref() {
+        while (true) {
+            int n = refs.get();
+            if (n <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @描述 释放引用，归零时关闭文件，已淘汰的表同时删除文件
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void unref() {
+        if (refs.decrementAndGet() != 0) {
+            return;
+        }
+        try {
+            close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (obsolete) {
+            File file = new File(filePath);
+            if (file.exists() && !file.delete()) {
+                LoggerUtil.info(LOGGER, logFormat, "unref", "deleteFail", filePath);
+            }
+        }
+    }
+
+    /**
+     * @描述 标记为已淘汰
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void markObsolete() {
+        this.obsolete = true;
+    }
+
+    public long getMaxSeq() {
+        return globalSeq > 0 ? globalSeq : tableMetaInfo.getMaxSeq();
+    }
+
+    /**
+     * @描述 文件大小
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public long getFileSize() {
+        try {
+            return tableFile.length();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getMinSeq() {
+        return minSeq;
+    }
+
+    public void setMinSeq(long minSeq) {
+        this.minSeq = minSeq;
+    }
+
+    public long getGlobalSeq() {
+        return globalSeq;
+    }
+
+    /**
+     * @描述 设置导入表的序列号，表里全部记录都按这个序列号读
+     * @param globalSeq
+     * @return void
+     * @Author taoxier
+     */
+    public void setGlobalSeq(long globalSeq) {
+        this.globalSeq = globalSeq;
+        if (globalSeq > 0) {
+            this.minSeq = globalSeq;
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @描述 文件名，MANIFEST中用它标识ssTable
+     * @param
+     * @return String
+     * @Author taoxier
+     */
+    public String getFileName() {
+        return new File(filePath).getName();
+    }
+
+    /**
+     * @描述 是否是旧格式的表，旧格式按普通字符串排序，和字节串的顺序可能不同
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public List<RangeRmCommand> getRangeTombstones() {
+        return rangeTombstones;
+    }
+
+    /**
+     * @描述 完整的稀疏索引，两级索引的表返回null，遍历数据段用partIndex
+     * @param
+     * @return TreeMap<String, Position>
+     * @Author taoxier
+     */
     public TreeMap<String, Position> getSparseIndex() {
         return sparseIndex;
     }
 
-    public void setSparseIndex(TreeMap<String, Position> sparseIndex) {
-        this.sparseIndex = sparseIndex;
+    public TreeMap<String, Position> getTopIndex() {
+        return topIndex;
     }
 
     public TableMetaInfo getTableMetaInfo() {
@@ -316,6 +1046,6 @@ public class SsTable implements Closeable {
 
     @Override
     public void close() throws IOException {
-
+        tableFile.close();
     }
 }
@@ -0,0 +1,604 @@
+package model.sstable;
+
+import model.Position;
+import model.command.Command;
+import model.command.RangeRmCommand;
+import model.command.SetCommand;
+import model.vlog.ValueLog;
+import utils.BytesUtil;
+import utils.CommandCodec;
+import utils.DirectIoUtil;
+import utils.RateLimiter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/2 21:10
+ * @注释 ssTable流式构建器
+ * 按key有序地逐条写入命令，数据先攒进可复用的堆外缓冲区，满了就经FileChannel刷盘；
+ * 每写完一个数据段就往当前索引块追加一条稀疏索引，索引块攒够大小就紧跟着数据段写出去，并在顶层索引登记一条；
+ * 最后写顶层索引区、范围删除区、key范围区和定长的文件索引信息。
+ * 命令用CommandCodec直接编码进缓冲区，每条是4字节长度 + 记录；索引块和顶层索引每条都是4字节key长度 + key + 开始位置 + 长度。
+ * 开了哈希索引时每个数据段的记录后面紧跟着它的哈希索引（见DataBlockHashIndex），数据段的长度把它算在内。
+ * 构建过程中占用的内存只和缓冲区大小、顶层索引和范围删除条数有关，和表大小基本无关。
+ * 持久化和压缩可以用直接I/O写，不经过页缓存，避免挤掉前台读要用的热数据：缓冲区按块对齐，
+ * 每次只写对齐的部分，最后补零写满一块再截断到实际长度；不支持直接I/O时退回普通写，每写一段就刷盘，
+ * 让后台写的脏页尽快变干净、可以被直接回收
+ */
+public class SsTableBuilder implements Closeable {
+
+    /**
+     * 默认缓冲区大小
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 每个线程复用一块堆外缓冲区，避免每次构建都重新分配；只给一次性建完的表用（持久化、压缩），
+     * 同一个线程上同时开着两个用它的构建器会互相覆盖
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE));
+
+    /**
+     * 默认索引块大小，索引块超过这个大小就写出去
+     */
+    public static final int DEFAULT_INDEX_BLOCK_SIZE = 4 * 1024;
+
+    /**
+     * 要求直接I/O但不支持时，每写这么多字节刷一次盘
+     */
+    public static final long BYTES_PER_SYNC = 1024 * 1024;
+
+    /**
+     * 文件路径
+     */
+    private final String filePath;
+
+    /**
+     * 文件通道
+     */
+    private final FileChannel channel;
+
+    /**
+     * 写缓冲区
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * 顶层索引，每个索引块一条
+     */
+    private final TreeMap<String, Position> topIndex;
+
+    /**
+     * 索引块大小
+     */
+    private final int indexBlockSize;
+
+    /**
+     * 写文件的限速器，为null表示不限速
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * 值日志，为null表示不做键值分离
+     */
+    private final ValueLog valueLog;
+
+    /**
+     * 是否要求绕过页缓存
+     */
+    private final boolean directIo;
+
+    /**
+     * 直接I/O时的对齐字节数，为0表示经过页缓存写
+     */
+    private final int alignment;
+
+    /**
+     * 缓冲区里一次能放下的最大数据，直接I/O时缓冲区开头可能留着上次没对齐的尾巴
+     */
+    private final int inlineLimit;
+
+    /**
+     * 上次刷盘后写了多少字节
+     */
+    private long bytesSinceSync;
+
+    /**
+     * 正在攒的索引块
+     */
+    private ByteBuffer indexBlock;
+
+    /**
+     * 正在攒的索引块的第一个key
+     */
+    private String indexBlockFirstKey;
+
+    /**
+     * 范围删除，条数很少，最后整体写入
+     */
+    private final List<RangeRmCommand> rangeTombstones;
+
+    /**
+     * 文件索引信息
+     */
+    private final TableMetaInfo tableMetaInfo;
+
+    /**
+     * 当前写到的文件位置（包括还在缓冲区里的数据）
+     */
+    private long position;
+
+    /**
+     * 当前数据段的开始位置
+     */
+    private long partStart;
+
+    /**
+     * 当前数据段已写入的命令数
+     */
+    private int partCount;
+
+    /**
+     * 当前数据段的第一个key
+     */
+    private String partFirstKey;
+
+    /**
+     * 表内最小序列号
+     */
+    private long minSeq = Long.MAX_VALUE;
+
+    /**
+     * 当前数据段每条记录key的哈希和在数据段内的偏移，开了哈希索引时才有
+     */
+    private int[] partHashes;
+    private int[] partOffsets;
+
+    private boolean finished;
+
+    public SsTableBuilder(String filePath, int partSize) {
+        this(filePath, partSize, DEFAULT_INDEX_BLOCK_SIZE);
+    }
+
+    public SsTableBuilder(String filePath, int partSize, int indexBlockSize) {
+        this(filePath, partSize, indexBlockSize, null);
+    }
+
+    public SsTableBuilder(String filePath, int partSize, int indexBlockSize, RateLimiter rateLimiter) {
+        this(filePath, partSize, indexBlockSize, rateLimiter, null);
+    }
+
+    public SsTableBuilder(String filePath, int partSize, int indexBlockSize, RateLimiter rateLimiter, ValueLog valueLog) {
+        this(filePath, partSize, indexBlockSize, rateLimiter, valueLog, false);
+    }
+
+    /**
+     * @描述 构造方法
+     * @param filePath
+     * @param partSize
+     * @param indexBlockSize
+     * @param rateLimiter 写文件的限速器，可以为null
+     * @param valueLog 值日志，可以为null
+     * @param directIo 是否绕过页缓存写，持久化和压缩用
+     * @return null
+     * @Author taoxier
+     */
+    public SsTableBuilder(String filePath, int partSize, int indexBlockSize, RateLimiter rateLimiter, ValueLog valueLog,
+                          boolean directIo) {
+        this(filePath, partSize, indexBlockSize, rateLimiter, valueLog, directIo, false);
+    }
+
+    /**
+     * @描述 构造方法
+     * @param filePath
+     * @param partSize
+     * @param indexBlockSize
+     * @param rateLimiter 写文件的限速器，可以为null
+     * @param valueLog 值日志，可以为null
+     * @param directIo 是否绕过页缓存写，持久化和压缩用
+     * @param threadBuffer 是否用线程复用的缓冲区，只有在建完之前不会在同一个线程上再开构建器时才能用；
+     *                     否则单独分配一块，例如调用方一直开着的SsTableWriter
+     * @return null
+     * @Author taoxier
+     */
+    SsTableBuilder(String filePath, int partSize, int indexBlockSize, RateLimiter rateLimiter, ValueLog valueLog,
+                   boolean directIo, boolean threadBuffer) {
+        this.filePath = filePath;
+        this.rateLimiter = rateLimiter;
+        this.valueLog = valueLog;
+        this.directIo = directIo;
+        this.indexBlockSize = indexBlockSize;
+        this.tableMetaInfo = new TableMetaInfo();
+        this.tableMetaInfo.setPartSize(partSize);
+        this.tableMetaInfo.setVersion(TableMetaInfo.FORMAT_VERSION);
+        this.topIndex = new TreeMap<>();
+        this.indexBlock = ByteBuffer.allocate(indexBlockSize + 256);
+        this.rangeTombstones = new ArrayList<>();
+        Path path = Paths.get(filePath);
+        FileChannel directChannel = null;
+        ByteBuffer alignedBuffer = null;
+        int directAlignment = 0;
+        if (directIo) {
+            directAlignment = DirectIoUtil.alignment(path);
+            alignedBuffer = DirectIoUtil.allocateAligned(DEFAULT_BUFFER_SIZE, directAlignment);
+            if (alignedBuffer != null) {
+                directChannel = DirectIoUtil.openForWrite(path);
+            }
+        }
+        try {
+            this.channel = directChannel != null ? directChannel : FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (directChannel != null) {
+            this.alignment = directAlignment;
+            this.buffer = alignedBuffer;
+        } else {
+            this.alignment = 0;
+            this.buffer = threadBuffer ? BUFFER.get() : ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+        }
+        this.inlineLimit = buffer.capacity() - alignment;
+        ((Buffer) this.buffer).clear();
+        this.position = 0;
+        this.tableMetaInfo.setDataStart(position);
+    }
+
+    /**
+     * @描述 追加一条命令，调用方需保证key递增；有值日志时大value写进值日志，表里只存指针
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    public void add(Command command) {
+        String key = command.getKey();
+        if (valueLog != null && command instanceof SetCommand) {
+            SetCommand set = (SetCommand) command;
+            if (set.getValuePointer() == null && valueLog.shouldSeparate(set.getValue())) {
+                SetCommand separated = new SetCommand(key, null, set.getExpireAt());
+                separated.setValuePointer(valueLog.append(key, set.getValue()));
+                separated.setSeq(set.getSeq());
+                command = separated;
+            }
+        }
+        if (tableMetaInfo.getMinKey() == null) {
+            tableMetaInfo.setMinKey(key);
+        }
+        tableMetaInfo.setMaxKey(key);
+        if (partCount == 0) {
+            //新开一个数据段
+            partStart = position;
+            partFirstKey = key;
+        }
+        if (partHashes != null) {
+            partHashes[partCount] = DataBlockHashIndex.hash(key);
+            partOffsets[partCount] = (int) (position - partStart);
+        }
+        putRecord(command);
+        partCount++;
+        trackSeq(command.getSeq());
+
+        //达到分段阈值，结束当前数据段
+        if (partCount >= tableMetaInfo.getPartSize()) {
+            finishPart();
+        }
+    }
+
+    /**
+     * @描述 追加一条范围删除，和数据的写入顺序无关
+     * @param rangeRmCommand
+     * @return void
+     * @Author taoxier
+     */
+    public void addRangeTombstone(RangeRmCommand rangeRmCommand) {
+        rangeTombstones.add(rangeRmCommand);
+        trackSeq(rangeRmCommand.getSeq());
+    }
+
+    private void trackSeq(long seq) {
+        if (seq > tableMetaInfo.getMaxSeq()) {
+            tableMetaInfo.setMaxSeq(seq);
+        }
+        minSeq = Math.min(minSeq, seq);
+    }
+
+    /**
+     * @描述 结束当前数据段，在索引块中登记稀疏索引，索引块满了就写出去
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void finishPart() {
+        if (partHashes != null) {
+            int recordsLen = (int) (position - partStart);
+            int[] slots = DataBlockHashIndex.build(partHashes, partOffsets, partCount);
+            for (int slot : slots) {
+                putInt(slot);
+            }
+            putInt(slots.length);
+            putInt(recordsLen);
+        }
+        int size = 4 + partFirstKey.length() + 16;
+        if (indexBlock.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(indexBlock.capacity() * 2, indexBlock.position() + size));
+            ((Buffer) indexBlock).flip();
+            grown.put(indexBlock);
+            indexBlock = grown;
+        }
+        if (indexBlockFirstKey == null) {
+            indexBlockFirstKey = partFirstKey;
+        }
+        CommandCodec.putByteString(indexBlock, partFirstKey);
+        indexBlock.putLong(partStart);
+        indexBlock.putLong(position - partStart);
+        partCount = 0;
+        partFirstKey = null;
+        if (indexBlock.position() >= indexBlockSize) {
+            finishIndexBlock();
+        }
+    }
+
+    /**
+     * @描述 把攒好的索引块写到当前位置，并登记顶层索引
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void finishIndexBlock() {
+        long start = position;
+        put(indexBlock.array(), 0, indexBlock.position());
+        topIndex.put(indexBlockFirstKey, new Position(start, position - start));
+        ((Buffer) indexBlock).clear();
+        indexBlockFirstKey = null;
+    }
+
+    /**
+     * @描述 写完剩余数据段、索引块、顶层索引区和文件索引信息，并刷盘
+     * @param
+     * @return TableMetaInfo
+     * @Author taoxier
+     */
+    public TableMetaInfo finish() {
+        if (finished) {
+            return tableMetaInfo;
+        }
+        //最后可能剩点
+        if (partCount > 0) {
+            finishPart();
+        }
+        if (indexBlock.position() > 0) {
+            finishIndexBlock();
+        }
+        tableMetaInfo.setDataLen(position);//记录数据区长度，包括夹在中间的索引块
+
+        //逐条写顶层索引
+        tableMetaInfo.setIndexStart(position);
+        for (Map.Entry<String, Position> entry : topIndex.entrySet()) {
+            Position p = entry.getValue();
+            putByteString(entry.getKey());
+            putLong(p.getStart());
+            putLong(p.getLen());
+        }
+        tableMetaInfo.setIndexLen(position - tableMetaInfo.getIndexStart());//记录顶层索引区长度
+
+        //范围删除区，格式和数据段一样
+        tableMetaInfo.setRangeDelStart(position);
+        for (RangeRmCommand rangeRmCommand : rangeTombstones) {
+            putRecord(rangeRmCommand);
+        }
+        tableMetaInfo.setRangeDelLen(position - tableMetaInfo.getRangeDelStart());
+
+        //key范围区，查找时据此跳过不相交的表，没有数据时为空
+        tableMetaInfo.setKeyRangeStart(position);
+        if (tableMetaInfo.getMinKey() != null) {
+            putByteString(tableMetaInfo.getMinKey());
+            putByteString(tableMetaInfo.getMaxKey());
+        }
+        tableMetaInfo.setKeyRangeLen(position - tableMetaInfo.getKeyRangeStart());
+        tableMetaInfo.setMinSeq(getMinSeq());
+
+        //表里的指针要在值日志落盘之后才能生效
+        if (valueLog != null) {
+            valueLog.sync();
+        }
+
+        //定长的文件索引信息
+        int footerSize = tableMetaInfo.footerSize();
+        ensureRemaining(footerSize);
+        tableMetaInfo.writeToBuffer(buffer);
+        position += footerSize;
+
+        try {
+            flushTail();
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finished = true;
+        close();
+        return tableMetaInfo;
+    }
+
+    /**
+     * @描述 写一条4字节长度 + 记录，放得进缓冲区时直接编码进去，否则先编码到线程复用的缓冲区再分段写
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    private void putRecord(Command command) {
+        int size = CommandCodec.encodedSize(command);
+        if (size + 4 <= inlineLimit) {
+            ensureRemaining(size + 4);
+            buffer.putInt(size);
+            CommandCodec.encode(command, buffer);
+            position += size + 4;
+        } else {
+            ByteBuffer encoded = CommandCodec.encodeWithLength(command);
+            put(encoded.array(), 0, encoded.limit());
+        }
+    }
+
+    private void putByteString(String s) {
+        int size = 4 + s.length();
+        if (size <= inlineLimit) {
+            ensureRemaining(size);
+            CommandCodec.putByteString(buffer, s);
+            position += size;
+        } else {
+            putInt(s.length());
+            put(BytesUtil.toBytes(s), 0, s.length());
+        }
+    }
+
+    private void putInt(int v) {
+        ensureRemaining(4);
+        buffer.putInt(v);
+        position += 4;
+    }
+
+    private void putLong(long v) {
+        ensureRemaining(8);
+        buffer.putLong(v);
+        position += 8;
+    }
+
+    private void put(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        //比缓冲区还大的数据分多次写
+        while (offset < end) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int len = Math.min(buffer.remaining(), end - offset);
+            buffer.put(bytes, offset, len);
+            offset += len;
+        }
+        position += length;
+    }
+
+    private void ensureRemaining(int len) {
+        if (buffer.remaining() < len) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 把缓冲区内容写到文件；直接I/O时只写对齐的部分，剩下的尾巴移到缓冲区开头
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void flushBuffer() throws IOException {
+        ((Buffer) buffer).flip();
+        int limit = buffer.limit();
+        if (alignment > 0) {
+            ((Buffer) buffer).limit(limit / alignment * alignment);
+        }
+        int len = buffer.remaining();
+        if (rateLimiter != null) {
+            rateLimiter.acquire(len);
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).limit(limit);
+        buffer.compact();
+        bytesSinceSync += len;
+        if (directIo && alignment == 0 && bytesSinceSync >= BYTES_PER_SYNC) {
+            //不能绕过页缓存时尽快刷盘，干净的页可以直接回收，不用等回写
+            channel.force(false);
+            bytesSinceSync = 0;
+        }
+    }
+
+    /**
+     * @描述 写出缓冲区里剩下的全部内容；直接I/O时补零写满最后一块，再截断到实际长度
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void flushTail() throws IOException {
+        if (alignment > 0 && buffer.position() % alignment != 0) {
+            int padding = alignment - buffer.position() % alignment;
+            for (int i = 0; i < padding; i++) {
+                buffer.put((byte) 0);
+            }
+            flushBuffer();
+            channel.truncate(position);
+        } else {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * @描述 每个数据段后面是否写哈希索引，要在写入第一条命令之前设置
+     * @param hashIndex
+     * @return void
+     * @Author taoxier
+     */
+    public void setHashIndex(boolean hashIndex) {
+        if (position != tableMetaInfo.getDataStart()) {
+            throw new IllegalStateException("-[异常抛出]：已经开始写数据段 " + filePath);
+        }
+        if (hashIndex) {
+            int partSize = (int) tableMetaInfo.getPartSize();
+            partHashes = new int[partSize];
+            partOffsets = new int[partSize];
+            tableMetaInfo.setFlags(tableMetaInfo.getFlags() | TableMetaInfo.FLAG_HASH_INDEX);
+        } else {
+            partHashes = null;
+            partOffsets = null;
+            tableMetaInfo.setFlags(tableMetaInfo.getFlags() & ~TableMetaInfo.FLAG_HASH_INDEX);
+        }
+    }
+
+    public TreeMap<String, Position> getTopIndex() {
+        return topIndex;
+    }
+
+    public List<RangeRmCommand> getRangeTombstones() {
+        return rangeTombstones;
+    }
+
+    public long getMinSeq() {
+        return minSeq == Long.MAX_VALUE ? 0 : minSeq;
+    }
+
+    public TableMetaInfo getTableMetaInfo() {
+        return tableMetaInfo;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    @Override
+    public void close() {
+        try {
+            ((Buffer) buffer).clear();
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
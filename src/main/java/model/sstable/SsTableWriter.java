@@ -0,0 +1,147 @@
+package model.sstable;
+
+import model.command.SetCommand;
+import utils.BytesUtil;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/23 20:00
+ * @注释 离线生成ssTable，用NormalStore.ingestExternalFile导入，不经过wal、内存表和压缩
+ * 输入必须按key的字节序严格递增，每个key只能有一条；记录的序列号都是0，导入时由store给整张表分配一个序列号。
+ * 值不做键值分离，整张表只有set命令
+ * >java -cp target/classes model.sstable.SsTableWriter <input> <output>
+ * 输入文件每行一条：key \t value，UTF-8编码，已按key排好序
+ */
+public class SsTableWriter implements Closeable {
+
+    /**
+     * 默认每个数据段的条数
+     */
+    public static final int DEFAULT_PART_SIZE = 100;
+
+    private final SsTableBuilder builder;
+
+    /**
+     * 上一个key，检查输入有序
+     */
+    private String lastKey;
+
+    /**
+     * 已写入的条数
+     */
+    private long count;
+
+    private boolean finished;
+
+    public SsTableWriter(String filePath) {
+        this(filePath, DEFAULT_PART_SIZE);
+    }
+
+    public SsTableWriter(String filePath, int partSize) {
+        this(filePath, partSize, false);
+    }
+
+    /**
+     * @描述 构造方法
+     * @param filePath
+     * @param partSize
+     * @param hashIndex 每个数据段后面是否写哈希索引，见DataBlockHashIndex
+     * @return null
+     * @Author taoxier
+     */
+    public SsTableWriter(String filePath, int partSize, boolean hashIndex) {
+        this.builder = new SsTableBuilder(filePath, partSize);
+        this.builder.setHashIndex(hashIndex);
+    }
+
+    public void put(String key, String value) {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void put(byte[] key, byte[] value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * @描述 追加一条数据，key要比上一条大
+     * @param key
+     * @param value
+     * @param expireAt 过期的时间戳（毫秒），0表示不过期
+     * @return void
+     * @Author taoxier
+     */
+    public void put(byte[] key, byte[] value, long expireAt) {
+        if (finished) {
+            throw new IllegalStateException("-[异常抛出]：ssTable已经写完");
+        }
+        String byteKey = BytesUtil.toByteString(key);
+        if (lastKey != null && byteKey.compareTo(lastKey) <= 0) {
+            throw new IllegalArgumentException("-[异常抛出]：key没有严格递增 " + new String(key, StandardCharsets.UTF_8));
+        }
+        builder.add(new SetCommand(byteKey, BytesUtil.toByteString(value), expireAt));
+        lastKey = byteKey;
+        count++;
+    }
+
+    /**
+     * @描述 写完索引和文件索引信息并刷盘，之后文件可以导入
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void finish() {
+        if (count == 0) {
+            throw new IllegalStateException("-[异常抛出]：ssTable没有数据");
+        }
+        builder.finish();
+        finished = true;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @描述 没有调用finish时关闭，生成的文件不完整，删除
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void close() {
+        if (finished) {
+            return;
+        }
+        builder.close();
+        new File(builder.getFilePath()).delete();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("---【使用方法：<input> <output>，输入每行一条 key \\t value，按key排好序】---");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+             SsTableWriter writer = new SsTableWriter(args[1])) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                writer.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+            writer.finish();
+            System.out.println(args[1] + " " + writer.getCount() + " keys " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package model.sstable;
 
+import utils.CommandCodec;
+
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * @Author taoxier
@@ -9,6 +12,56 @@ import java.io.RandomAccessFile;
  */
 public class TableMetaInfo {
 
+    /**
+     * 当前写入的文件格式版本
+     * 0：初始格式
+     * 1：增加最大序列号
+     * 2：增加范围删除区
+     * 3：key和value改为字节串（见BytesUtil），布局不变
+     * 4：数据段、稀疏索引区和范围删除区改为二进制编码（见CommandCodec）
+     * 5：稀疏索引分成两级，索引块写在数据段之间，索引区只存顶层索引，布局不变
+     * 6：数据段里可能有值日志指针（见ValueLog），布局不变
+     * 7：数据段里可能有合并命令（见MergeCommand），布局不变
+     * 8：增加最小序列号和key范围区
+     * 9：增加标志位，数据段末尾可能有哈希索引（见DataBlockHashIndex）
+     */
+    public static final long FORMAT_VERSION = 9;
+
+    /**
+     * 从这个版本开始文件索引信息里有标志位
+     */
+    public static final long FLAGS_VERSION = 9;
+
+    /**
+     * 标志位：每个数据段的记录后面有哈希索引
+     */
+    public static final long FLAG_HASH_INDEX = 1;
+
+    /**
+     * 从这个版本开始文件索引信息里有最小序列号和key范围
+     */
+    public static final long KEY_RANGE_VERSION = 8;
+
+    /**
+     * 从这个版本开始稀疏索引分两级，之前的版本索引区就是完整的稀疏索引
+     */
+    public static final long PARTITIONED_INDEX_VERSION = 5;
+
+    /**
+     * 从这个版本开始是二进制编码，之前的版本是JSON
+     */
+    public static final long BINARY_VERSION = 4;
+
+    /**
+     * 从这个版本开始key和value是字节串，之前的版本是普通字符串
+     */
+    public static final long BYTE_STRING_VERSION = 3;
+
+    /**
+     * 初始格式文件索引信息所占字节数，6个long
+     */
+    private static final int BASE_FOOTER_SIZE = 8 * 6;
+
     /**
      * 版本号
      */
@@ -25,7 +78,7 @@ public class TableMetaInfo {
     private long dataLen;
 
     /**
-     * 稀疏索引区开始
+     * 稀疏索引区开始，版本5开始是顶层索引区
      */
     private long indexStart;
 
@@ -39,6 +92,70 @@ public class TableMetaInfo {
      */
     private long partSize;
 
+    /**
+     * 表内最大序列号，版本1开始有
+     */
+    private long maxSeq;
+
+    /**
+     * 范围删除区开始，版本2开始有
+     */
+    private long rangeDelStart;
+
+    /**
+     * 范围删除区长度，版本2开始有，为0表示没有范围删除
+     */
+    private long rangeDelLen;
+
+    /**
+     * 表内最小序列号，版本8开始有
+     */
+    private long minSeq;
+
+    /**
+     * key范围区开始，版本8开始有，依次是4字节长度 + 最小key、4字节长度 + 最大key
+     */
+    private long keyRangeStart;
+
+    /**
+     * key范围区长度，版本8开始有，为0表示表里没有数据（可能只有范围删除）
+     */
+    private long keyRangeLen;
+
+    /**
+     * 表里最小、最大的key，字节串，不含范围删除；版本8开始有，读文件时从key范围区读出来
+     */
+    private String minKey;
+    private String maxKey;
+
+    /**
+     * 标志位，版本9开始有，见FLAG_HASH_INDEX
+     */
+    private long flags;
+
+    /**
+     * @描述 文件索引信息所占字节数，新增字段写在初始格式之前，版本号始终在最后
+     * @param
+     * @return int
+     * @Author taoxier
+     */
+    public int footerSize() {
+        int size = BASE_FOOTER_SIZE;
+        if (version >= 1) {
+            size += 8;
+        }
+        if (version >= 2) {
+            size += 8 * 2;
+        }
+        if (version >= KEY_RANGE_VERSION) {
+            size += 8 * 3;
+        }
+        if (version >= FLAGS_VERSION) {
+            size += 8;
+        }
+        return size;
+    }
+
     /**
      * @描述 写文件
      * @param file
@@ -47,6 +164,21 @@ public class TableMetaInfo {
      */
     public void writeToFile(RandomAccessFile file) {
         try {
+            if (version >= FLAGS_VERSION) {
+                file.writeLong(flags);
+            }
+            if (version >= KEY_RANGE_VERSION) {
+                file.writeLong(minSeq);
+                file.writeLong(keyRangeStart);
+                file.writeLong(keyRangeLen);
+            }
+            if (version >= 2) {
+                file.writeLong(rangeDelStart);
+                file.writeLong(rangeDelLen);
+            }
+            if (version >= 1) {
+                file.writeLong(maxSeq);
+            }
             file.writeLong(partSize);
             file.writeLong(dataStart);
             file.writeLong(dataLen);
@@ -58,6 +190,36 @@ public class TableMetaInfo {
         }
     }
 
+    /**
+     * @描述 写缓冲区，字段顺序和writeToFile一致
+     * @param buffer
+     * @return void
+     * @Author taoxier
+     */
+    public void writeToBuffer(ByteBuffer buffer) {
+        if (version >= FLAGS_VERSION) {
+            buffer.putLong(flags);
+        }
+        if (version >= KEY_RANGE_VERSION) {
+            buffer.putLong(minSeq);
+            buffer.putLong(keyRangeStart);
+            buffer.putLong(keyRangeLen);
+        }
+        if (version >= 2) {
+            buffer.putLong(rangeDelStart);
+            buffer.putLong(rangeDelLen);
+        }
+        if (version >= 1) {
+            buffer.putLong(maxSeq);
+        }
+        buffer.putLong(partSize);
+        buffer.putLong(dataStart);
+        buffer.putLong(dataLen);
+        buffer.putLong(indexStart);
+        buffer.putLong(indexLen);
+        buffer.putLong(version);
+    }
+
     /**
      * @描述 读文件
      * @param file
@@ -87,6 +249,41 @@ public class TableMetaInfo {
             file.seek(fileLen - 8 * 6);
             tmi.setPartSize(file.readLong());
 
+            if (tmi.getVersion() >= 1) {
+                file.seek(fileLen - 8 * 7);
+                tmi.setMaxSeq(file.readLong());
+            }
+
+            if (tmi.getVersion() >= 2) {
+                file.seek(fileLen - 8 * 8);
+                tmi.setRangeDelLen(file.readLong());
+                file.seek(fileLen - 8 * 9);
+                tmi.setRangeDelStart(file.readLong());
+            }
+
+            if (tmi.getVersion() >= KEY_RANGE_VERSION) {
+                file.seek(fileLen - 8 * 10);
+                tmi.setKeyRangeLen(file.readLong());
+                file.seek(fileLen - 8 * 11);
+                tmi.setKeyRangeStart(file.readLong());
+                file.seek(fileLen - 8 * 12);
+                tmi.setMinSeq(file.readLong());
+                if (tmi.getKeyRangeLen() > 0) {
+                    byte[] bytes = new byte[(int) tmi.getKeyRangeLen()];
+                    file.seek(tmi.getKeyRangeStart());
+                    file.readFully(bytes);
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    int minLen = buffer.getInt(0);
+                    tmi.setMinKey(CommandCodec.getByteString(buffer, 4, minLen));
+                    tmi.setMaxKey(CommandCodec.getByteString(buffer, 8 + minLen, buffer.getInt(4 + minLen)));
+                }
+            }
+
+            if (tmi.getVersion() >= FLAGS_VERSION) {
+                file.seek(fileLen - 8 * 13);
+                tmi.setFlags(file.readLong());
+            }
+
             return tmi;
         } catch (Throwable t) {
             throw new RuntimeException(t);
@@ -134,6 +331,88 @@ public class TableMetaInfo {
         this.indexLen = indexLen;
     }
 
+    public long getMaxSeq() {
+        return maxSeq;
+    }
+
+    public void setMaxSeq(long maxSeq) {
+        this.maxSeq = maxSeq;
+    }
+
+    public long getRangeDelStart() {
+        return rangeDelStart;
+    }
+
+    public void setRangeDelStart(long rangeDelStart) {
+        this.rangeDelStart = rangeDelStart;
+    }
+
+    public long getRangeDelLen() {
+        return rangeDelLen;
+    }
+
+    public void setRangeDelLen(long rangeDelLen) {
+        this.rangeDelLen = rangeDelLen;
+    }
+
+    public long getMinSeq() {
+        return minSeq;
+    }
+
+    public void setMinSeq(long minSeq) {
+        this.minSeq = minSeq;
+    }
+
+    public long getKeyRangeStart() {
+        return keyRangeStart;
+    }
+
+    public void setKeyRangeStart(long keyRangeStart) {
+        this.keyRangeStart = keyRangeStart;
+    }
+
+    public long getKeyRangeLen() {
+        return keyRangeLen;
+    }
+
+    public void setKeyRangeLen(long keyRangeLen) {
+        this.keyRangeLen = keyRangeLen;
+    }
+
+    public String getMinKey() {
+        return minKey;
+    }
+
+    public void setMinKey(String minKey) {
+        this.minKey = minKey;
+    }
+
+    public String getMaxKey() {
+        return maxKey;
+    }
+
+    public void setMaxKey(String maxKey) {
+        this.maxKey = maxKey;
+    }
+
+    public long getFlags() {
+        return flags;
+    }
+
+    public void setFlags(long flags) {
+        this.flags = flags;
+    }
+
+    /**
+     * @描述 数据段末尾是否有哈希索引
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean hasHashIndex() {
+        return (flags & FLAG_HASH_INDEX) != 0;
+    }
+
     public long getPartSize() {
         return partSize;
     }
@@ -0,0 +1,410 @@
+package model.vlog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.BytesUtil;
+import utils.CommandCodec;
+import utils.LoggerUtil;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/20 19:40
+ * @注释 值日志，键值分离时存放大value
+ * 持久化时超过阈值的value追加到值日志，ssTable里只存指针，之后的压缩只搬指针不搬value。
+ * 每条记录：4字节key长度 + key + 4字节value长度 + value，文件写满后换新文件，文件用MANIFEST分配的编号命名。
+ * 被覆盖或删除的value成为垃圾，由回收把仍然有效的value重新写入、再整个删除旧文件。
+ * 旧文件删除前要保证没有读者还会按旧指针来读：版本和快照创建时登记当前纪元，回收完一个文件后纪元加一，
+ * 文件等登记在它之前纪元的版本和快照全部释放后才删除
+ */
+public class ValueLog implements Closeable {
+
+    public static final String VLOG = ".vlog";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValueLog.class);
+    private static final String logFormat = "[ValueLog][{}]: {}";
+
+    /**
+     * 数据目录
+     */
+    private final String dataDir;
+
+    /**
+     * value达到这个字节数时放进值日志
+     */
+    private final int threshold;
+
+    /**
+     * 单个文件大小上限
+     */
+    private final long maxFileSize;
+
+    /**
+     * 分配文件编号
+     */
+    private final LongSupplier fileNumbers;
+
+    /**
+     * 全部文件的读通道
+     */
+    private final ConcurrentHashMap<Long, FileChannel> channels;
+
+    /**
+     * 当前追加的文件，第一次追加时创建
+     */
+    private FileChannel active;
+    private long activeNumber;
+    private long activeSize;
+
+    /**
+     * 追加时复用的缓冲区
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * 当前纪元，以及每个纪元登记的版本和快照个数
+     */
+    private long epoch;
+    private final TreeMap<Long, Integer> pins;
+
+    /**
+     * 已回收、等待删除的文件，值是回收时的纪元
+     */
+    private final Map<Long, Long> retired;
+
+    public ValueLog(String dataDir, int threshold, long maxFileSize, LongSupplier fileNumbers) {
+        this.dataDir = dataDir;
+        this.threshold = threshold;
+        this.maxFileSize = maxFileSize;
+        this.fileNumbers = fileNumbers;
+        this.channels = new ConcurrentHashMap<>();
+        this.buffer = ByteBuffer.allocate(64 * 1024);
+        this.pins = new TreeMap<>();
+        this.retired = new TreeMap<>();
+        this.activeNumber = -1;
+    }
+
+    /**
+     * @描述 打开已有的值日志文件
+     * @param file
+     * @return long 文件编号
+     * @Author taoxier
+     */
+    public long open(File file) {
+        String fileName = file.getName();
+        long number = Long.parseLong(fileName.substring(0, fileName.indexOf(".")));
+        channels.computeIfAbsent(number, n -> openChannel(file, false));
+        return number;
+    }
+
+    /**
+     * @描述 是否需要放进值日志
+     * @param value 字节串
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean shouldSeparate(String value) {
+        return value != null && value.length() >= threshold;
+    }
+
+    /**
+     * @描述 追加一条记录，返回value的位置；写入后要sync才保证落盘
+     * @param key 字节串
+     * @param value 字节串
+     * @return ValuePointer
+     * @Author taoxier
+     */
+    public synchronized ValuePointer append(String key, String value) {
+        try {
+            int size = 4 + key.length() + 4 + value.length();
+            if (active == null || activeSize + size > maxFileSize && activeSize > 0) {
+                rotate();
+            }
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+            ((Buffer) buffer).clear();
+            CommandCodec.putByteString(buffer, key);
+            CommandCodec.putByteString(buffer, value);
+            ((Buffer) buffer).flip();
+            long valueOffset = activeSize + 4 + key.length() + 4;
+            while (buffer.hasRemaining()) {
+                active.write(buffer, activeSize + buffer.position());
+            }
+            activeSize += size;
+            return new ValuePointer(activeNumber, valueOffset, value.length());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 把当前文件刷盘
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void sync() {
+        if (active == null) {
+            return;
+        }
+        try {
+            active.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 封住当前文件，之后的追加换一个新文件，保证返回的文件都不会再被追加，检查点硬链接前调用
+     * @param
+     * @return List<Long> 全部文件的编号，从旧到新
+     * @Author taoxier
+     */
+    public synchronized List<Long> seal() {
+        if (active != null) {
+            try {
+                active.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            //读通道留在channels里，下次追加时rotate
+            active = null;
+            activeNumber = -1;
+            activeSize = 0;
+        }
+        return new ArrayList<>(new TreeMap<>(channels).keySet());
+    }
+
+    /**
+     * @描述 按指针读value，多个线程可以同时读
+     * @param pointer
+     * @return String 字节串
+     * @Author taoxier
+     */
+    public String read(ValuePointer pointer) {
+        FileChannel channel = channels.get(pointer.getFileNumber());
+        if (channel == null) {
+            throw new IllegalStateException("-[异常抛出]：值日志文件不存在 " + pointer);
+        }
+        try {
+            ByteBuffer value = ByteBuffer.allocate(pointer.getLen());
+            while (value.hasRemaining()) {
+                if (channel.read(value, pointer.getOffset() + value.position()) < 0) {
+                    throw new IOException("-[异常抛出]：读值日志越界 " + pointer);
+                }
+            }
+            return new String(value.array(), StandardCharsets.ISO_8859_1);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 可以回收的文件：不是当前追加的文件也没有回收过，从旧到新
+     * @param
+     * @return List<Long>
+     * @Author taoxier
+     */
+    public synchronized List<Long> sealedFiles() {
+        List<Long> numbers = new ArrayList<>();
+        for (Long number : new TreeMap<>(channels).keySet()) {
+            if (number != activeNumber && !retired.containsKey(number)) {
+                numbers.add(number);
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * @描述 文件大小
+     * @param fileNumber
+     * @return long
+     * @Author taoxier
+     */
+    public long fileSize(long fileNumber) {
+        try {
+            return channels.get(fileNumber).size();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 按顺序遍历文件里的记录，只读key，跳过value
+     * @param fileNumber
+     * @param visitor key和value的指针
+     * @return void
+     * @Author taoxier
+     */
+    public void forEach(long fileNumber, BiConsumer<String, ValuePointer> visitor) {
+        File file = new File(dataDir + fileNumber + VLOG);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long offset = 0;
+            while (true) {
+                int keyLen;
+                try {
+                    keyLen = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] key = new byte[keyLen];
+                in.readFully(key);
+                int valueLen = in.readInt();
+                long valueOffset = offset + 4 + keyLen + 4;
+                long skipped = 0;
+                while (skipped < valueLen) {
+                    long n = in.skip(valueLen - skipped);
+                    if (n <= 0) {
+                        //写了一半的记录，后面没有数据了
+                        return;
+                    }
+                    skipped += n;
+                }
+                visitor.accept(BytesUtil.toByteString(key), new ValuePointer(fileNumber, valueOffset, valueLen));
+                offset = valueOffset + valueLen;
+            }
+        } catch (EOFException e) {
+            //写了一半的记录，忽略
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 登记当前纪元，版本和快照创建时调用，释放时用返回的纪元调用unpin
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public synchronized long pin() {
+        pins.merge(epoch, 1, Integer::sum);
+        return epoch;
+    }
+
+    public void unpin(long pinnedEpoch) {
+        synchronized (this) {
+            Integer n = pins.get(pinnedEpoch);
+            if (n == null) {
+                return;
+            }
+            if (n == 1) {
+                pins.remove(pinnedEpoch);
+            } else {
+                pins.put(pinnedEpoch, n - 1);
+            }
+        }
+        purge();
+    }
+
+    /**
+     * @描述 文件里有效的value已经重新写入，之后的读不会再用到它；等之前登记的读者都释放后删除
+     * @param fileNumber
+     * @return void
+     * @Author taoxier
+     */
+    public void retire(long fileNumber) {
+        synchronized (this) {
+            retired.put(fileNumber, epoch);
+            epoch++;
+        }
+        purge();
+    }
+
+    /**
+     * @描述 删除没有读者的已回收文件
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void purge() {
+        List<Long> deletable = new ArrayList<>();
+        synchronized (this) {
+            long minPinned = pins.isEmpty() ? Long.MAX_VALUE : pins.firstKey();
+            Iterator<Map.Entry<Long, Long>> it = retired.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Long> entry = it.next();
+                if (entry.getValue() < minPinned) {
+                    deletable.add(entry.getKey());
+                    it.remove();
+                }
+            }
+        }
+        for (Long number : deletable) {
+            FileChannel channel = channels.remove(number);
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            File file = new File(dataDir + number + VLOG);
+            if (file.exists() && !file.delete()) {
+                LoggerUtil.info(LOGGER, logFormat, "purge", "deleteFail " + file.getName());
+            } else {
+                LoggerUtil.info(LOGGER, logFormat, "purge", file.getName());
+            }
+        }
+    }
+
+    /**
+     * @描述 当前文件写满，换一个新文件
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void rotate() throws IOException {
+        if (active != null) {
+            active.force(false);
+        }
+        activeNumber = fileNumbers.getAsLong();
+        File file = new File(dataDir + activeNumber + VLOG);
+        active = openChannel(file, true);
+        channels.put(activeNumber, active);
+        activeSize = 0;
+    }
+
+    private static FileChannel openChannel(File file, boolean create) {
+        try {
+            if (create) {
+                return FileChannel.open(Paths.get(file.getPath()), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return FileChannel.open(Paths.get(file.getPath()), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+        active = null;
+    }
+}
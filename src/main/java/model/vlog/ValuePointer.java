@@ -0,0 +1,47 @@
+package model.vlog;
+
+import lombok.Getter;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/20 19:30
+ * @注释 值在值日志中的位置：文件编号、值的开始位置、值的长度
+ */
+@Getter
+public class ValuePointer {
+
+    private final long fileNumber;
+
+    private final long offset;
+
+    private final int len;
+
+    public ValuePointer(long fileNumber, long offset, int len) {
+        this.fileNumber = fileNumber;
+        this.offset = offset;
+        this.len = len;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ValuePointer)) {
+            return false;
+        }
+        ValuePointer other = (ValuePointer) o;
+        return fileNumber == other.fileNumber && offset == other.offset && len == other.len;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(fileNumber) * 31 * 31 + Long.hashCode(offset) * 31 + len;
+    }
+
+    @Override
+    public String toString() {
+        return "ValuePointer{" +
+                "fileNumber=" + fileNumber +
+                ", offset=" + offset +
+                ", len=" + len +
+                '}';
+    }
+}
@@ -0,0 +1,275 @@
+package service;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.LoggerUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/9 19:45
+ * @注释 MANIFEST，只追加的版本变更日志
+ * 每条记录：4字节长度 + 4字节CRC32 + VersionEdit的JSON；写完刷盘才算生效。
+ * 启动时按顺序回放得到存活的ssTable集合，末尾写了一半的记录直接丢弃
+ */
+public class Manifest implements Closeable {
+
+    public static final String MANIFEST = "MANIFEST";
+    public static final String MANIFEST_TMP = "MANIFEST.tmp";
+    private static final String RW_MODE = "rw";
+    private final Logger LOGGER = LoggerFactory.getLogger(Manifest.class);
+    private final String logFormat = "[Manifest][{}]: {}";
+
+    /**
+     * 数据目录
+     */
+    private final String dataDir;
+
+    /**
+     * 存活的ssTable，按加入顺序
+     */
+    private final LinkedHashMap<String, VersionEdit.TableEntry> liveTables;
+
+    /**
+     * 已持久化的最大序列号
+     */
+    private long lastSequence;
+
+    /**
+     * 下一个可用的文件编号
+     */
+    private long nextFileNumber;
+
+    /**
+     * 日志文件句柄
+     */
+    private RandomAccessFile file;
+
+    public Manifest(String dataDir) {
+        this.dataDir = dataDir;
+        this.liveTables = new LinkedHashMap<>();
+        this.nextFileNumber = 1;
+    }
+
+    /**
+     * @描述 数据目录下是否已有MANIFEST
+     * @param dataDir
+     * @return boolean
+     * @Author taoxier
+     */
+    public static boolean exists(String dataDir) {
+        return new File(dataDir + MANIFEST).exists();
+    }
+
+    /**
+     * @描述 回放MANIFEST，恢复存活的ssTable集合
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void recover() {
+        File manifestFile = new File(dataDir + MANIFEST);
+        if (!manifestFile.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(manifestFile, "r")) {
+            long len = raf.length();
+            long start = 0;
+            while (start + 8 <= len) {
+                raf.seek(start);
+                int editLen = raf.readInt();
+                int crc = raf.readInt();
+                if (editLen < 0 || start + 8 + editLen > len) {
+                    //最后一条没写完
+                    break;
+                }
+                byte[] bytes = new byte[editLen];
+                raf.readFully(bytes);
+                if (crc(bytes) != crc) {
+                    break;
+                }
+                apply(JSON.parseObject(new String(bytes, StandardCharsets.UTF_8), VersionEdit.class));
+                start += 8 + editLen;
+            }
+            if (start < len) {
+                LoggerUtil.info(LOGGER, logFormat, "recover", "drop broken tail at " + start);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LoggerUtil.debug(LOGGER, logFormat, "recover", liveTables.values());
+    }
+
+    /**
+     * @描述 把当前状态写成一条记录，原子替换旧的MANIFEST，之后在新文件上追加
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void rewrite() {
+        VersionEdit edit = new VersionEdit();
+        edit.getAddedTables().addAll(liveTables.values());
+        edit.setLastSequence(lastSequence);
+        edit.setNextFileNumber(nextFileNumber);
+        try {
+            if (file != null) {
+                file.close();
+            }
+            writeFresh(dataDir, edit);
+            file = new RandomAccessFile(dataDir + MANIFEST, RW_MODE);
+            file.seek(file.length());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 在dir下新建一个只含给定ssTable集合的MANIFEST，用于检查点
+     * @param dir 以分隔符结尾
+     * @param tables
+     * @param lastSequence
+     * @param nextFileNumber
+     * @return void
+     * @Author taoxier
+     */
+    public static void create(String dir, List<VersionEdit.TableEntry> tables, long lastSequence, long nextFileNumber) {
+        VersionEdit edit = new VersionEdit();
+        edit.getAddedTables().addAll(tables);
+        edit.setLastSequence(lastSequence);
+        edit.setNextFileNumber(nextFileNumber);
+        try {
+            writeFresh(dir, edit);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 先写临时文件并刷盘，再原子替换dir下的MANIFEST
+     * @param dir
+     * @param edit
+     * @return void
+     * @Author taoxier
+     */
+    private static void writeFresh(String dir, VersionEdit edit) throws IOException {
+        File tmp = new File(dir + MANIFEST_TMP);
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, RW_MODE)) {
+            raf.setLength(0);
+            writeRecord(raf, edit);
+            raf.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir + MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @描述 追加一条变更并刷盘，刷盘成功后才修改内存中的状态
+     * @param edit
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void logEdit(VersionEdit edit) {
+        if (edit.getNextFileNumber() == null) {
+            //顺带记下已分配到的文件编号
+            edit.setNextFileNumber(nextFileNumber);
+        }
+        try {
+            writeRecord(file, edit);
+            file.getFD().sync();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        apply(edit);
+        LoggerUtil.debug(LOGGER, logFormat, "logEdit", edit);
+    }
+
+    private static void writeRecord(RandomAccessFile raf, VersionEdit edit) throws IOException {
+        byte[] bytes = JSONObject.toJSONBytes(edit);
+        raf.writeInt(bytes.length);
+        raf.writeInt(crc(bytes));
+        raf.write(bytes);
+    }
+
+    private void apply(VersionEdit edit) {
+        for (String fileName : edit.getDeletedTables()) {
+            liveTables.remove(fileName);
+        }
+        for (VersionEdit.TableEntry entry : edit.getAddedTables()) {
+            liveTables.put(entry.getFileName(), entry);
+        }
+        if (edit.getLastSequence() != null) {
+            lastSequence = Math.max(lastSequence, edit.getLastSequence());
+        }
+        if (edit.getNextFileNumber() != null) {
+            nextFileNumber = Math.max(nextFileNumber, edit.getNextFileNumber());
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * @描述 存活的ssTable
+     * @param
+     * @return List<TableEntry>
+     * @Author taoxier
+     */
+    public synchronized List<VersionEdit.TableEntry> getLiveTables() {
+        return new ArrayList<>(liveTables.values());
+    }
+
+    public synchronized boolean isLive(String fileName) {
+        return liveTables.containsKey(fileName);
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized long getNextFileNumber() {
+        return nextFileNumber;
+    }
+
+    /**
+     * @描述 分配一个新的文件编号，只在内存中递增，随下一条变更写入MANIFEST
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public synchronized long newFileNumber() {
+        return nextFileNumber++;
+    }
+
+    /**
+     * @描述 迁移旧数据时登记已有的文件编号，保证之后分配的编号更大
+     * @param number
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void markFileNumberUsed(long number) {
+        nextFileNumber = Math.max(nextFileNumber, number + 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
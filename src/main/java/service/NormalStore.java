@@ -14,30 +14,54 @@ import controller.SocketServerHandler;
 import model.Position;
 import model.command.Command;
 import model.command.CommandPos;
+import model.command.MergeCommand;
+import model.command.MergeOperators;
+import model.command.RangeRmCommand;
 import model.command.RmCommand;
 import model.command.SetCommand;
+import model.memtable.MemTable;
+import model.memtable.MemTableTypeEnum;
+import model.sstable.BlockCache;
 import model.sstable.SsTable;
 import model.sstable.TableMetaInfo;
+import model.vlog.ValueLog;
+import model.vlog.ValuePointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import utils.BytesUtil;
+import utils.CommandCodec;
 import utils.CommandUtil;
 import utils.LoggerUtil;
 import utils.RandomAccessFileUtil;
+import utils.RateLimiter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.jar.JarEntry;
 
 public class NormalStore implements Store {
@@ -45,8 +69,42 @@ public class NormalStore implements Store {
     public static final String TABLE = ".table";
     public static final String WAL = "wal";
     public static final String WAL_TMP = "walTmp";
+    public static final String WAL_REWRITE = "walRewrite";
     public static final String RW_MODE = "rw";
     public static final String NAME = "data";
+
+    /**
+     * 副本全量同步的标记文件，存在时说明上次全量同步没做完，本地数据不完整
+     */
+    public static final String BOOTSTRAP = "BOOTSTRAP";
+
+    /**
+     * 内存表持久化生成的表所在层级
+     */
+    private static final int FLUSH_LEVEL = 0;
+
+    /**
+     * 压缩生成的表所在层级
+     */
+    private static final int COMPACT_LEVEL = 1;
+
+    /**
+     * 导入外部表时内存表和导入范围重叠，最多持久化几次再放弃
+     */
+    private static final int INGEST_FLUSH_ATTEMPTS = 3;
+
+    /**
+     * 每个子压缩至少处理这么多字节，输入不大时不切分
+     */
+    private static final long SUBCOMPACTION_MIN_BYTES = 1024 * 1024;
+
+    /**
+     * wal文件头：魔数和格式版本。记录长度不会是负数，没有文件头的是旧格式（key和value是普通字符串）
+     * 版本1：JSON记录，key和value是字节串；版本2：二进制记录（见CommandCodec）
+     */
+    private static final int WAL_MAGIC = 0xDB5A1F00;
+    private static final int WAL_JSON_VERSION = 1;
+    private static final int WAL_FORMAT_VERSION = 2;
     private final Logger LOGGER = LoggerFactory.getLogger(NormalStore.class);
     private final String logFormat = "[NormalStore][{}]: {}";
 
@@ -56,24 +114,74 @@ public class NormalStore implements Store {
      */
 
     /**
-     * 内存表，类似缓存
+     * 当前版本：内存表、不可变内存表和ssTable列表，持久化和压缩时整体替换
+     */
+    private final AtomicReference<Version> current;
+
+    /**
+     * 最新已写入内存表的序列号，快照按它固定
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * 版本变更日志，记录ssTable集合的增删
+     */
+    private final Manifest manifest;
+
+    /**
+     * 后台压缩线程
+     */
+    private final ExecutorService compactionExecutor;
+
+    /**
+     * 子压缩线程池
+     */
+    private final ForkJoinPool compactionPool;
+
+    /**
+     * 一次压缩最多切成几个子压缩
+     */
+    private final int maxSubcompactions;
+
+    /**
+     * 压缩输出的单个表大小上限
+     */
+    private final long targetFileSize;
+
+    /**
+     * 后台持久化线程，单线程保证不可变内存表按切换顺序持久化
+     */
+    private final ExecutorService flushExecutor;
+
+    /**
+     * 写入流控，后台积压时减速或停止写入
+     */
+    private final WriteController writeController;
+
+    /**
+     * 持久化和压缩读写磁盘的限速器，为null表示不限速
+     */
+    private final RateLimiter backgroundRateLimiter;
+
+    /**
+     * 持久化和压缩是否绕过页缓存写ssTable
      */
-    private TreeMap<String, Command> memTable;
+    private final boolean directIo;
 
     /**
-     * 不可变内存表，用于持久化内存表中时暂存数据
+     * 持久化和压缩写的ssTable是否带数据段哈希索引
      */
-    private TreeMap<String, Command> immutableMemTable;
+    private final boolean hashIndex;
 
     /**
-     * ssTable列表
+     * 不可变内存表对应wal的编号
      */
-    private LinkedList<SsTable> ssTables;
+    private final AtomicLong immutableWalNumber;
 
     /**
-     * ssTable暂存列表，用于压缩时
+     * 是否已经有压缩任务在排队或执行
      */
-    private LinkedList<SsTable> immutableSsTables;
+    private final AtomicBoolean compactionScheduled;
 
     /**
      * 数据目录
@@ -81,9 +189,9 @@ public class NormalStore implements Store {
     private final String dataDir;
 
     /**
-     * 读写锁，支持多线程，并发安全写入
+     * 写锁，串行化写wal、写内存表和版本切换；读不加锁
      */
-    private final ReadWriteLock indexLock;
+    private final ReentrantLock writeLock;
 
     /**
      * 暂存数据的日志句柄
@@ -110,6 +218,40 @@ public class NormalStore implements Store {
      */
     private final int compressionThreshold;
 
+    /**
+     * 内存表实现
+     */
+    private final MemTableTypeEnum memTableType;
+
+    /**
+     * 块缓存，全部ssTable共用，为null表示不缓存
+     */
+    private final BlockCache blockCache;
+
+    /**
+     * 行缓存，为null表示不缓存
+     */
+    private final RowCache rowCache;
+
+    /**
+     * 值日志，为null表示不做键值分离
+     */
+    private final ValueLog valueLog;
+
+    /**
+     * 值日志文件里失效value的占比达到这么多时回收
+     */
+    private final double valueLogGcDiscardRatio;
+
+    /**
+     * 值日志每个文件上次检查时的序列号，之后没有新写入就不用再检查，只在压缩线程访问
+     */
+    private final Map<Long, Long> valueLogScanned;
+
+    /**
+     * 复制日志，保留最近的写入给副本来取，为null表示不做复制
+     */
+    private final ReplicationLog replicationLog;
 
     /**
      * @描述 构造方法
@@ -120,12 +262,51 @@ public class NormalStore implements Store {
      * @Author taoxier
      */
     public NormalStore(String dataDir, int storeThreshold, int partSize, int compressionThreshold) {
+        this(dataDir, storeThreshold, partSize, compressionThreshold, MemTableTypeEnum.SKIP_LIST);
+    }
+
+    /**
+     * @描述 构造方法，指定内存表实现
+     * @param dataDir
+     * @param storeThreshold
+     * @param partSize
+     * @param compressionThreshold
+     * @param memTableType 内存表很大时可以用ARENA，把数据放到堆外
+     * @return null
+     * @Author taoxier
+     */
+    public NormalStore(String dataDir, int storeThreshold, int partSize, int compressionThreshold,
+                       MemTableTypeEnum memTableType) {
+        this(dataDir, options(storeThreshold, partSize, compressionThreshold, memTableType));
+    }
+
+    /**
+     * @描述 构造方法，按配置创建
+     * @param dataDir
+     * @param options
+     * @return null
+     * @Author taoxier
+     */
+    public NormalStore(String dataDir, StoreOptions options) {
         try {
             this.dataDir = dataDir;
-            this.storeThreshold = storeThreshold;
-            this.partSize = partSize;
-            this.compressionThreshold = compressionThreshold;
-            this.indexLock = new ReentrantReadWriteLock();
+            this.memTableType = options.getMemTableType();
+            this.storeThreshold = options.getStoreThreshold();
+            this.partSize = options.getPartSize();
+            this.compressionThreshold = options.getCompressionThreshold();
+            this.blockCache = options.getBlockCacheSize() > 0 ? new BlockCache(options.getBlockCacheSize()) : null;
+            this.rowCache = options.getRowCacheSize() > 0 ? new RowCache(options.getRowCacheSize()) : null;
+            this.writeController = new WriteController(options);
+            this.backgroundRateLimiter = options.getBackgroundIoRate() > 0 ? new RateLimiter(options.getBackgroundIoRate()) : null;
+            this.directIo = options.isUseDirectIoForFlushAndCompaction();
+            this.hashIndex = options.isDataBlockHashIndex();
+            this.immutableWalNumber = new AtomicLong();
+            this.maxSubcompactions = Math.max(1, options.getMaxSubcompactions());
+            this.targetFileSize = Math.max(1, options.getTargetFileSize());
+            this.writeLock = new ReentrantLock();
+            this.sequence = new AtomicLong();
+            this.valueLogGcDiscardRatio = options.getValueLogGcDiscardRatio();
+            this.valueLogScanned = new HashMap<>();
 
             File dir = new File(dataDir);
             //数据目录不存在则创建
@@ -134,81 +315,266 @@ public class NormalStore implements Store {
                 dir.mkdirs();
             }
             File[] files = dir.listFiles();
-            //目录为空则不用加载ssTable
-            if (files == null || files.length == 0) {
-                walFile = new File(dataDir + WAL);
-                wal = new RandomAccessFile(walFile, RW_MODE);
-                return;
+            if (files == null) {
+                files = new File[0];
             }
 
-            this.ssTables = new LinkedList<>();
-            this.memTable = new TreeMap<>();
-
-//            this.index = new HashMap<>();
-//            this.reloadIndex();
+            MemTable memTable = memTableType.newMemTable();
+            boolean legacyWal = false;
+            boolean immutableWal = false;
+            this.manifest = new Manifest(dataDir);
+            //有MANIFEST时以它为准，否则是旧数据，按文件名中的时间戳加载
+            boolean hasManifest = Manifest.exists(dataDir);
+            manifest.recover();
+            //值日志文件和ssTable共用MANIFEST分配的编号；关掉键值分离后已有的值日志仍要能读，只是不再分离新value
+            boolean hasValueLog = false;
+            for (File file : files) {
+                hasValueLog |= file.isFile() && file.getName().endsWith(ValueLog.VLOG);
+            }
+            int valueLogThreshold = options.getValueLogThreshold() > 0 ? options.getValueLogThreshold() : Integer.MAX_VALUE;
+            this.valueLog = options.getValueLogThreshold() > 0 || hasValueLog
+                    ? new ValueLog(dataDir, valueLogThreshold, options.getValueLogFileSize(), manifest::newFileNumber)
+                    : null;
 
+            Map<String, SsTable> loadedTables = new HashMap<>();
             //从大到小加载ssTable
             TreeMap<Long, SsTable> ssTableTreeMap = new TreeMap<>(Comparator.reverseOrder());//对Long类型的键进行降序排序
             for (File file : files) {
                 String fileName = file.getName();
-                //如果在持久化ssTable中出现异常，则会留下WAL_TMP，需要从中恢复数据
-                if (file.isFile() && fileName.equals(WAL_TMP)) {
-                    restoreFromWal(new RandomAccessFile(file, RW_MODE));
+                //还没持久化完的不可变内存表会留下WAL_TMP开头的wal，需要从中恢复数据
+                if (file.isFile() && fileName.startsWith(WAL_TMP)) {
+                    try (RandomAccessFile walTmp = new RandomAccessFile(file, RW_MODE)) {
+                        legacyWal |= restoreFromWal(walTmp, memTable);
+                    }
+                    immutableWal = true;
                 }
 
                 //加载ssTable
                 if (file.isFile() && fileName.endsWith(TABLE)) {
+                    if (hasManifest) {
+                        if (manifest.isLive(fileName)) {
+                            loadedTables.put(fileName, SsTable.createFromFile(file.getAbsolutePath(), blockCache));
+                        } else if (!file.delete()) {
+                            //不在MANIFEST中的是压缩或持久化中途崩溃留下的孤儿文件
+                            LoggerUtil.info(LOGGER, logFormat, "deleteOrphan", "fail " + fileName);
+                        }
+                        continue;
+                    }
                     //如果是文件，并且是数据文件的话
                     int dotIndex = fileName.indexOf(".");//找到文件名中第一个点.的位置，返回点的索引
                     Long time = Long.parseLong(fileName.substring(0, dotIndex));//从文件名中提取出时间戳部分，即从文件名的开始到第一个点之间的字符，然后将其解析为一个 Long 类型的数字
-                    ssTableTreeMap.put(time, SsTable.createFromFile(file.getAbsolutePath()));//放入该文件存的SsTable
+                    ssTableTreeMap.put(time, SsTable.createFromFile(file.getAbsolutePath(), blockCache));//放入该文件存的SsTable
+                    manifest.markFileNumberUsed(time);
+                } else if (file.isFile() && fileName.endsWith(ValueLog.VLOG)) {
+                    manifest.markFileNumberUsed(valueLog.open(file));
+                } else if (file.isFile() && fileName.equals(Manifest.MANIFEST_TMP)) {
+                    //重写MANIFEST中途崩溃留下的临时文件
+                    file.delete();
+                } else if (file.isFile() && fileName.equals(WAL_REWRITE)) {
+                    //重写wal中途崩溃留下的临时文件，原wal还在
+                    file.delete();
                 } else if (file.isFile() && fileName.endsWith(WAL)) {
                     //如果是wal文件，则加载wal
                     walFile = file;
                     wal = new RandomAccessFile(file, RW_MODE);
-                    restoreFromWal(wal);
+                    legacyWal |= restoreFromWal(wal, memTable);
+                }
+            }
+            //没有wal则新建
+            if (wal == null) {
+                walFile = new File(dataDir + WAL);
+                wal = new RandomAccessFile(walFile, RW_MODE);
+            }
+            if (legacyWal || immutableWal) {
+                //旧格式的wal按新格式重写一份，之后只追加新格式的记录；不可变内存表的wal也合并进来
+                rewriteWal(memTable);
+            } else if (wal.length() == 0) {
+                writeWalHeader(wal);
+            }
+
+            //重写一份只含当前状态的MANIFEST，之后在其上追加
+            manifest.rewrite();
+            List<SsTable> ssTables = new ArrayList<>();
+            if (hasManifest) {
+                for (VersionEdit.TableEntry entry : manifest.getLiveTables()) {
+                    SsTable ssTable = loadedTables.get(entry.getFileName());
+                    if (ssTable == null) {
+                        throw new RuntimeException("-[异常抛出]：MANIFEST中的ssTable不存在 " + entry.getFileName());
+                    }
+                    ssTable.setLevel(entry.getLevel());
+                    ssTable.setMinSeq(entry.getMinSeq());
+                    ssTable.setGlobalSeq(entry.getGlobalSeq());
+                    ssTables.add(ssTable);
+                }
+                //0层从新到旧，之后是压缩层
+                ssTables.sort(TABLE_ORDER);
+            } else if (!ssTableTreeMap.isEmpty()) {
+                //旧数据迁移：全部作为0层表登记到MANIFEST
+                ssTables.addAll(ssTableTreeMap.values());//把所有表存进SsTable
+                VersionEdit edit = new VersionEdit();
+                for (SsTable ssTable : ssTables) {
+                    edit.addTable(tableEntry(ssTable));
+                }
+                manifest.logEdit(edit);
+            }
+            //序列号从wal、MANIFEST和ssTable中最大的接着分配
+            sequence.set(Math.max(sequence.get(), manifest.getLastSequence()));
+            for (SsTable ssTable : ssTables) {
+                if (ssTable.getMaxSeq() > sequence.get()) {
+                    sequence.set(ssTable.getMaxSeq());
                 }
             }
-            ssTables.addAll(ssTableTreeMap.values());//把所有表存进SsTable
+            this.current = new AtomicReference<>(new Version(memTable, new ArrayList<MemTable>(), ssTables, valueLog));
+            //内存表和表已经由版本持有，释放创建时的引用
+            memTable.unref();
+            for (SsTable ssTable : ssTables) {
+                ssTable.unref();
+            }
+            this.compactionScheduled = new AtomicBoolean(false);
+            this.compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.compactionPool = new ForkJoinPool(maxSubcompactions);
+            this.flushExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.replicationLog = options.getReplicationLogSize() > 0
+                    ? new ReplicationLog(options.getReplicationLogSize(), sequence.get())
+                    : null;
+            updateWriteController();
+            //0层表多到阻塞写入时，写入进不来也就不会触发压缩，打开时先检查一次
+            checkIfCompress();
             LoggerUtil.debug(LOGGER, logFormat, "createFromFile" + ssTables);
 
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static StoreOptions options(int storeThreshold, int partSize, int compressionThreshold,
+                                        MemTableTypeEnum memTableType) {
+        StoreOptions options = new StoreOptions();
+        options.setStoreThreshold(storeThreshold);
+        options.setPartSize(partSize);
+        options.setCompressionThreshold(compressionThreshold);
+        options.setMemTableType(memTableType);
+        return options;
+    }
+
     /**
      * @描述 从暂存日志wal中恢复数据放入内存表
      * @param wal
-     * @return void
+     * @param memTable
+     * @return boolean 是否是旧格式的wal，旧格式需要重写
      * @Author taoxier
      */
-    private void restoreFromWal(RandomAccessFile wal) {
+    private boolean restoreFromWal(RandomAccessFile wal, MemTable memTable) {
         try {
             long len = wal.length();
             long start = 0;//开始位置
             wal.seek(start);//把文件指针跳到开始位置
+            boolean legacy = len > 0;
+            int version = WAL_JSON_VERSION;
+            if (len >= 8 && wal.readInt() == WAL_MAGIC) {
+                //有文件头的是新格式
+                version = wal.readInt();
+                legacy = false;
+                start = 8;
+            }
+            wal.seek(start);
             while (start < len) {
                 //先读数据大小
                 int valueLen = wal.readInt();//四个字节
                 //然后根据数据大小来读数据
                 byte[] bytes = new byte[valueLen];
-                wal.read(bytes);//读
-                JSONObject value = JSON.parseObject(new String((bytes), StandardCharsets.UTF_8));
-                Command command = CommandUtil.jsonToCommand(value);//将JSON对象转换为command
+                wal.readFully(bytes);//读
+                Command command;
+                if (version >= WAL_FORMAT_VERSION) {
+                    command = CommandCodec.decode(ByteBuffer.wrap(bytes), 0);
+                } else {
+                    //JSON记录只在旧的wal里
+                    JSONObject value = JSON.parseObject(new String((bytes), StandardCharsets.UTF_8));
+                    command = CommandUtil.jsonToCommand(value);//将JSON对象转换为command
+                }
                 if (command != null) {
+                    if (legacy) {
+                        BytesUtil.fromLegacy(command);
+                    }
                     //如果转换成功，则把数据放进内存表
-                    memTable.put(command.getKey(), command);
+                    memTable.put(command);
+                    if (command.getSeq() > sequence.get()) {
+                        sequence.set(command.getSeq());
+                    }
                 }
                 start += 4;
                 start += valueLen;//跳过数据长度
             }
             wal.seek(wal.length());//跳到文件末尾
+            return legacy || version != WAL_FORMAT_VERSION;
         } catch (Throwable t) {
             throw new RuntimeException(t);
         }
     }
 
+    /**
+     * @描述 写wal文件头
+     * @param wal
+     * @return void
+     * @Author taoxier
+     */
+    private static void writeWalHeader(RandomAccessFile wal) throws IOException {
+        wal.writeInt(WAL_MAGIC);
+        wal.writeInt(WAL_FORMAT_VERSION);
+    }
+
+    /**
+     * @描述 追加一条wal记录：4字节长度 + 二进制记录，编码在线程复用的缓冲区里，一次写入
+     * @param wal
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    private static void appendWal(RandomAccessFile wal, Command command) throws IOException {
+        ByteBuffer record = CommandCodec.encodeWithLength(command);
+        wal.write(record.array(), 0, record.limit());
+    }
+
+    /**
+     * @描述 把内存表按新格式写成新的wal，原子替换旧wal，不可变内存表的wal的数据也已经包含在内，一并删除
+     * @param memTable
+     * @return void
+     * @Author taoxier
+     */
+    private void rewriteWal(MemTable memTable) throws IOException {
+        wal.close();
+        File rewrite = new File(dataDir + WAL_REWRITE);
+        try (RandomAccessFile raf = new RandomAccessFile(rewrite, RW_MODE)) {
+            raf.setLength(0);
+            writeWalHeader(raf);
+            for (Command command : memTable) {
+                appendWal(raf, command);
+            }
+            for (RangeRmCommand rangeRmCommand : memTable.getRangeTombstones()) {
+                appendWal(raf, rangeRmCommand);
+            }
+            raf.getFD().sync();
+        }
+        Files.move(rewrite.toPath(), walFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        File[] files = new File(dataDir).listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isFile() && file.getName().startsWith(WAL_TMP) && !file.delete()) {
+                throw new RuntimeException("-[异常抛出]：删除 'tmpWal' 失败 " + file.getName());
+            }
+        }
+        wal = new RandomAccessFile(walFile, RW_MODE);
+        wal.seek(wal.length());
+        LoggerUtil.info(LOGGER, logFormat, "rewriteWal", "legacy wal migrated");
+    }
+
     //----------------------
     public String genFilePath() {
         return this.dataDir + File.separator + NAME + TABLE;
@@ -316,314 +682,1703 @@ public class NormalStore implements Store {
 //    }
 
     /**
-     * @描述 切换内存表  在持久化内存表时，新建一个用，存旧的内存表
+     * @描述 获取当前版本并增加引用，用完需要unref
+     * @param
+     * @return Version
+     * @Author taoxier
+     */
+    private Version acquireVersion() {
+        while (true) {
+            Version version = current.get();
+            //引用失败说明这个版本刚被替换并释放，重新取当前版本
+            if (version.ref()) {
+                return version;
+            }
+        }
+    }
+
+    /**
+     * @描述 发布新版本，释放旧版本的引用，需要持有写锁
+     * @param version
+     * @return void
+     * @Author taoxier
+     */
+    private void installVersion(Version version) {
+        Version old = current.getAndSet(version);
+        old.unref();
+        updateWriteController();
+    }
+
+    /**
+     * @描述 按当前版本的积压情况更新写入流控：不可变内存表个数、0层表个数、待压缩字节数
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void updateWriteController() {
+        Version version = current.get();
+        int level0 = 0;
+        for (SsTable ssTable : version.getSsTables()) {
+            if (ssTable.getLevel() == FLUSH_LEVEL) {
+                level0++;
+            }
+        }
+        long pendingCompactionBytes = level0 > compressionThreshold ? pendingCompactionBytes(version) : 0;
+        writeController.update(version.getImmutableMemTables().size(), level0, pendingCompactionBytes);
+    }
+
+    /**
+     * @描述 待压缩字节数：下一次压缩要重写的输入表大小，和compressSsTables用同一个选法（见compactionInputs），
+     * 只算0层和与它重叠的表，和0层不重叠的数据不算积压，库再大也不会因此停写
+     * @param version
+     * @return long
+     * @Author taoxier
+     */
+    private static long pendingCompactionBytes(Version version) {
+        long bytes = 0;
+        for (SsTable ssTable : compactionInputs(version)) {
+            bytes += ssTable.getFileSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @描述 切换内存表  在持久化内存表时，新建一个用，存旧的内存表，交给后台线程持久化
+     * 旧的wal改名为不可变内存表的wal，持久化完成后删除
      * @param
      * @return void
      * @Author taoxier
      */
     private void switchMemTable() {
         try {
-            indexLock.writeLock().lock();
+            writeLock.lock();
             //切换内存表
-            immutableMemTable = memTable;//不可变内存表，暂存数据
-            memTable = new TreeMap<>();
+            MemTable immutableMemTable = current.get().getMemTable();//不可变内存表，暂存数据
+            MemTable newMemTable = memTableType.newMemTable();
+            installVersion(current.get().switchMemTable(newMemTable));
+            newMemTable.unref();
             //切换内存表的同时也切换wal
             wal.close();
-            File tmpWal = new File(dataDir + WAL_TMP);
-            if (tmpWal.exists()) {
-                if (!tmpWal.delete()) {
-                    //如果存在暂存wal文件，尝试删除，如果不能删则抛出异常
-                    throw new RuntimeException("-[异常抛出]：删除 'tmpWal' 失败");
-                }
-            }
+            File tmpWal = new File(dataDir + WAL_TMP + immutableWalNumber.incrementAndGet());
             if (!walFile.renameTo(tmpWal)) {
                 throw new RuntimeException("-[异常抛出]：重命名 'walFile' 变为 'tmpWal' 失败");
             }
             walFile = new File(dataDir + WAL);
             wal = new RandomAccessFile(walFile, RW_MODE);
+            writeWalHeader(wal);
+            scheduleFlush(immutableMemTable, tmpWal);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            indexLock.writeLock().unlock();
+            writeLock.unlock();
             LoggerUtil.debug(LOGGER, logFormat, "switchMemTable");
         }
     }
 
     /**
-     * @描述 把内存表持久化到SsTable
-     * @param
+     * @描述 提交后台持久化，完成后检查是否需要压缩
+     * 持久化失败时不可变内存表留在版本里继续可读，wal也保留，重启时恢复
+     * @param immutableMemTable
+     * @param tmpWal 不可变内存表的wal
      * @return void
      * @Author taoxier
      */
-    private void storeSsTable() {
-        try {
-            SsTable ssTable = SsTable.createFromMemTable(dataDir + System.currentTimeMillis() + TABLE, partSize, immutableMemTable);//按照时间命名 创内存表对应的ssTable
-            ssTables.addFirst(ssTable);//插在开头
-
-            //存完了可以重置暂存内存表和删临时Wal
-            immutableMemTable = null;
-            File tmpWal = new File(dataDir + WAL_TMP);
-            if (tmpWal.exists()) {
-                if (!tmpWal.delete()) {
-                    throw new RuntimeException("-[异常抛出]：删除 'tmpWal' 失败");
+    private void scheduleFlush(MemTable immutableMemTable, File tmpWal) {
+        flushExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storeSsTable(immutableMemTable, tmpWal);
+                } catch (Throwable t) {
+                    LoggerUtil.error(LOGGER, t, logFormat, "storeSsTable", "fail");
                 }
+                checkIfCompress();
             }
-        } catch (RuntimeException e) {
-            throw new RuntimeException(e);
-        }
+        });
     }
 
     /**
-     * @描述 压缩时切换ssTables列表
-     * @param
+     * @描述 把不可变内存表持久化到SsTable
+     * 表写完刷盘后先追加MANIFEST记录再发布版本，崩溃时要么表已登记，要么wal还在
+     * @param immutableMemTable
+     * @param tmpWal 不可变内存表的wal，持久化完成后删除
      * @return void
      * @Author taoxier
      */
-    private void switchSsTables() {
+    private void storeSsTable(MemTable immutableMemTable, File tmpWal) {
+        SsTable ssTable = SsTable.createFromMemTable(nextTableFilePath(), partSize, immutableMemTable, blockCache,
+                backgroundRateLimiter, valueLog, directIo, hashIndex);//按编号命名 创内存表对应的ssTable
+        ssTable.setLevel(FLUSH_LEVEL);
         try {
-            indexLock.writeLock().lock();
-            //切换ssTables列表
-            immutableSsTables = ssTables;
-            //清空ssTables
-            ssTables = new LinkedList<>();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            writeLock.lock();
+            VersionEdit edit = new VersionEdit();
+            edit.addTable(tableEntry(ssTable));
+            edit.setLastSequence(ssTable.getMaxSeq());
+            manifest.logEdit(edit);
+            //新表插在开头，同时移除对应的不可变内存表
+            installVersion(current.get().flushed(immutableMemTable, ssTable));
         } finally {
-            indexLock.writeLock().unlock();
-            LoggerUtil.debug(LOGGER, logFormat, "switchSsTables");
-        }
-    }
-
-    /**
-     * @描述 压缩数据表
-     * 把列表里的ssTable从新到旧遍历，遇到新的数据就存到表里，遇到重复的数据就下一个
-     * @param
-     * @return void
-     * @Author taoxier
-     */
-    private void compressSsTables() throws IOException {
-        TreeMap<String, Command> compressTable = new TreeMap<>();//去重后存到这里，压缩表
-        for (SsTable ssTable : immutableSsTables) {
-            try {
-                //读稀疏索引和文件句柄
-                TreeMap<String, Position> sparseIndex = ssTable.getSparseIndex();
-                RandomAccessFile tableFile = ssTable.getTableFile();
-                //读文件元信息
-                TableMetaInfo tableMetaInfo = ssTable.getTableMetaInfo();
-                //遍历稀疏索引
-                for (Map.Entry<String, Position> entry : sparseIndex.entrySet()) {
-                    String key = entry.getKey();
-                    Position position = entry.getValue();
-                    long dataStart = position.getStart();
-                    long dataLen = position.getLen();
-
-                    if (!compressTable.containsKey(key)) {
-                        //如果压缩表里没有该key
-                        tableFile.seek(dataStart);//移动到数据开始位置
-                        byte[] partDataBytes = new byte[(int) dataLen];
-
-                        //读具体数据
-                        tableFile.readFully(partDataBytes);
-                        String dataString = new String(partDataBytes, StandardCharsets.UTF_8);
-                        JSONObject dataObject = JSON.parseObject(dataString);
-                        dataObject.keySet().forEach(keyObj -> {
-                            JSONObject cmdObj = dataObject.getJSONObject(keyObj);
-                            Command cmd = CommandUtil.jsonToCommand(cmdObj);
-                            //插到压缩表
-                            if (cmd != null) {
-                                compressTable.put(key, cmd);
-                            }
-                        });
-                    }
-                }
-                tableFile.close();//!!!!!!!---------问题出在这里啊啊啊啊
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            writeLock.unlock();
         }
-        LoggerUtil.debug(LOGGER, logFormat, "compressSsTables");
-
-        //把ssTables都遍历完后，去重的数据都存在压缩表compressTable里
-        //删除对应的数据文件，将压缩表转化成ssTable并加到ssTables列表中
-        try {
-            indexLock.writeLock().lock();
-
-            for (SsTable ssTable : immutableSsTables) {
-                File file = new File(ssTable.getFilePath());
-                if (file.exists()) {
-                    //删除ssTable对应的数据文件
-                    if (!file.delete()) {
-                        throw new RuntimeException("-[异常抛出]：删除ssTable数据文件失败");
-                    }
+        ssTable.unref();
 
-                }
+        //存完了可以删临时Wal
+        if (tmpWal.exists()) {
+            if (!tmpWal.delete()) {
+                throw new RuntimeException("-[异常抛出]：删除 'tmpWal' 失败");
             }
-        } catch (Exception e) {
-            e.printStackTrace(); // 打印详细的异常信息
         }
-        LoggerUtil.debug(LOGGER, logFormat, "deleteSsTableFile");
-        indexLock.writeLock().unlock();
-
-        SsTable ssTable = SsTable.createFromCompressTable(dataDir + System.currentTimeMillis() + TABLE, partSize, compressTable);//按照时间命名 创内存表对应的ssTable
-
-        ssTables.addFirst(ssTable);//插在开头
-        immutableSsTables = new LinkedList<>();//清空暂存压缩数据表
-        LoggerUtil.debug(LOGGER, logFormat, "addCompressTableToSsTables");
     }
 
     /**
-     * @描述 检查是否需要压缩
+     * @描述 生成新ssTable的文件路径，用MANIFEST分配的文件编号命名，不会和已有的表重复
      * @param
-     * @return void
+     * @return String
      * @Author taoxier
      */
-    private void checkIfCompress() throws IOException {
-        if (ssTables.size() > compressionThreshold) {
-            //切换ssTables列表
-            switchSsTables();
-            //压缩
-            compressSsTables();
-        }
+    private String nextTableFilePath() {
+        return dataDir + manifest.newFileNumber() + TABLE;
     }
 
     /**
-     * @描述 增改
-     * @param key
-     * @param value
-     * @return void
+     * @描述 ssTable对应的MANIFEST记录
+     * @param ssTable
+     * @return VersionEdit.TableEntry
      * @Author taoxier
      */
-    @Override
-    public void set(String key, String value) {
-        try {
-            SetCommand command = new SetCommand(key, value);
-            byte[] commandBytes = JSONObject.toJSONBytes(command);
-            // 加锁
-            indexLock.writeLock().lock();
-
-            //写wal
-            wal.writeInt(commandBytes.length);
-            wal.write(commandBytes);
-            //写内存表
-            memTable.put(key, command);
+    private static VersionEdit.TableEntry tableEntry(SsTable ssTable) {
+        VersionEdit.TableEntry entry = new VersionEdit.TableEntry(ssTable.getFileName(), ssTable.getLevel(),
+                ssTable.getMinSeq(), ssTable.getMaxSeq());
+        entry.setGlobalSeq(ssTable.getGlobalSeq());
+        return entry;
+    }
 
-            //内存表达到一定阀值，写进SsTable
-            if (memTable.size() > storeThreshold) {
-                //切换内存表
-                switchMemTable();
-                //持久化到SsTable
-                storeSsTable();
+    /**
+     * ssTable的查找顺序：层级从低到高，同层序列号大的（新的）在前，再按文件编号从大到小
+     */
+    private static final Comparator<SsTable> TABLE_ORDER = new Comparator<SsTable>() {
+        @Override
+        public int compare(SsTable o1, SsTable o2) {
+            if (o1.getLevel() != o2.getLevel()) {
+                return Integer.compare(o1.getLevel(), o2.getLevel());
             }
-            //检查是否需要压缩
-            checkIfCompress();
-
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
-        } finally {
-            //解锁
-            indexLock.writeLock().unlock();
+            if (o1.getMaxSeq() != o2.getMaxSeq()) {
+                return Long.compare(o2.getMaxSeq(), o1.getMaxSeq());
+            }
+            return Long.compare(fileNumber(o2), fileNumber(o1));
         }
+    };
+
+    private static long fileNumber(SsTable ssTable) {
+        String fileName = ssTable.getFileName();
+        return Long.parseLong(fileName.substring(0, fileName.indexOf(".")));
     }
 
     /**
-     * @描述 获取
-     * @param key
-     * @return String
+     * @描述 压缩数据表，在后台线程执行，输入见compactionInputs
+     * 输入较大时按稀疏索引的边界把key范围切成几段，每段是一个子压缩，在线程池里并行执行，各自生成输出表；
+     * 每个子压缩把输入表从新到旧遍历，只读和自己范围重叠的数据段，遇到新的数据就存到表里，遇到重复的数据就下一个
+     * 全部输出表写完刷盘后，在一条MANIFEST记录里登记新表、删除输入表，再发布版本；
+     * 输入表的文件等没有版本引用时再删除，中途崩溃不会丢数据
+     * @param
+     * @return void
      * @Author taoxier
      */
-    @Override
-    public String get(String key) {
+    private void compressSsTables() {
+        Version version = acquireVersion();
         try {
-            indexLock.readLock().lock();
-            //先从内存表中找
-            Command command;
-            command = memTable.get(key);
-            if (command == null && immutableMemTable != null) {
-                //如果找不到，可能处于持久化过程中，从暂存内存表中找
-                command = immutableMemTable.get(key);
-            }
-            //如果还没有，那在ssTable中找，从新的找到旧
-            if (command == null) {
-                for (SsTable ssTable : ssTables) {
-                    command = ssTable.query(key);
-                    if (command != null) {
-                        //找到就退出循环
-                        break;
+            //本次参与压缩的表，从新到旧
+            List<SsTable> inputs = compactionInputs(version);
+            if (inputs.isEmpty()) {
+                return;
+            }
+            List<RangeRmCommand> rangeTombstones = new ArrayList<>();//输入表里的范围删除
+            List<TreeMap<String, Position>> partIndexes = new ArrayList<>(inputs.size());//输入表的完整稀疏索引
+            for (SsTable ssTable : inputs) {
+                rangeTombstones.addAll(ssTable.getRangeTombstones());
+                partIndexes.add(ssTable.partIndex());
+            }
+            //没选上的表和输入的key范围都不重叠时，输出是最底层，没有更旧的表还会有这些key
+            String[] inputRange = null;
+            for (SsTable ssTable : inputs) {
+                inputRange = union(inputRange, keyRange(ssTable));
+            }
+            boolean overlapped = false;
+            for (SsTable ssTable : version.getSsTables()) {
+                overlapped |= !inputs.contains(ssTable) && overlaps(inputRange, keyRange(ssTable));
+            }
+            boolean bottommost = !overlapped;
+            long now = System.currentTimeMillis();
+
+            //切分key范围，第i段是[splitKeys[i-1], splitKeys[i])，两头不限
+            List<String> splitKeys = splitKeys(inputs, partIndexes);
+            List<Callable<List<SsTable>>> tasks = new ArrayList<>(splitKeys.size() + 1);
+            for (int i = 0; i <= splitKeys.size(); i++) {
+                String lo = i == 0 ? null : splitKeys.get(i - 1);
+                String hi = i == splitKeys.size() ? null : splitKeys.get(i);
+                tasks.add(new Callable<List<SsTable>>() {
+                    @Override
+                    public List<SsTable> call() {
+                        return subcompact(inputs, partIndexes, rangeTombstones, lo, hi, bottommost, now);
                     }
-                }
+                });
             }
-            //如果还找不到，可能处于压缩过程，从暂存ssTables列表中找
-            if (command == null&&immutableSsTables!=null) {
-                for (SsTable ssTable : immutableSsTables) {
-                    command = ssTable.query(key);
-                    if (command != null) {
-                        //找到就退出循环
-                        break;
+            LoggerUtil.debug(LOGGER, logFormat, "compressSsTables", "inputs " + inputs.size() + "/"
+                    + version.getSsTables().size() + " bottommost " + bottommost + " subcompactions " + tasks.size());
+
+            List<SsTable> outputs = new ArrayList<>(tasks.size());
+            if (tasks.size() == 1) {
+                outputs.addAll(tasks.get(0).call());
+            } else {
+                Throwable failure = null;
+                for (Future<List<SsTable>> future : compactionPool.invokeAll(tasks)) {
+                    try {
+                        outputs.addAll(future.get());
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    }
+                }
+                if (failure != null) {
+                    //有子压缩失败时整个压缩作废，已写好的输出表不登记，直接删除
+                    for (SsTable ssTable : outputs) {
+                        ssTable.markObsolete();
+                        ssTable.unref();
                     }
+                    throw new RuntimeException(failure);
                 }
             }
-            if (command instanceof SetCommand) {
-                //如果是set命令 返回对应的值
-                return ((SetCommand) command).getValue();
+
+            //新表写完后一条记录登记增删，再生成新版本一次性替换输入表
+            try {
+                writeLock.lock();
+                VersionEdit edit = new VersionEdit();
+                for (SsTable ssTable : outputs) {
+                    edit.addTable(tableEntry(ssTable));
+                }
+                for (SsTable input : inputs) {
+                    edit.deleteTable(input.getFileName());
+                }
+                manifest.logEdit(edit);
+                installVersion(current.get().compacted(inputs, outputs));
+            } finally {
+                writeLock.unlock();
             }
-            if (command instanceof RmCommand) {
-                //如果是rm命令 返回null
-                return null;
+            for (SsTable ssTable : outputs) {
+                ssTable.unref();
             }
-            return null;//没有这个key，get函数返回null
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
+            LoggerUtil.debug(LOGGER, logFormat, "addCompressTableToSsTables");
+
+            //输入表没有版本引用时删除对应的数据文件
+            for (SsTable input : inputs) {
+                input.markObsolete();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         } finally {
-            indexLock.readLock().unlock();
+            version.unref();
         }
+        LoggerUtil.debug(LOGGER, logFormat, "deleteSsTableFile");
     }
 
     /**
-     * @描述 删除
+     * @描述 选出一次压缩的输入：全部0层表，加上压缩层里和它们key范围重叠的表；
+     * 选进来的表会扩大key范围，一直扩到没有表再和范围重叠（导入的表可能和压缩层的表重叠）。
+     * 输出表放在输入表原来的位置，没选上的表和输出表没有共同的key，查找顺序不会让旧版本挡住新版本；
+     * 压缩层的表按targetFileSize切分过，0层只覆盖一小段key时只重写这一段上的表。待压缩字节数按同样的输入估算
+     * @param version
+     * @return List<SsTable> 从新到旧，没有0层表时为空
+     * @Author taoxier
+     */
+    private static List<SsTable> compactionInputs(Version version) {
+        Set<SsTable> picked = new HashSet<>();
+        String[] range = null;
+        for (SsTable ssTable : version.getSsTables()) {
+            if (ssTable.getLevel() == FLUSH_LEVEL) {
+                picked.add(ssTable);
+                range = union(range, keyRange(ssTable));
+            }
+        }
+        boolean extended = !picked.isEmpty();
+        while (extended) {
+            extended = false;
+            for (SsTable ssTable : version.getSsTables()) {
+                if (!picked.contains(ssTable) && overlaps(range, keyRange(ssTable))) {
+                    picked.add(ssTable);
+                    range = union(range, keyRange(ssTable));
+                    extended = true;
+                }
+            }
+        }
+        List<SsTable> inputs = new ArrayList<>(picked.size());
+        for (SsTable ssTable : version.getSsTables()) {
+            if (picked.contains(ssTable)) {
+                inputs.add(ssTable);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @描述 表的key范围[start, end)，包括范围删除覆盖的区间；不知道key范围的旧格式表是["", null)，即全部key
+     * @param ssTable
+     * @return String[] {start, end}，end为null表示不限；表里没有数据时为null
+     * @Author taoxier
+     */
+    private static String[] keyRange(SsTable ssTable) {
+        if (!ssTable.isKeyRangeKnown()) {
+            return new String[]{"", null};
+        }
+        String[] range = null;
+        if (ssTable.firstKey() != null) {
+            //最后一个key后面加一个最小的字节，变成不包含的上界
+            range = new String[]{ssTable.firstKey(), ssTable.lastKey() + '\u0000'};
+        }
+        for (RangeRmCommand rangeRmCommand : ssTable.getRangeTombstones()) {
+            range = union(range, new String[]{rangeRmCommand.getKey(), rangeRmCommand.getEndKey()});
+        }
+        return range;
+    }
+
+    private static String[] union(String[] a, String[] b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        String start = a[0].compareTo(b[0]) <= 0 ? a[0] : b[0];
+        String end = a[1] == null || b[1] == null ? null : a[1].compareTo(b[1]) >= 0 ? a[1] : b[1];
+        return new String[]{start, end};
+    }
+
+    private static boolean overlaps(String[] a, String[] b) {
+        return a != null && b != null && (b[1] == null || a[0].compareTo(b[1]) < 0)
+                && (a[1] == null || b[0].compareTo(a[1]) < 0);
+    }
+
+    /**
+     * @描述 按输入表稀疏索引的边界切分key范围：所有数据段的第一个key排序后等间隔取分割点，
+     * 每段的数据段数大致相同；输入不大时不切分
+     * @param inputs
+     * @param partIndexes
+     * @return List<String> 升序的分割点，为空表示不切分
+     * @Author taoxier
+     */
+    private List<String> splitKeys(List<SsTable> inputs, List<TreeMap<String, Position>> partIndexes) {
+        long totalBytes = 0;
+        List<String> boundaries = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            totalBytes += inputs.get(i).getFileSize();
+            if (!inputs.get(i).isLegacy()) {
+                boundaries.addAll(partIndexes.get(i).keySet());
+            }
+        }
+        long bySize = Math.max(1, totalBytes / SUBCOMPACTION_MIN_BYTES);
+        int n = (int) Math.min(Math.min(maxSubcompactions, bySize), boundaries.size());
+        TreeSet<String> splitKeys = new TreeSet<>();
+        if (n > 1) {
+            Collections.sort(boundaries);
+            for (int i = 1; i < n; i++) {
+                splitKeys.add(boundaries.get((int) ((long) boundaries.size() * i / n)));
+            }
+            //第一个边界之前没有数据，不用单独成段
+            splitKeys.remove(boundaries.get(0));
+        }
+        return new ArrayList<>(splitKeys);
+    }
+
+    /**
+     * @描述 子压缩：合并输入表里key在[lo, hi)内的数据，按targetFileSize切成几个输出表
+     * 删除标记和已过期的数据在最底层直接丢掉，否则过期数据要转成删除标记继续遮住旧值；
+     * 被更新的范围删除覆盖的数据一定已删除，直接丢掉；范围删除本身只在最底层丢掉，否则截到每个输出表的范围内保留
+     * @param inputs 从新到旧
+     * @param partIndexes 输入表的完整稀疏索引
+     * @param rangeTombstones 输入表里的全部范围删除
+     * @param lo 包含，null表示不限
+     * @param hi 不包含，null表示不限
+     * @param bottommost
+     * @param now
+     * @return List<SsTable> 按key升序，范围内全部被删除时为空
+     * @Author taoxier
+     */
+    private List<SsTable> subcompact(List<SsTable> inputs, List<TreeMap<String, Position>> partIndexes,
+                               List<RangeRmCommand> rangeTombstones, String lo, String hi, boolean bottommost, long now) {
+        TreeMap<String, Command> compressTable = new TreeMap<>();//去重后存到这里，压缩表
+        Map<String, List<Command>> mergeChains = new HashMap<>();//有合并命令的key在各表里的全部版本
+        for (int i = 0; i < inputs.size(); i++) {
+            SsTable ssTable = inputs.get(i);
+            TreeMap<String, Position> partIndex = partIndexes.get(i);
+            NavigableMap<String, Position> parts = partIndex;
+            //旧格式的表数据段顺序和字节串顺序可能不同，全部读
+            if (!ssTable.isLegacy()) {
+                String from = lo == null ? null : partIndex.floorKey(lo);
+                if (from != null) {
+                    parts = parts.tailMap(from, true);
+                }
+                if (hi != null) {
+                    parts = parts.headMap(hi, false);
+                }
+            }
+            //按稀疏索引逐段读取
+            for (Position position : parts.values()) {
+                if (backgroundRateLimiter != null) {
+                    backgroundRateLimiter.acquire(position.getLen());
+                }
+                for (Command cmd : ssTable.readDataPart(position)) {
+                    if ((lo != null && cmd.getKey().compareTo(lo) < 0) || (hi != null && cmd.getKey().compareTo(hi) >= 0)) {
+                        continue;
+                    }
+                    Command existing = compressTable.get(cmd.getKey());
+                    if (existing != null && (existing instanceof MergeCommand || cmd instanceof MergeCommand)) {
+                        mergeChains.computeIfAbsent(cmd.getKey(), k -> new ArrayList<>(Collections.singletonList(existing))).add(cmd);
+                    }
+                    //从新到旧遍历，已有的就是更新的版本，除非序列号更大
+                    if (existing == null || cmd.getSeq() > existing.getSeq()) {
+                        compressTable.put(cmd.getKey(), cmd);
+                    }
+                }
+            }
+        }
+
+        //最新版本是合并命令的，和更旧的版本合并
+        for (Map.Entry<String, Command> entry : compressTable.entrySet()) {
+            if (entry.getValue() instanceof MergeCommand) {
+                List<Command> chain = mergeChains.get(entry.getKey());
+                entry.setValue(foldMerges(chain == null ? Collections.singletonList(entry.getValue()) : chain,
+                        rangeTombstones, bottommost, now));
+            }
+        }
+
+        Iterator<Map.Entry<String, Command>> it = compressTable.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Command> entry = it.next();
+            Command cmd = entry.getValue();
+            boolean expired = cmd instanceof SetCommand && ((SetCommand) cmd).expiredAt(now);
+            if (coveredByRangeTombstone(rangeTombstones, cmd)) {
+                it.remove();
+            } else if (bottommost && (cmd instanceof RmCommand || expired)) {
+                it.remove();
+            } else if (expired) {
+                RmCommand rm = new RmCommand(cmd.getKey());
+                rm.setSeq(cmd.getSeq());
+                entry.setValue(rm);
+            }
+        }
+
+        //按编码后的大小切分，cuts是第二个起每个输出表的第一个key
+        List<String> cuts = new ArrayList<>();
+        long bytes = 0;
+        for (Command cmd : compressTable.values()) {
+            if (bytes >= targetFileSize) {
+                cuts.add(cmd.getKey());
+                bytes = 0;
+            }
+            bytes += CommandCodec.encodedSize(cmd);
+        }
+        List<SsTable> outputs = new ArrayList<>(cuts.size() + 1);
+        try {
+            for (int i = 0; i <= cuts.size(); i++) {
+                String start = i == 0 ? lo : cuts.get(i - 1);
+                String end = i == cuts.size() ? hi : cuts.get(i);
+                SortedMap<String, Command> part = start == null ? compressTable : compressTable.tailMap(start);
+                if (end != null) {
+                    part = part.headMap(end);
+                }
+                List<RangeRmCommand> kept = bottommost ? Collections.<RangeRmCommand>emptyList()
+                        : clip(rangeTombstones, start, end);
+                //全部被删除时不用生成新表
+                if (part.isEmpty() && kept.isEmpty()) {
+                    continue;
+                }
+                SsTable ssTable = SsTable.createFromCompressTable(nextTableFilePath(), partSize, part, kept, blockCache,
+                        backgroundRateLimiter, valueLog, directIo, hashIndex);//按编号命名 创压缩表对应的ssTable
+                ssTable.setLevel(COMPACT_LEVEL);
+                outputs.add(ssTable);
+            }
+        } catch (RuntimeException e) {
+            //已写好的输出表不登记，直接删除
+            for (SsTable ssTable : outputs) {
+                ssTable.markObsolete();
+                ssTable.unref();
+            }
+            throw e;
+        }
+        return outputs;
+    }
+
+    /**
+     * @描述 把范围删除截到[lo, hi)内，截完为空的丢掉
+     * @param rangeTombstones
+     * @param lo 包含，null表示不限
+     * @param hi 不包含，null表示不限
+     * @return List<RangeRmCommand>
+     * @Author taoxier
+     */
+    private static List<RangeRmCommand> clip(List<RangeRmCommand> rangeTombstones, String lo, String hi) {
+        List<RangeRmCommand> clipped = new ArrayList<>();
+        for (RangeRmCommand rangeRmCommand : rangeTombstones) {
+            String start = lo != null && rangeRmCommand.getKey().compareTo(lo) < 0 ? lo : rangeRmCommand.getKey();
+            String end = hi != null && rangeRmCommand.getEndKey().compareTo(hi) > 0 ? hi : rangeRmCommand.getEndKey();
+            if (start.compareTo(end) < 0) {
+                RangeRmCommand command = new RangeRmCommand(start, end);
+                command.setSeq(rangeRmCommand.getSeq());
+                clipped.add(command);
+            }
+        }
+        return clipped;
+    }
+
+    /**
+     * @描述 压缩时合并同一个key的合并命令：从新到旧找到旧值（set、rm或被范围删除隔开）就算出结果；
+     * 找不到旧值时在最底层按没有旧值算，否则合成一条合并命令
+     * @param chain key在输入表里的全部版本，最新的是合并命令
+     * @param rangeTombstones
+     * @param bottommost
+     * @param now
+     * @return Command
+     * @Author taoxier
+     */
+    private Command foldMerges(List<Command> chain, List<RangeRmCommand> rangeTombstones, boolean bottommost, long now) {
+        List<Command> sorted = new ArrayList<>(chain);
+        sorted.sort((o1, o2) -> Long.compare(o2.getSeq(), o1.getSeq()));
+        List<MergeCommand> merges = new ArrayList<>();
+        Command newer = null;
+        for (Command command : sorted) {
+            if (newer != null && separated(rangeTombstones, command, newer)) {
+                return MergeCommand.resolve(merges, null, 0);
+            }
+            if (command instanceof MergeCommand) {
+                merges.add((MergeCommand) command);
+                newer = command;
+                continue;
+            }
+            if (command instanceof SetCommand) {
+                //旧值过期时值日志里的记录可能已经被回收，不再读
+                SetCommand set = (SetCommand) command;
+                String value = set.expiredAt(now) ? null
+                        : set.getValuePointer() != null ? valueLog.read(set.getValuePointer()) : set.getValue();
+                return MergeCommand.resolve(merges, value, set.getExpireAt());
+            }
+            return MergeCommand.resolve(merges, null, 0);
+        }
+        return bottommost ? MergeCommand.resolve(merges, null, 0) : MergeCommand.combine(merges);
+    }
+
+    /**
+     * @描述 两个版本之间是否有范围删除，有的话更旧的版本已被删除
+     * @param rangeTombstones
+     * @param older
+     * @param newer
+     * @return boolean
+     * @Author taoxier
+     */
+    private static boolean separated(List<RangeRmCommand> rangeTombstones, Command older, Command newer) {
+        for (RangeRmCommand rangeRmCommand : rangeTombstones) {
+            if (rangeRmCommand.covers(older.getKey(), older.getSeq()) && rangeRmCommand.getSeq() < newer.getSeq()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @描述 数据是否被序列号更大的范围删除覆盖
+     * @param rangeTombstones
+     * @param cmd
+     * @return boolean
+     * @Author taoxier
+     */
+    private static boolean coveredByRangeTombstone(List<RangeRmCommand> rangeTombstones, Command cmd) {
+        for (RangeRmCommand rangeRmCommand : rangeTombstones) {
+            if (rangeRmCommand.covers(cmd.getKey(), cmd.getSeq())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @描述 检查是否需要压缩，0层表超过阈值时提交后台压缩
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void checkIfCompress() {
+        int level0 = 0;
+        for (SsTable ssTable : current.get().getSsTables()) {
+            if (ssTable.getLevel() == FLUSH_LEVEL) {
+                level0++;
+            }
+        }
+        if (level0 > compressionThreshold && !compactionExecutor.isShutdown()
+                && compactionScheduled.compareAndSet(false, true)) {
+            compactionExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compressSsTables();
+                        collectValueLog();
+                    } catch (Throwable t) {
+                        LoggerUtil.error(LOGGER, t, logFormat, "compressSsTables", "fail");
+                    } finally {
+                        compactionScheduled.set(false);
+                    }
+                    //压缩期间可能又积累了足够多的0层表
+                    checkIfCompress();
+                }
+            });
+        }
+    }
+
+    /**
+     * @描述 手动回收值日志，在压缩线程上做，等做完再返回
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void garbageCollectValueLog() {
+        if (valueLog == null) {
+            return;
+        }
+        try {
+            compactionExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    collectValueLog();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @描述 回收值日志：从旧到新找第一个失效value占比达到阈值的文件，把其中仍有效的value重新写入，再删除文件
+     * 重新写入走普通写入路径，新value进内存表和wal，持久化时再进新的值日志文件；
+     * 一次只回收一个文件，在压缩线程上执行
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void collectValueLog() {
+        if (valueLog == null) {
+            return;
+        }
+        for (long fileNumber : valueLog.sealedFiles()) {
+            //上次检查之后没有新写入，有效的value不会变少
+            long seq = sequence.get();
+            Long scanned = valueLogScanned.get(fileNumber);
+            if (scanned != null && scanned == seq) {
+                continue;
+            }
+            valueLogScanned.put(fileNumber, seq);
+
+            long fileSize = valueLog.fileSize(fileNumber);
+            long[] liveBytes = new long[1];
+            Version version = acquireVersion();
+            try {
+                valueLog.forEach(fileNumber, (key, pointer) -> {
+                    if (isLiveValue(version, key, pointer)) {
+                        liveBytes[0] += 4 + key.length() + 4 + pointer.getLen();
+                    }
+                });
+            } finally {
+                version.unref();
+            }
+            if (fileSize == 0 || (double) (fileSize - liveBytes[0]) / fileSize < valueLogGcDiscardRatio) {
+                continue;
+            }
+
+            long[] rewritten = new long[1];
+            valueLog.forEach(fileNumber, (key, pointer) -> {
+                try {
+                    writeLock.lock();
+                    //在写锁内重新确认，检查之后可能已经被覆盖或删除
+                    Version latest = acquireVersion();
+                    try {
+                        if (isLiveValue(latest, key, pointer)) {
+                            //有合并命令时写入合并后的值，和当前读到的一样
+                            Command command = latest.get(key, Long.MAX_VALUE);
+                            appendCommand(new SetCommand(key, latest.value(command), ((SetCommand) command).getExpireAt()));
+                            rewritten[0]++;
+                        }
+                    } finally {
+                        latest.unref();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    writeLock.unlock();
+                }
+            });
+            //重新写入的value落盘后才能删除旧文件
+            syncWal();
+            valueLogScanned.remove(fileNumber);
+            valueLog.retire(fileNumber);
+            LoggerUtil.info(LOGGER, logFormat, "collectValueLog",
+                    fileNumber + ValueLog.VLOG + " size " + fileSize + " live " + liveBytes[0] + " rewritten " + rewritten[0]);
+            return;
+        }
+    }
+
+    /**
+     * @描述 值日志里的一条记录是否有效：key的最新命令（或者最新的合并命令合并到的命令）是没过期的set，并且指向这条记录
+     * @param version
      * @param key
+     * @param pointer
+     * @return boolean
+     * @Author taoxier
+     */
+    private static boolean isLiveValue(Version version, String key, ValuePointer pointer) {
+        //上面有合并命令时旧值仍然要用
+        Command command = version.mergeBase(key, Long.MAX_VALUE);
+        if (!(command instanceof SetCommand)) {
+            return false;
+        }
+        SetCommand set = (SetCommand) command;
+        return pointer.equals(set.getValuePointer()) && !set.expiredAt(System.currentTimeMillis());
+    }
+
+    /**
+     * @描述 写一条命令：分配序列号、写wal、写内存表，必要时持久化和压缩
+     * @param command
      * @return void
      * @Author taoxier
      */
-    @Override
-    public void rm(String key) {
+    private void writeCommand(Command command) throws IOException {
+        //后台积压时在拿锁之前减速或阻塞
+        writeController.delay(CommandCodec.encodedSize(command));
+        appendCommand(command);
+    }
+
+    /**
+     * @描述 不经过写入流控直接写一条命令；值日志回收在压缩线程上写，不能等压缩
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    private void appendCommand(Command command) throws IOException {
+        appendCommand(command, 0);
+    }
+
+    /**
+     * @描述 写一条命令，seq为0时分配下一个序列号，否则用给定的序列号（副本应用主节点的记录）
+     * @param command
+     * @param seq
+     * @return void
+     * @Author taoxier
+     */
+    private void appendCommand(Command command, long seq) throws IOException {
         try {
-            RmCommand command = new RmCommand(key);
-            byte[] commandBytes = JSONObject.toJSONBytes(command);
             // 加锁
-            indexLock.writeLock().lock();
+            writeLock.lock();
+            //在锁内分配序列号，保证wal中的顺序和序列号一致
+            if (seq == 0) {
+                seq = sequence.get() + 1;
+            } else if (seq < sequence.get()) {
+                throw new IllegalStateException("-[异常抛出]：序列号回退 " + seq + " < " + sequence.get());
+            }
+            command.setSeq(seq);
 
             //写wal
-            wal.writeInt(commandBytes.length);
-            wal.write(commandBytes);
+            appendWal(wal, command);
             //写内存表
-            memTable.put(key, command);
-            //内存表过阈值就持久化
+            MemTable memTable = current.get().getMemTable();
+            memTable.put(command);
+            //写进内存表后才对快照可见
+            sequence.set(seq);
+            published(command);
+
+            //内存表达到一定阀值，写进SsTable
             if (memTable.size() > storeThreshold) {
+                //切换内存表，后台持久化到SsTable
                 switchMemTable();
-                storeSsTable();
             }
             //检查是否需要压缩
             checkIfCompress();
+        } finally {
+            //解锁
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @描述 一批命令只拿一次写锁：连续分配序列号，编码后一次写进wal，再依次写内存表
+     * @param commands
+     * @return void
+     * @Author taoxier
+     */
+    private void appendCommands(List<Command> commands) throws IOException {
+        try {
+            writeLock.lock();
+            long seq = sequence.get();
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (Command command : commands) {
+                command.setSeq(++seq);
+                ByteBuffer record = CommandCodec.encodeWithLength(command);
+                records.write(record.array(), 0, record.limit());
+            }
+            wal.write(records.toByteArray());
+            MemTable memTable = current.get().getMemTable();
+            for (Command command : commands) {
+                memTable.put(command);
+            }
+            sequence.set(seq);
+            for (Command command : commands) {
+                published(command);
+            }
+            if (memTable.size() > storeThreshold) {
+                switchMemTable();
+            }
+            checkIfCompress();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @描述 命令写进内存表之后：追加到复制日志，让行缓存失效，之后的读一定能看到新值；需要持有写锁
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    private void published(Command command) {
+        if (replicationLog != null) {
+            replicationLog.append(command);
+        }
+        if (rowCache != null) {
+            if (command instanceof RangeRmCommand) {
+                rowCache.clear();
+            } else {
+                rowCache.invalidate(command.getKey());
+            }
+        }
+    }
 
+    /**
+     * @描述 提交一批写入，写入流控按整批的大小计算
+     * @param batch
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void write(WriteBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            long bytes = 0;
+            for (Command command : batch.getCommands()) {
+                bytes += CommandCodec.encodedSize(command);
+            }
+            writeController.delay(bytes);
+            appendCommands(batch.getCommands());
         } catch (Throwable t) {
             throw new RuntimeException(t);
-        } finally {
-            indexLock.writeLock().unlock();
         }
     }
 
     /**
-     * @描述 关掉关掉全部关掉
-     * @param
+     * @描述 增改
+     * @param key
+     * @param value
      * @return void
      * @Author taoxier
      */
-    public void close() throws IOException {
+    @Override
+    public void set(byte[] key, byte[] value) {
+        doSet(BytesUtil.toByteString(key), BytesUtil.toByteString(value), 0);
+    }
+
+    @Override
+    public void set(ByteBuffer key, ByteBuffer value) {
+        doSet(BytesUtil.toByteString(key), BytesUtil.toByteString(value), 0);
+    }
+
+    @Override
+    public void set(String key, String value) {
+        doSet(BytesUtil.utf8ToByteString(key), BytesUtil.utf8ToByteString(value), 0);
+    }
+
+    /**
+     * @描述 写入带过期时间的数据，过期后读不到，压缩时删除
+     * @param key
+     * @param value
+     * @param ttl 存活时间，毫秒
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void set(byte[] key, byte[] value, long ttl) {
+        doSet(BytesUtil.toByteString(key), BytesUtil.toByteString(value), expireAt(ttl));
+    }
+
+    @Override
+    public void set(String key, String value, long ttl) {
+        doSet(BytesUtil.utf8ToByteString(key), BytesUtil.utf8ToByteString(value), expireAt(ttl));
+    }
+
+    static long expireAt(long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("-[异常抛出]：ttl必须大于0");
+        }
+        return System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * @描述 写入字节串形式的key和value
+     * @param key
+     * @param value
+     * @param expireAt 过期时间，0表示不过期
+     * @return void
+     * @Author taoxier
+     */
+    private void doSet(String key, String value, long expireAt) {
+        try {
+            writeCommand(new SetCommand(key, value, expireAt));
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * @描述 获取，不加锁，读当前版本
+     * @param key
+     * @return byte[]
+     * @Author taoxier
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        return BytesUtil.toBytes(doGet(BytesUtil.toByteString(key)));
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer key) {
+        byte[] value = BytesUtil.toBytes(doGet(BytesUtil.toByteString(key)));
+        return value == null ? null : ByteBuffer.wrap(value);
+    }
+
+    @Override
+    public String get(String key) {
+        return BytesUtil.byteStringToUtf8(doGet(BytesUtil.utf8ToByteString(key)));
+    }
+
+    /**
+     * @描述 按字节串形式的key读当前版本
+     * @param key
+     * @return String 字节串形式的value
+     * @Author taoxier
+     */
+    private String doGet(String key) {
+        long stamp = 0;
+        if (rowCache != null) {
+            //先取戳再查，查找期间有写入时不放入缓存
+            stamp = rowCache.stamp(key);
+            RowCache.Row row = rowCache.get(key);
+            if (row != null) {
+                return row.valueAt(System.currentTimeMillis());
+            }
+        }
+        Version version = acquireVersion();
+        try {
+            //依次从内存表、不可变内存表、ssTable中从新到旧找
+            Command command = version.get(key, Long.MAX_VALUE);
+            //set命令返回对应的值，rm命令、已过期或没有这个key返回null
+            String value = version.value(command);
+            if (rowCache != null) {
+                rowCache.put(key, toRow(command, value), stamp);
+            }
+            return value;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        } finally {
+            version.unref();
+        }
+    }
+
+    /**
+     * @描述 批量获取，整批只取一次版本，按key排好序再查，相邻的key落在同一个数据段时块缓存能命中
+     * @param keys
+     * @return List<byte[]> 和keys一一对应，没有的为null
+     * @Author taoxier
+     */
+    @Override
+    public List<byte[]> multiGet(List<byte[]> keys) {
+        String[] byteKeys = new String[keys.size()];
+        String[] values = new String[keys.size()];
+        long[] stamps = new long[keys.size()];
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < byteKeys.length; i++) {
+            byteKeys[i] = BytesUtil.toByteString(keys.get(i));
+            if (rowCache != null) {
+                //和doGet一样，先取戳再取版本
+                stamps[i] = rowCache.stamp(byteKeys[i]);
+                RowCache.Row row = rowCache.get(byteKeys[i]);
+                if (row != null) {
+                    values[i] = row.valueAt(System.currentTimeMillis());
+                    continue;
+                }
+            }
+            misses.add(i);
+        }
+        if (!misses.isEmpty()) {
+            misses.sort((o1, o2) -> byteKeys[o1].compareTo(byteKeys[o2]));
+            Version version = acquireVersion();
+            try {
+                for (int i : misses) {
+                    Command command = version.get(byteKeys[i], Long.MAX_VALUE);
+                    values[i] = version.value(command);
+                    if (rowCache != null) {
+                        rowCache.put(byteKeys[i], toRow(command, values[i]), stamps[i]);
+                    }
+                }
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            } finally {
+                version.unref();
+            }
+        }
+        List<byte[]> result = new ArrayList<>(values.length);
+        for (String value : values) {
+            result.add(BytesUtil.toBytes(value));
+        }
+        return result;
+    }
+
+    /**
+     * @描述 查找结果转成行缓存的一行：set命令缓存值和过期时间，其余缓存为key不存在
+     * @param command
+     * @param value 命令对应的值，值日志里的value已经读出来
+     * @return RowCache.Row
+     * @Author taoxier
+     */
+    private static RowCache.Row toRow(Command command, String value) {
+        if (command instanceof SetCommand && value != null) {
+            return new RowCache.Row(value, ((SetCommand) command).getExpireAt());
+        }
+        return new RowCache.Row(null, 0);
+    }
+
+    /**
+     * @描述 运行统计：缓存命中情况、后台积压和写入流控
+     * @param
+     * @return StoreStats
+     * @Author taoxier
+     */
+    public StoreStats getStats() {
+        StoreStats stats = new StoreStats();
+        if (rowCache != null) {
+            stats.setRowCacheHits(rowCache.getHits());
+            stats.setRowCacheMisses(rowCache.getMisses());
+            stats.setRowCacheHitRatio(rowCache.hitRatio());
+            stats.setRowCacheSize(rowCache.size());
+        }
+        if (blockCache != null) {
+            stats.setBlockCacheHits(blockCache.getHits());
+            stats.setBlockCacheMisses(blockCache.getMisses());
+            stats.setBlockCacheBytes(blockCache.size());
+        }
+        Version version = current.get();
+        int level0 = 0;
+        for (SsTable ssTable : version.getSsTables()) {
+            if (ssTable.getLevel() == FLUSH_LEVEL) {
+                level0++;
+            }
+        }
+        stats.setImmutableMemTables(version.getImmutableMemTables().size());
+        stats.setLevel0Tables(level0);
+        stats.setSsTables(version.getSsTables().size());
+        stats.setDelayedWrites(writeController.getDelayedWrites());
+        stats.setStoppedWrites(writeController.getStoppedWrites());
+        stats.setStallMillis(writeController.getStallMillis());
+        return stats;
+    }
+
+    /**
+     * @描述 创建快照，固定当前序列号和版本，之后的写入和压缩都不影响快照读到的数据
+     * 用完需要关闭，释放持有的版本
+     * @param
+     * @return Snapshot
+     * @Author taoxier
+     */
+    @Override
+    public Snapshot snapshot() {
+        //先在值日志登记纪元，之后回收的文件要等快照关闭才删除
+        long epoch = valueLog == null ? 0 : valueLog.pin();
+        //先取序列号再取版本，不大于该序列号的写入一定在这个版本的内存表或ssTable里
+        long seq = sequence.get();
+        return new Snapshot(seq, acquireVersion(), valueLog, epoch);
+    }
+
+    /**
+     * @描述 在线检查点：持久化内存表，把当前版本的ssTable和封住的值日志硬链接到targetDir，再写一个只含这些表的MANIFEST
+     * 链接期间持有版本，压缩替换掉的表和回收的值日志要等检查点完成才删除；
+     * 耗时只和内存表大小、文件个数有关，和数据量无关。targetDir可以直接作为数据目录打开
+     * 不直接链接MANIFEST：它一直在追加并且会被整个替换，链接出来的内容和链接的表对不上
+     * @param targetDir 不存在或为空的目录，需要和数据目录在同一个文件系统上，否则退回复制
+     * @return void
+     * @Author taoxier
+     */
+    public void checkpoint(String targetDir) {
+        long start = System.currentTimeMillis();
+        File target = new File(targetDir);
+        String[] existing = target.list();
+        if (existing != null && existing.length > 0) {
+            throw new IllegalArgumentException("-[异常抛出]：检查点目录不为空 " + targetDir);
+        }
+        if (!target.isDirectory() && !target.mkdirs()) {
+            throw new RuntimeException("-[异常抛出]：创建检查点目录失败 " + targetDir);
+        }
+        List<MemTable> pending = flushAndWait();
+        Version version = acquireVersion();
+        try {
+            checkFlushed(version, pending);
+            List<VersionEdit.TableEntry> entries = new ArrayList<>();
+            long lastSequence = 0;
+            for (SsTable ssTable : version.getSsTables()) {
+                link(new File(ssTable.getFilePath()), new File(target, ssTable.getFileName()));
+                entries.add(tableEntry(ssTable));
+                lastSequence = Math.max(lastSequence, ssTable.getMaxSeq());
+            }
+            //硬链接和原文件是同一个inode，之后追加的内容也会出现在检查点里，退回复制时还可能复制到写了一半的记录，
+            //所以先封住当前追加的文件，之后的追加写到新文件，只链接封住时已有的文件
+            if (valueLog != null) {
+                for (long fileNumber : valueLog.seal()) {
+                    String fileName = fileNumber + ValueLog.VLOG;
+                    link(new File(dataDir + fileName), new File(target, fileName));
+                }
+            }
+            Manifest.create(target.getPath() + File.separator, entries, lastSequence, manifest.getNextFileNumber());
+            LoggerUtil.info(LOGGER, logFormat, "checkpoint", targetDir + " tables " + entries.size()
+                    + " seq " + lastSequence + " cost " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            version.unref();
+        }
+    }
+
+    /**
+     * @描述 切换内存表，等这之前的所有内存表都持久化完
+     * @param
+     * @return List<MemTable> 等待持久化的内存表，用checkFlushed检查是否成功
+     * @Author taoxier
+     */
+    private List<MemTable> flushAndWait() {
+        List<MemTable> pending = new ArrayList<>();
+        try {
+            writeLock.lock();
+            Version version = current.get();
+            pending.addAll(version.getImmutableMemTables());
+            if (!version.getMemTable().isEmpty()) {
+                pending.add(version.getMemTable());
+                switchMemTable();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            //持久化是单线程按顺序执行的，排在后面的空任务完成时之前的都已完成
+            flushExecutor.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        return pending;
+    }
+
+    /**
+     * @描述 持久化失败的内存表会留在版本里
+     * @param version
+     * @param pending
+     * @return void
+     * @Author taoxier
+     */
+    private static void checkFlushed(Version version, List<MemTable> pending) {
+        for (MemTable memTable : pending) {
+            if (version.getImmutableMemTables().contains(memTable)) {
+                throw new IllegalStateException("-[异常抛出]：内存表持久化失败");
+            }
+        }
+    }
+
+    /**
+     * @描述 导入SsTableWriter离线生成的表，不经过wal和内存表，也不重新编码：
+     * 文件复制进数据目录并刷盘后再检查和登记，整张表分配一个新的序列号，登记到MANIFEST；
+     * 不用硬链接，否则调用方之后重写原路径时会截断正在被读的表；
+     * 内存表里有范围内的key时先持久化，保证导入的数据比所有已有数据都新。
+     * 和已有表的key范围都不重叠时直接放进压缩层，不占0层的个数，不触发压缩和写入流控。
+     * 导入的数据不在wal里，副本之后会重新全量同步
+     * @param filePath 外部表的路径，导入后原文件不变
+     * @return void
+     * @Author taoxier
+     */
+    public void ingestExternalFile(String filePath) {
+        long start = System.currentTimeMillis();
+        File source = new File(filePath);
+        String tablePath = nextTableFilePath();
+        //检查的是复制出来的文件，复制之后原文件再怎么改都和store无关
+        copy(source, new File(tablePath), source.length());
+        SsTable ssTable = SsTable.createFromFile(tablePath, blockCache);
+        try {
+            if (ssTable.getTableMetaInfo().getVersion() < TableMetaInfo.PARTITIONED_INDEX_VERSION
+                    || !ssTable.getRangeTombstones().isEmpty() || ssTable.getTableMetaInfo().getMaxSeq() != 0) {
+                throw new IllegalArgumentException("-[异常抛出]：不是SsTableWriter生成的表 " + filePath);
+            }
+            String firstKey = ssTable.firstKey();
+            String lastKey = ssTable.lastKey();
+            if (firstKey == null || firstKey.compareTo(lastKey) > 0) {
+                throw new IllegalArgumentException("-[异常抛出]：外部表key范围不对 " + filePath);
+            }
+            for (int attempt = 0; attempt < INGEST_FLUSH_ATTEMPTS; attempt++) {
+                try {
+                    writeLock.lock();
+                    Version version = current.get();
+                    if (!memTablesOverlap(version, firstKey, lastKey)) {
+                        long globalSeq = sequence.incrementAndGet();
+                        ssTable.setGlobalSeq(globalSeq);
+                        ssTable.setLevel(tablesOverlap(version, firstKey, lastKey) ? FLUSH_LEVEL : COMPACT_LEVEL);
+                        VersionEdit edit = new VersionEdit();
+                        edit.addTable(tableEntry(ssTable));
+                        edit.setLastSequence(globalSeq);
+                        manifest.logEdit(edit);
+                        installVersion(version.ingested(ssTable));
+                        if (rowCache != null) {
+                            rowCache.clear();
+                        }
+                        if (replicationLog != null) {
+                            replicationLog.skip(globalSeq);
+                        }
+                        checkIfCompress();
+                        LoggerUtil.info(LOGGER, logFormat, "ingestExternalFile", filePath + " -> " + ssTable.getFileName()
+                                + " level " + ssTable.getLevel() + " seq " + globalSeq
+                                + " cost " + (System.currentTimeMillis() - start) + "ms");
+                        return;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                //内存表里有范围内的key，它们的序列号比导入的小，但查找时会先查到，持久化后再导入
+                List<MemTable> pending = flushAndWait();
+                Version version = acquireVersion();
+                try {
+                    checkFlushed(version, pending);
+                } finally {
+                    version.unref();
+                }
+            }
+            throw new IllegalStateException("-[异常抛出]：写入一直落在导入的key范围内 " + filePath);
+        } catch (RuntimeException e) {
+            ssTable.markObsolete();
+            throw e;
+        } finally {
+            ssTable.unref();
+        }
+    }
+
+    /**
+     * @描述 内存表和不可变内存表里是否有[firstKey, lastKey]内的key或者和它重叠的范围删除
+     * @param version
+     * @param firstKey
+     * @param lastKey
+     * @return boolean
+     * @Author taoxier
+     */
+    private static boolean memTablesOverlap(Version version, String firstKey, String lastKey) {
+        List<MemTable> memTables = new ArrayList<>(version.getImmutableMemTables());
+        memTables.add(version.getMemTable());
+        for (MemTable memTable : memTables) {
+            for (Command command : memTable) {
+                int c = command.getKey().compareTo(firstKey);
+                if (c >= 0 && command.getKey().compareTo(lastKey) <= 0) {
+                    return true;
+                }
+                if (c > 0) {
+                    break;
+                }
+            }
+            for (RangeRmCommand rangeRmCommand : memTable.getRangeTombstones()) {
+                if (rangeRmCommand.getKey().compareTo(lastKey) <= 0 && rangeRmCommand.getEndKey().compareTo(firstKey) > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @描述 是否有表和[firstKey, lastKey]重叠，旧格式的表当作重叠；
+     * 范围删除可能超出表里key的范围，查找时先于压缩层生效，有范围删除的表也当作重叠。
+     * 压缩层的表也要看：压缩的输出表放在输入表原来的位置，在导入的表前面，有共同的key时会挡住导入的新版本
+     * @param version
+     * @param firstKey
+     * @param lastKey
+     * @return boolean
+     * @Author taoxier
+     */
+    private static boolean tablesOverlap(Version version, String firstKey, String lastKey) {
+        for (SsTable table : version.getSsTables()) {
+            String min = table.firstKey();
+            String max = table.lastKey();
+            if (min == null || max == null || !table.getRangeTombstones().isEmpty()
+                    || min.compareTo(lastKey) <= 0 && max.compareTo(firstKey) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @描述 复制文件的前length个字节并刷盘，目标文件已存在时覆盖
+     * @param source
+     * @param target
+     * @param length
+     * @return void
+     * @Author taoxier
+     */
+    private static void copy(File source, File target, long length) {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < length) {
+                long n = in.transferTo(position, length - position, out);
+                if (n <= 0) {
+                    throw new IOException("-[异常抛出]：文件比预期短 " + source + " " + position + "/" + length);
+                }
+                position += n;
+            }
+            out.force(true);
+        } catch (IOException e) {
+            target.delete();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 硬链接文件，不在同一个文件系统时复制；值日志可能刚被回收删除，跳过
+     * @param source
+     * @param link
+     * @return void
+     * @Author taoxier
+     */
+    private static void link(File source, File link) {
+        try {
+            Files.createLink(link.toPath(), source.toPath());
+        } catch (NoSuchFileException e) {
+            if (!source.getName().endsWith(ValueLog.VLOG)) {
+                throw new RuntimeException(e);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            try {
+                Files.copy(source.toPath(), link.toPath());
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * @描述 删除
+     * @param key
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void rm(byte[] key) {
+        doRm(BytesUtil.toByteString(key));
+    }
+
+    @Override
+    public void rm(ByteBuffer key) {
+        doRm(BytesUtil.toByteString(key));
+    }
+
+    @Override
+    public void rm(String key) {
+        doRm(BytesUtil.utf8ToByteString(key));
+    }
+
+    private void doRm(String key) {
+        try {
+            writeCommand(new RmCommand(key));
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * @描述 范围删除，删除[startKey, endKey)内的全部key，只写一条范围删除记录
+     * @param startKey 包含
+     * @param endKey 不包含
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void deleteRange(byte[] startKey, byte[] endKey) {
+        doDeleteRange(BytesUtil.toByteString(startKey), BytesUtil.toByteString(endKey));
+    }
+
+    @Override
+    public void deleteRange(String startKey, String endKey) {
+        doDeleteRange(BytesUtil.utf8ToByteString(startKey), BytesUtil.utf8ToByteString(endKey));
+    }
+
+    private void doDeleteRange(String startKey, String endKey) {
+        if (startKey.compareTo(endKey) >= 0) {
+            throw new IllegalArgumentException("-[异常抛出]：startKey必须小于endKey");
+        }
+        try {
+            writeCommand(new RangeRmCommand(startKey, endKey));
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * @描述 合并，只写一条合并命令，读和压缩时再和旧值合并；计数器之类的更新不用先读再写
+     * @param key
+     * @param operator 合并运算的名字，见MergeOperators
+     * @param operand
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void merge(byte[] key, String operator, byte[] operand) {
+        doMerge(BytesUtil.toByteString(key), operator, BytesUtil.toByteString(operand));
+    }
+
+    @Override
+    public void merge(String key, String operator, String operand) {
+        doMerge(BytesUtil.utf8ToByteString(key), operator, BytesUtil.utf8ToByteString(operand));
+    }
+
+    private void doMerge(String key, String operator, String operand) {
+        //没注册的运算在写入时就报错，不要等到读的时候
+        MergeOperators.get(operator);
+        try {
+            writeCommand(new MergeCommand(key, operator, operand));
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * @描述 比较并设置，在写锁内读当前值，等于expected时写入value
+     * @param key
+     * @param expected 为null表示key不存在（包括已删除、已过期）
+     * @param value
+     * @return boolean 是否写入
+     * @Author taoxier
+     */
+    @Override
+    public boolean compareAndSet(byte[] key, byte[] expected, byte[] value) {
+        return doCompareAndSet(BytesUtil.toByteString(key), BytesUtil.toByteString(expected), BytesUtil.toByteString(value));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, String expected, String value) {
+        return doCompareAndSet(BytesUtil.utf8ToByteString(key), BytesUtil.utf8ToByteString(expected),
+                BytesUtil.utf8ToByteString(value));
+    }
+
+    private boolean doCompareAndSet(String key, String expected, String value) {
+        SetCommand command = new SetCommand(key, value);
+        writeController.delay(CommandCodec.encodedSize(command));
+        try {
+            writeLock.lock();
+            //写锁内没有别的写入，读到的就是最新值
+            if (!Objects.equals(doGet(key), expected)) {
+                return false;
+            }
+            appendCommand(command);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public WriteController getWriteController() {
+        return writeController;
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public ReplicationLog getReplicationLog() {
+        return replicationLog;
+    }
+
+    /**
+     * @描述 最新已写入的序列号，副本用它表示已经应用到主节点的哪个位置
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * @描述 把已经写进wal的数据刷盘，可能有一部分已经随内存表切换进了不可变内存表的wal
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    private void syncWal() {
+        try {
+            writeLock.lock();
+            wal.getFD().sync();
+            File[] files = new File(dataDir).listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                if (file.getName().startsWith(WAL_TMP)) {
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        channel.force(false);
+                    } catch (NoSuchFileException e) {
+                        //已经持久化成ssTable并删除
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @描述 副本是否处在全量同步中：标记文件还在说明上次全量同步没做完，重连时要重新全量同步
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    public boolean isBootstrapping() {
+        return new File(dataDir, BOOTSTRAP).exists();
+    }
+
+    /**
+     * @描述 开始全量同步时建标记文件并刷盘，全量同步结束（快照里没有的key已经删掉）后删掉
+     * @param bootstrapping
+     * @return void
+     * @Author taoxier
+     */
+    public void setBootstrapping(boolean bootstrapping) {
+        File marker = new File(dataDir, BOOTSTRAP);
+        try {
+            if (bootstrapping) {
+                try (FileChannel channel = FileChannel.open(marker.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            } else {
+                //删标记之前确保全量同步写进去的数据都已经落盘
+                syncWal();
+                Files.deleteIfExists(marker.toPath());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 副本应用主节点的一条记录，保留主节点分配的序列号；序列号不能比已应用的小
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    public void applyReplicated(Command command) {
+        writeController.delay(CommandCodec.encodedSize(command));
+        try {
+            appendCommand(command, command.getSeq());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @描述 区间读，读当前版本
+     * @param startKey
+     * @param endKey
+     * @param limit
+     * @return Map<String, String>
+     * @Author taoxier
+     */
+    @Override
+    public Map<String, String> scan(String startKey, String endKey, int limit) {
+        return toUtf8Entries(doScan(BytesUtil.utf8ToByteString(startKey),
+                endKey == null ? null : BytesUtil.utf8ToByteString(endKey), limit));
+    }
+
+    @Override
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] startKey, byte[] endKey, int limit) {
+        return toByteEntries(doScan(BytesUtil.toByteString(startKey),
+                endKey == null ? null : BytesUtil.toByteString(endKey), limit));
+    }
+
+    private List<SetCommand> doScan(String startKey, String endKey, int limit) {
+        Version version = acquireVersion();
+        try {
+            return version.scan(startKey, endKey, Long.MAX_VALUE, limit);
+        } finally {
+            version.unref();
+        }
+    }
+
+    /**
+     * @描述 区间读的结果转成UTF-8的key和value，保持字节序
+     * @param commands
+     * @return Map<String, String>
+     * @Author taoxier
+     */
+    static Map<String, String> toUtf8Entries(List<SetCommand> commands) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (SetCommand set : commands) {
+            entries.put(BytesUtil.byteStringToUtf8(set.getKey()), BytesUtil.byteStringToUtf8(set.getValue()));
+        }
+        return entries;
+    }
+
+    static List<Map.Entry<byte[], byte[]>> toByteEntries(List<SetCommand> commands) {
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(commands.size());
+        for (SetCommand set : commands) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(BytesUtil.toBytes(set.getKey()), BytesUtil.toBytes(set.getValue())));
+        }
+        return entries;
+    }
+
+    /**
+     * @描述 关掉关掉全部关掉
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void close() throws IOException {
+        //等后台持久化做完，持久化完成后可能还会提交压缩
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //等后台压缩做完
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactionPool.shutdown();
         wal.close();
-        for (SsTable ssTable : ssTables) {
-            ssTable.close();
+        manifest.close();
+        //释放当前版本，没有快照引用的ssTable随之关闭
+        current.get().unref();
+        if (valueLog != null) {
+            valueLog.close();
         }
     }
 }
@@ -0,0 +1,181 @@
+package service;
+
+import model.command.Command;
+import utils.CommandCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/22 20:00
+ * @注释 复制日志，主节点在内存里保留最近写入的wal记录，副本按序列号来取
+ * 写入时在写锁内按序列号顺序追加，记录和wal一样用CommandCodec编码；总字节数超过容量时丢掉最旧的，
+ * 副本要的记录已经被丢掉时只能先用快照全量同步，再接着取之后的记录。
+ * 副本和主节点之间按帧传输：1字节帧类型 + 8字节序列号 + 8字节主节点最新序列号 + 4字节长度 + 内容
+ */
+public class ReplicationLog {
+
+    /**
+     * 一条wal记录，序列号就是记录的序列号
+     */
+    public static final byte FRAME_RECORD = 0;
+
+    /**
+     * 全量同步的一条set命令，序列号是快照的序列号
+     */
+    public static final byte FRAME_SNAPSHOT = 1;
+
+    /**
+     * 全量同步结束，序列号是快照的序列号，副本删掉快照里没有的key
+     */
+    public static final byte FRAME_SNAPSHOT_END = 2;
+
+    /**
+     * 没有新记录时定期发送，副本据此计算复制延迟
+     */
+    public static final byte FRAME_HEARTBEAT = 3;
+
+    /**
+     * 副本要求全量同步时REPLICATE带的序列号，上次全量同步没做完时用
+     */
+    public static final long FULL_SYNC_SEQ = -1;
+
+    /**
+     * 最多保留的字节数
+     */
+    private final long capacity;
+
+    /**
+     * 按序列号连续的记录，环形数组，第head个是第一条，可以按序列号直接定位
+     */
+    private byte[][] records;
+    private int head;
+    private int size;
+
+    /**
+     * 第一条记录的序列号
+     */
+    private long firstSeq;
+
+    /**
+     * 当前保留的字节数
+     */
+    private long bytes;
+
+    /**
+     * @描述 构造方法
+     * @param capacity 最多保留的字节数
+     * @param lastSeq 当前最新的序列号，之后的记录从它的下一个开始
+     * @return null
+     * @Author taoxier
+     */
+    public ReplicationLog(long capacity, long lastSeq) {
+        this.capacity = capacity;
+        this.records = new byte[1024][];
+        this.firstSeq = lastSeq + 1;
+    }
+
+    /**
+     * @描述 追加一条已经分配序列号的命令，需要持有写锁；序列号不连续时（副本全量同步时同一个序列号有多条）丢掉之前的记录
+     * @param command
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void append(Command command) {
+        byte[] record = new byte[CommandCodec.encodedSize(command)];
+        CommandCodec.encode(command, ByteBuffer.wrap(record));
+        if (command.getSeq() != firstSeq + size) {
+            while (size > 0) {
+                removeFirst();
+            }
+            firstSeq = command.getSeq();
+        }
+        if (size == records.length) {
+            byte[][] grown = new byte[records.length * 2][];
+            for (int i = 0; i < size; i++) {
+                grown[i] = get(i);
+            }
+            records = grown;
+            head = 0;
+        }
+        records[(head + size) % records.length] = record;
+        size++;
+        bytes += record.length;
+        //至少保留最新的一条
+        while (bytes > capacity && size > 1) {
+            removeFirst();
+            firstSeq++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @描述 跳过不在wal里的序列号（导入的外部表），丢掉之前的记录，副本只能全量同步
+     * @param seq 跳过的序列号，需要持有写锁
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void skip(long seq) {
+        while (size > 0) {
+            removeFirst();
+        }
+        firstSeq = seq + 1;
+        notifyAll();
+    }
+
+    /**
+     * @描述 从seq开始读最多max条记录，还没有时最多等waitMillis
+     * @param seq
+     * @param max
+     * @param waitMillis
+     * @return List<byte[]> 没等到时为空；seq之前的记录已经丢掉、或者seq超过了最新序列号的下一个时返回null
+     * @Author taoxier
+     */
+    public synchronized List<byte[]> read(long seq, int max, long waitMillis) throws InterruptedException {
+        if (seq < firstSeq || seq > lastSeq() + 1) {
+            return null;
+        }
+        if (seq == lastSeq() + 1 && waitMillis > 0) {
+            wait(waitMillis);
+            if (seq < firstSeq || seq > lastSeq() + 1) {
+                return null;
+            }
+        }
+        List<byte[]> result = new ArrayList<>();
+        for (int i = (int) (seq - firstSeq); i < size && result.size() < max; i++) {
+            result.add(get(i));
+        }
+        return result;
+    }
+
+    private byte[] get(int i) {
+        return records[(head + i) % records.length];
+    }
+
+    private void removeFirst() {
+        bytes -= records[head].length;
+        records[head] = null;
+        head = (head + 1) % records.length;
+        size--;
+    }
+
+    /**
+     * @描述 最新记录的序列号
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public synchronized long lastSeq() {
+        return firstSeq + size - 1;
+    }
+
+    public synchronized long getFirstSeq() {
+        return firstSeq;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
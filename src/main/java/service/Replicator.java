@@ -0,0 +1,231 @@
+package service;
+
+import dto.ActionDTO;
+import dto.ActionTypeEnum;
+import dto.RespDTO;
+import dto.RespStatusTypeEnum;
+import model.command.Command;
+import model.command.RmCommand;
+import model.command.SetCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.CommandCodec;
+import utils.LoggerUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/22 21:00
+ * @注释 副本的复制线程
+ * 连上主节点后发REPLICATE，带上本地已经应用到的序列号，之后一直读复制流，按主节点的序列号写进本地的NormalStore；
+ * 本地的序列号就是已经应用到主节点的位置，重启后从这里接着要。主节点要求全量同步时，
+ * 快照里的数据都用快照的序列号写入，同步结束时删掉本地比快照旧、快照里又没有的key。
+ * 全量同步开始时在数据目录里留一个标记文件，结束后才删：写入第一条快照数据后本地序列号就到了快照的位置，
+ * 中途断线时按序列号接着要会漏掉快照里还没收到的key，所以标记还在时重连要求重新全量同步。
+ * 断线后隔一段时间重连。副本本身应该只读，对外用只读的SocketServerController提供get和scan
+ */
+public class Replicator implements Closeable {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(Replicator.class);
+    private final String logFormat = "[Replicator][{}]: {}";
+
+    /**
+     * 断线后重连的间隔
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * 全量同步结束后清理旧key时每批读的条数
+     */
+    private static final int BATCH = 1000;
+
+    private final NormalStore store;
+
+    private final String primaryHost;
+
+    private final int primaryPort;
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    private volatile Socket socket;
+
+    /**
+     * 最近一次收到的主节点最新序列号
+     */
+    private volatile long primarySeq;
+
+    /**
+     * 最近一次收到主节点数据的时间
+     */
+    private volatile long lastContactMillis;
+
+    /**
+     * 是否正在全量同步，这期间本地数据不完整
+     */
+    private volatile boolean bootstrapping;
+
+    public Replicator(NormalStore store, String primaryHost, int primaryPort) {
+        this.store = store;
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.bootstrapping = store.isBootstrapping();
+        this.thread = new Thread(this::run, "replicator");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Socket s = new Socket(primaryHost, primaryPort)) {
+                socket = s;
+                replicate(s);
+            } catch (Throwable t) {
+                if (closed) {
+                    break;
+                }
+                LoggerUtil.info(LOGGER, logFormat, "run", "disconnected " + t);
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @描述 在一个连接上要复制流并应用，直到断开
+     * @param s
+     * @return void
+     * @Author taoxier
+     */
+    private void replicate(Socket s) throws IOException, ClassNotFoundException {
+        ObjectOutputStream oos = new ObjectOutputStream(s.getOutputStream());
+        ActionDTO dto = new ActionDTO(ActionTypeEnum.REPLICATE, (byte[]) null, null);
+        dto.setSeq(store.isBootstrapping() ? ReplicationLog.FULL_SYNC_SEQ : store.getSequence());
+        oos.writeObject(dto);
+        oos.flush();
+        ObjectInputStream ois = new ObjectInputStream(s.getInputStream());
+        RespDTO resp = (RespDTO) ois.readObject();
+        if (resp.getStatus() != RespStatusTypeEnum.SUCCESS) {
+            throw new IOException("-[异常抛出]：主节点没有开启复制 " + primaryHost + ":" + primaryPort);
+        }
+        LoggerUtil.info(LOGGER, logFormat, "replicate", "connected from seq " + dto.getSeq());
+        boolean snapshotStarted = false;
+        while (!closed) {
+            byte type = ois.readByte();
+            long seq = ois.readLong();
+            primarySeq = ois.readLong();
+            byte[] payload = new byte[ois.readInt()];
+            ois.readFully(payload);
+            lastContactMillis = System.currentTimeMillis();
+            switch (type) {
+                case ReplicationLog.FRAME_RECORD:
+                    store.applyReplicated(CommandCodec.decode(ByteBuffer.wrap(payload), 0));
+                    break;
+                case ReplicationLog.FRAME_SNAPSHOT:
+                    if (!snapshotStarted) {
+                        //每次全量同步第一条数据之前确保标记已经落盘
+                        store.setBootstrapping(true);
+                        snapshotStarted = true;
+                        bootstrapping = true;
+                        LoggerUtil.info(LOGGER, logFormat, "replicate", "bootstrap from seq " + seq);
+                    }
+                    store.applyReplicated(CommandCodec.decode(ByteBuffer.wrap(payload), 0));
+                    break;
+                case ReplicationLog.FRAME_SNAPSHOT_END:
+                    removeOlderThan(seq);
+                    store.setBootstrapping(false);
+                    snapshotStarted = false;
+                    bootstrapping = false;
+                    LoggerUtil.info(LOGGER, logFormat, "replicate", "bootstrap done " + seq);
+                    break;
+                case ReplicationLog.FRAME_HEARTBEAT:
+                    break;
+                default:
+                    throw new IOException("-[异常抛出]：未知复制帧类型 " + type);
+            }
+        }
+    }
+
+    /**
+     * @描述 全量同步结束：快照里的key都用快照的序列号写过，序列号更小的就是快照里没有的，删掉
+     * @param seq 快照的序列号
+     * @return void
+     * @Author taoxier
+     */
+    private void removeOlderThan(long seq) {
+        try (Snapshot snapshot = store.snapshot()) {
+            String from = "";
+            while (true) {
+                List<SetCommand> batch = snapshot.scanCommands(from, null, BATCH);
+                for (SetCommand set : batch) {
+                    if (set.getSeq() < seq) {
+                        Command rm = new RmCommand(set.getKey());
+                        rm.setSeq(seq);
+                        store.applyReplicated(rm);
+                    }
+                }
+                if (batch.size() < BATCH) {
+                    break;
+                }
+                from = batch.get(batch.size() - 1).getKey() + '\u0000';
+            }
+        }
+    }
+
+    /**
+     * @描述 复制延迟：主节点最新序列号比本地多多少条
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public long getLag() {
+        return Math.max(0, primarySeq - store.getSequence());
+    }
+
+    /**
+     * @描述 距离最近一次收到主节点数据过了多少毫秒，主节点每隔一段时间至少发一次心跳
+     * @param
+     * @return long
+     * @Author taoxier
+     */
+    public long getMillisSinceLastContact() {
+        return lastContactMillis == 0 ? -1 : System.currentTimeMillis() - lastContactMillis;
+    }
+
+    public long getPrimarySeq() {
+        return primarySeq;
+    }
+
+    public boolean isBootstrapping() {
+        return bootstrapping;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            s.close();
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package service;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/19 20:10
+ * @注释 行缓存，缓存key的最新值或删除标记，热点key不用再依次查内存表和ssTable
+ * 按条数限制大小，淘汰策略是W-TinyLFU：新数据先进窗口LRU（1%），从窗口挤出来的候选和主区的淘汰者比较访问频率，
+ * 频率高的留在主区；主区是分段LRU，再次访问的从试用段升到保护段（80%）。访问频率用4位计数的Count-Min Sketch估计，
+ * 累计次数达到容量的10倍时全部减半，让旧的热点慢慢冷下去。
+ * 分成多个分片各自加锁。写入后调用invalidate，读者在查找之前取戳，查完放入缓存时戳变了就放弃，
+ * 避免查找期间的写入被旧值覆盖
+ */
+public class RowCache {
+
+    /**
+     * 分片数，2的幂
+     */
+    private static final int SHARDS = 16;
+
+    private final Shard[] shards;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    /**
+     * @param capacity 最多缓存的条数
+     */
+    public RowCache(int capacity) {
+        this.shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(Math.max(1, (capacity + SHARDS - 1) / SHARDS));
+        }
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * @描述 查找前取戳，之后用它调用put
+     * @param key
+     * @return long
+     * @Author taoxier
+     */
+    public long stamp(String key) {
+        return shard(key).stamp;
+    }
+
+    /**
+     * @描述 查缓存，没有返回null
+     * @param key
+     * @return Row
+     * @Author taoxier
+     */
+    public Row get(String key) {
+        Row row = shard(key).get(key);
+        if (row == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return row;
+    }
+
+    /**
+     * @描述 放入查找结果，取戳之后分片有过写入时放弃
+     * @param key
+     * @param row
+     * @param stamp
+     * @return void
+     * @Author taoxier
+     */
+    public void put(String key, Row row, long stamp) {
+        shard(key).put(key, row, stamp);
+    }
+
+    /**
+     * @描述 key被写入或删除，移除缓存
+     * @param key
+     * @return void
+     * @Author taoxier
+     */
+    public void invalidate(String key) {
+        shard(key).invalidate(key);
+    }
+
+    /**
+     * @描述 清空，范围删除时使用
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    public void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @描述 命中率，没有读过时为0
+     * @param
+     * @return double
+     * @Author taoxier
+     */
+    public double hitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private Shard shard(String key) {
+        return shards[spread(key.hashCode()) & (SHARDS - 1)];
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 缓存的一行：字节串形式的值和过期时间，值为null表示key不存在
+     */
+    public static final class Row {
+        private final String value;
+        private final long expireAt;
+
+        public Row(String value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+
+        /**
+         * @描述 now时刻的值，已过期返回null
+         * @param now
+         * @return String
+         * @Author taoxier
+         */
+        public String valueAt(long now) {
+            if (expireAt > 0 && now >= expireAt) {
+                return null;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 节点所在的区
+     */
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node {
+        private final String key;
+        private Row row;
+        private int queue;
+        private Node prev;
+        private Node next;
+
+        private Node(String key, Row row) {
+            this.key = key;
+            this.row = row;
+        }
+    }
+
+    /**
+     * 双向链表，头是最久没访问的
+     */
+    private static final class Queue {
+        private final Node head = new Node(null, null);
+        private int size;
+
+        private Queue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        private void addLast(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            size++;
+        }
+
+        private void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        private Node first() {
+            return head.next == head ? null : head.next;
+        }
+    }
+
+    /**
+     * 一个分片：窗口LRU + 分段LRU主区 + 频率估计
+     */
+    private static final class Shard {
+        private final HashMap<String, Node> nodes;
+        private final Queue[] queues;
+        private final int windowCapacity;
+        private final int mainCapacity;
+        private final int protectedCapacity;
+        private final FrequencySketch sketch;
+
+        /**
+         * 写入戳，每次写入加一
+         */
+        private volatile long stamp;
+
+        private Shard(int capacity) {
+            this.nodes = new HashMap<>();
+            this.queues = new Queue[]{new Queue(), new Queue(), new Queue()};
+            this.windowCapacity = Math.max(1, capacity / 100);
+            this.mainCapacity = Math.max(1, capacity - windowCapacity);
+            this.protectedCapacity = Math.max(1, mainCapacity * 4 / 5);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        private synchronized Row get(String key) {
+            sketch.increment(key);
+            Node node = nodes.get(key);
+            if (node == null) {
+                return null;
+            }
+            onHit(node);
+            return node.row;
+        }
+
+        private synchronized void put(String key, Row row, long stamp) {
+            if (stamp != this.stamp) {
+                return;
+            }
+            Node node = nodes.get(key);
+            if (node != null) {
+                node.row = row;
+                onHit(node);
+                return;
+            }
+            node = new Node(key, row);
+            node.queue = WINDOW;
+            nodes.put(key, node);
+            queues[WINDOW].addLast(node);
+            evict();
+        }
+
+        private synchronized void invalidate(String key) {
+            stamp++;
+            Node node = nodes.remove(key);
+            if (node != null) {
+                queues[node.queue].remove(node);
+            }
+        }
+
+        private synchronized void clear() {
+            stamp++;
+            for (Node node : nodes.values()) {
+                queues[node.queue].remove(node);
+            }
+            nodes.clear();
+        }
+
+        private synchronized int size() {
+            return nodes.size();
+        }
+
+        /**
+         * @描述 命中后调整位置：窗口和保护段移到最新，试用段升到保护段，保护段满了把最旧的降回试用段
+         * @param node
+         * @return void
+         * @Author taoxier
+         */
+        private void onHit(Node node) {
+            queues[node.queue].remove(node);
+            if (node.queue == PROBATION) {
+                node.queue = PROTECTED;
+                if (queues[PROTECTED].size >= protectedCapacity) {
+                    Node demoted = queues[PROTECTED].first();
+                    queues[PROTECTED].remove(demoted);
+                    demoted.queue = PROBATION;
+                    queues[PROBATION].addLast(demoted);
+                }
+            }
+            queues[node.queue].addLast(node);
+        }
+
+        /**
+         * @描述 窗口超出容量时，把窗口最旧的作为候选放进主区；主区满了就和试用段最旧的比较频率，淘汰频率低的
+         * @param
+         * @return void
+         * @Author taoxier
+         */
+        private void evict() {
+            while (queues[WINDOW].size > windowCapacity) {
+                Node candidate = queues[WINDOW].first();
+                queues[WINDOW].remove(candidate);
+                if (queues[PROBATION].size + queues[PROTECTED].size < mainCapacity) {
+                    candidate.queue = PROBATION;
+                    queues[PROBATION].addLast(candidate);
+                    continue;
+                }
+                Node victim = queues[PROBATION].first();
+                if (victim == null) {
+                    victim = queues[PROTECTED].first();
+                }
+                if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    queues[victim.queue].remove(victim);
+                    nodes.remove(victim.key);
+                    candidate.queue = PROBATION;
+                    queues[PROBATION].addLast(candidate);
+                } else {
+                    nodes.remove(candidate.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 访问频率估计：4行Count-Min Sketch，每个计数最大15，累计次数达到阈值时全部减半
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb2f7a3c9, 0x61c88647, 0x2545f491};
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+            this.table = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * Math.max(16, capacity);
+        }
+
+        private void increment(String key) {
+            int h = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(h, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int frequency(String key) {
+            int h = key.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(h, i)]);
+            }
+            return min;
+        }
+
+        private int index(int h, int i) {
+            h = (h ^ SEEDS[i]) * 0x9E3779B1;
+            return (h ^ (h >>> 15)) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
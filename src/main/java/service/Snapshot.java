@@ -0,0 +1,120 @@
+package service;
+
+import model.command.SetCommand;
+import model.vlog.ValueLog;
+import utils.BytesUtil;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/4 16:05
+ * @注释 快照，固定在某个序列号上的只读视图
+ * 快照持有创建时的版本，内存表只读不大于该序列号的版本，版本里的ssTable在快照期间不会因为压缩被删除，
+ * 旧版本value所在的值日志文件在快照期间也不会因为回收被删除
+ */
+public class Snapshot implements Closeable {
+
+    /**
+     * 快照的序列号
+     */
+    private final long sequence;
+
+    /**
+     * 创建快照时的版本
+     */
+    private final Version version;
+
+    /**
+     * 值日志和创建时登记的纪元，值日志为null表示不做键值分离
+     */
+    private final ValueLog valueLog;
+    private final long epoch;
+
+    private final AtomicBoolean closed;
+
+    Snapshot(long sequence, Version version, ValueLog valueLog, long epoch) {
+        this.sequence = sequence;
+        this.version = version;
+        this.valueLog = valueLog;
+        this.epoch = epoch;
+        this.closed = new AtomicBoolean(false);
+    }
+
+    /**
+     * @描述 按快照读取
+     * @param key
+     * @return String
+     * @Author taoxier
+     */
+    public String get(String key) {
+        return BytesUtil.byteStringToUtf8(doGet(BytesUtil.utf8ToByteString(key)));
+    }
+
+    public byte[] get(byte[] key) {
+        return BytesUtil.toBytes(doGet(BytesUtil.toByteString(key)));
+    }
+
+    private String doGet(String key) {
+        if (closed.get()) {
+            throw new IllegalStateException("-[异常抛出]：快照已关闭");
+        }
+        return version.value(version.get(key, sequence));
+    }
+
+    /**
+     * @描述 按快照读区间，见Store.scan
+     * @param startKey
+     * @param endKey 为null表示到最后
+     * @param limit
+     * @return Map<String, String>
+     * @Author taoxier
+     */
+    public Map<String, String> scan(String startKey, String endKey, int limit) {
+        return NormalStore.toUtf8Entries(scanCommands(BytesUtil.utf8ToByteString(startKey),
+                endKey == null ? null : BytesUtil.utf8ToByteString(endKey), limit));
+    }
+
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] startKey, byte[] endKey, int limit) {
+        return NormalStore.toByteEntries(scanCommands(BytesUtil.toByteString(startKey),
+                endKey == null ? null : BytesUtil.toByteString(endKey), limit));
+    }
+
+    /**
+     * @描述 按快照读区间内的set命令，保留过期时间和序列号，用于复制时给副本做全量同步
+     * @param startKey 字节串
+     * @param endKey 字节串，为null表示到最后
+     * @param limit
+     * @return List<SetCommand>
+     * @Author taoxier
+     */
+    public List<SetCommand> scanCommands(String startKey, String endKey, int limit) {
+        if (closed.get()) {
+            throw new IllegalStateException("-[异常抛出]：快照已关闭");
+        }
+        return version.scan(startKey, endKey, sequence, limit);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @描述 释放持有的版本和值日志纪元
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            version.unref();
+            if (valueLog != null) {
+                valueLog.unpin(epoch);
+            }
+        }
+    }
+}
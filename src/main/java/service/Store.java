@@ -8,11 +8,79 @@
 package service;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * key和value本质上是字节，按无符号字典序排列；String接口按UTF-8转换
+ */
 public interface Store extends Closeable {
     void set(String key, String value);
 
+    void set(byte[] key, byte[] value);
+
+    /**
+     * 写入key和value中position到limit之间的字节，不改变position
+     */
+    void set(ByteBuffer key, ByteBuffer value);
+
+    /**
+     * 写入带过期时间的数据，ttl单位毫秒
+     */
+    void set(String key, String value, long ttl);
+
+    void set(byte[] key, byte[] value, long ttl);
+
     String get(String key);
 
+    byte[] get(byte[] key);
+
+    ByteBuffer get(ByteBuffer key);
+
     void rm(String key);
+
+    void rm(byte[] key);
+
+    void rm(ByteBuffer key);
+
+    /**
+     * 删除[startKey, endKey)内的全部key
+     */
+    void deleteRange(String startKey, String endKey);
+
+    void deleteRange(byte[] startKey, byte[] endKey);
+
+    /**
+     * 把operand按名为operator的合并运算（见MergeOperators）合并到key的值上，写入时不读旧值
+     */
+    void merge(String key, String operator, String operand);
+
+    void merge(byte[] key, String operator, byte[] operand);
+
+    /**
+     * key的当前值等于expected时改成value，expected为null表示key不存在；返回是否修改
+     */
+    boolean compareAndSet(String key, String expected, String value);
+
+    boolean compareAndSet(byte[] key, byte[] expected, byte[] value);
+
+    /**
+     * 一次提交一批写入，整批只拿一次写锁
+     */
+    void write(WriteBatch batch);
+
+    /**
+     * 批量获取，返回的value和keys一一对应，没有的为null
+     */
+    List<byte[]> multiGet(List<byte[]> keys);
+
+    /**
+     * 按key的字节序返回[startKey, endKey)内最多limit个key和value，endKey为null表示到最后
+     */
+    Map<String, String> scan(String startKey, String endKey, int limit);
+
+    List<Map.Entry<byte[], byte[]>> scan(byte[] startKey, byte[] endKey, int limit);
+
+    Snapshot snapshot();
 }
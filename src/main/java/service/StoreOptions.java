@@ -0,0 +1,128 @@
+package service;
+
+import lombok.Getter;
+import lombok.Setter;
+import model.memtable.MemTableTypeEnum;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/17 20:30
+ * @注释 存储配置，没设置的项用默认值
+ */
+@Getter
+@Setter
+public class StoreOptions {
+
+    /**
+     * 默认块缓存大小，8MB
+     */
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * 持久化阈值，内存表超过这么多条就持久化
+     */
+    private int storeThreshold = 1000;
+
+    /**
+     * 数据分区大小，每个数据段的命令条数
+     */
+    private int partSize = 100;
+
+    /**
+     * 日志压缩大小阈值，0层表超过这么多个就压缩
+     */
+    private int compressionThreshold = 4;
+
+    /**
+     * 内存表实现，内存表很大时可以用ARENA，把数据放到堆外
+     */
+    private MemTableTypeEnum memTableType = MemTableTypeEnum.SKIP_LIST;
+
+    /**
+     * 块缓存大小（字节），索引块和数据段共用；两级索引的表只有顶层索引常驻内存，
+     * 索引占用的堆内存由它限制，和数据量无关。为0时不缓存
+     */
+    private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+
+    /**
+     * 等待持久化的不可变内存表达到这么多个时停止写入，差一个时减速
+     */
+    private int maxImmutableMemTables = 3;
+
+    /**
+     * 0层表达到这么多个时减速，之后每多一个速率减半
+     */
+    private int level0SlowdownTrigger = 8;
+
+    /**
+     * 0层表达到这么多个时停止写入
+     */
+    private int level0StopTrigger = 12;
+
+    /**
+     * 待压缩字节数达到这么多时减速，0表示不看
+     */
+    private long softPendingCompactionBytes = 64L * 1024 * 1024;
+
+    /**
+     * 待压缩字节数达到这么多时停止写入，0表示不看
+     */
+    private long hardPendingCompactionBytes = 256L * 1024 * 1024;
+
+    /**
+     * 减速时前台写入的初始速率，字节每秒
+     */
+    private long delayedWriteRate = 16L * 1024 * 1024;
+
+    /**
+     * 持久化和压缩读写磁盘的总速率，字节每秒，避免后台任务占满磁盘影响前台读；0表示不限速
+     */
+    private long backgroundIoRate = 0;
+
+    /**
+     * 持久化和压缩写ssTable时绕过页缓存（直接I/O，需要Java 10及以上），后台写不会挤掉前台读要用的热数据；
+     * 不支持时退回普通写并且边写边刷盘。读表始终经过页缓存
+     */
+    private boolean useDirectIoForFlushAndCompaction = false;
+
+    /**
+     * 持久化和压缩写ssTable时每个数据段后面加哈希索引，点查不用在数据段里顺序比较key，每条记录多占约8字节；
+     * 只影响之后写的表，旧表照常读
+     */
+    private boolean dataBlockHashIndex = false;
+
+    /**
+     * 一次压缩最多切成几个并行的子压缩，默认和CPU核数相同
+     */
+    private int maxSubcompactions = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 压缩输出的单个表大小上限（字节），超过后切到下一个表，之后的压缩只重写和0层重叠的那几个表
+     */
+    private long targetFileSize = 64L * 1024 * 1024;
+
+    /**
+     * 行缓存最多缓存的key数，热点key的读不用再查内存表和ssTable；0表示不开
+     */
+    private int rowCacheSize = 0;
+
+    /**
+     * value达到这么多字节时和key分开，放进值日志，压缩时只搬指针；0表示不分离
+     */
+    private int valueLogThreshold = 0;
+
+    /**
+     * 单个值日志文件大小上限
+     */
+    private long valueLogFileSize = 64L * 1024 * 1024;
+
+    /**
+     * 值日志文件里失效的value占比达到这么多时回收
+     */
+    private double valueLogGcDiscardRatio = 0.5;
+
+    /**
+     * 复制日志大小（字节），主节点在内存里保留这么多最近的写入，副本落后更多时要先全量同步；0表示不做复制
+     */
+    private long replicationLogSize = 0;
+}
@@ -0,0 +1,70 @@
+package service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/19 21:00
+ * @注释 存储运行统计，取的时候生成一份
+ */
+@Getter
+@Setter
+public class StoreStats {
+
+    /**
+     * 行缓存命中、未命中次数和命中率，没开行缓存时都是0
+     */
+    private long rowCacheHits;
+    private long rowCacheMisses;
+    private double rowCacheHitRatio;
+
+    /**
+     * 行缓存当前条数
+     */
+    private int rowCacheSize;
+
+    /**
+     * 块缓存命中、未命中次数
+     */
+    private long blockCacheHits;
+    private long blockCacheMisses;
+
+    /**
+     * 块缓存当前字节数
+     */
+    private long blockCacheBytes;
+
+    /**
+     * 不可变内存表个数、0层表个数、ssTable总数
+     */
+    private int immutableMemTables;
+    private int level0Tables;
+    private int ssTables;
+
+    /**
+     * 写入流控：被减速的写入次数、被阻塞的写入次数、阻塞总时长（毫秒）
+     */
+    private long delayedWrites;
+    private long stoppedWrites;
+    private long stallMillis;
+
+    @Override
+    public String toString() {
+        return "StoreStats{" +
+                "rowCacheHits=" + rowCacheHits +
+                ", rowCacheMisses=" + rowCacheMisses +
+                ", rowCacheHitRatio=" + rowCacheHitRatio +
+                ", rowCacheSize=" + rowCacheSize +
+                ", blockCacheHits=" + blockCacheHits +
+                ", blockCacheMisses=" + blockCacheMisses +
+                ", blockCacheBytes=" + blockCacheBytes +
+                ", immutableMemTables=" + immutableMemTables +
+                ", level0Tables=" + level0Tables +
+                ", ssTables=" + ssTables +
+                ", delayedWrites=" + delayedWrites +
+                ", stoppedWrites=" + stoppedWrites +
+                ", stallMillis=" + stallMillis +
+                '}';
+    }
+}
@@ -0,0 +1,382 @@
+package service;
+
+import model.command.Command;
+import model.command.MergeCommand;
+import model.command.RangeRmCommand;
+import model.command.SetCommand;
+import model.memtable.MemTable;
+import model.sstable.SsTable;
+import model.vlog.ValueLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/6 20:40
+ * @注释 版本，某一时刻的内存表、不可变内存表和ssTable列表
+ * 版本创建后不再修改，持久化和压缩时生成新版本原子替换；读者拿到版本后不用加锁，
+ * 用引用计数保证读的过程中版本里的内存表不会被释放、ssTable不会被关闭和删除，
+ * 有值日志时还在值日志登记纪元，保证表里指针指向的文件在版本释放前不会被回收删除
+ */
+public class Version {
+
+    /**
+     * 内存表，写入只会追加新版本，读的时候按序列号过滤
+     */
+    private final MemTable memTable;
+
+    /**
+     * 等待持久化的不可变内存表，从新到旧
+     */
+    private final List<MemTable> immutableMemTables;
+
+    /**
+     * ssTable列表，从新到旧
+     */
+    private final List<SsTable> ssTables;
+
+    /**
+     * 引用计数，作为当前版本时由store持有一个引用
+     */
+    private final AtomicInteger refs;
+
+    /**
+     * 值日志，为null表示不做键值分离
+     */
+    private final ValueLog valueLog;
+
+    /**
+     * 在值日志登记的纪元
+     */
+    private final long epoch;
+
+    Version(MemTable memTable, List<MemTable> immutableMemTables, List<SsTable> ssTables, ValueLog valueLog) {
+        this.memTable = memTable;
+        this.valueLog = valueLog;
+        this.epoch = valueLog == null ? 0 : valueLog.pin();
+        this.immutableMemTables = Collections.unmodifiableList(immutableMemTables);
+        this.ssTables = Collections.unmodifiableList(ssTables);
+        this.refs = new AtomicInteger(1);
+        //版本持有其中每个内存表和ssTable的引用
+        if (!memTable.ref()) {
+            throw new IllegalStateException("-[异常抛出]：内存表已释放");
+        }
+        for (MemTable immutableMemTable : immutableMemTables) {
+            if (!immutableMemTable.ref()) {
+                throw new IllegalStateException("-[异常抛出]：内存表已释放");
+            }
+        }
+        for (SsTable ssTable : ssTables) {
+            if (!ssTable.ref()) {
+                throw new IllegalStateException("-[异常抛出]：ssTable已释放 " + ssTable.getFilePath());
+            }
+        }
+    }
+
+    /**
+     * @描述 按序列号查找key的最新命令，依次查内存表、不可变内存表、ssTable
+     * 每一处都同时看点数据和覆盖key的范围删除，取序列号大的；
+     * 越往后的数据越旧，所以在某一处找到任何一个就是结果，被范围删除覆盖时返回范围删除；
+     * 找到的是合并命令时接着往旧找，直到找到旧值，合并成一个set命令返回
+     * @param key
+     * @param seq
+     * @return Command
+     * @Author taoxier
+     */
+    public Command get(String key, long seq) {
+        Command command = find(key, seq);
+        if (!(command instanceof MergeCommand)) {
+            return command;
+        }
+        List<MergeCommand> merges = new ArrayList<>();
+        while (command instanceof MergeCommand) {
+            merges.add((MergeCommand) command);
+            command = find(key, command.getSeq() - 1);
+        }
+        //旧值已经过期时value为null，过期时间照样传下去，见MergeCommand.resolve
+        long expireAt = command instanceof SetCommand ? ((SetCommand) command).getExpireAt() : 0;
+        return MergeCommand.resolve(merges, value(command), expireAt);
+    }
+
+    /**
+     * @描述 key当前的值来自哪条命令：跳过上面的合并命令，返回它们合并到的那条命令
+     * @param key
+     * @param seq
+     * @return Command
+     * @Author taoxier
+     */
+    public Command mergeBase(String key, long seq) {
+        Command command = find(key, seq);
+        while (command instanceof MergeCommand) {
+            command = find(key, command.getSeq() - 1);
+        }
+        return command;
+    }
+
+    /**
+     * @描述 序列号不大于seq的最新一条命令，合并命令原样返回
+     * @param key
+     * @param seq
+     * @return Command
+     * @Author taoxier
+     */
+    private Command find(String key, long seq) {
+        Command command = newer(memTable.get(key, seq), memTable.getRangeTombstone(key, seq));
+        if (command != null) {
+            return command;
+        }
+        for (MemTable immutableMemTable : immutableMemTables) {
+            command = newer(immutableMemTable.get(key, seq), immutableMemTable.getRangeTombstone(key, seq));
+            if (command != null) {
+                return command;
+            }
+        }
+        //ssTable都是在内存表之前持久化的，从新到旧找到第一个就是最新的
+        //key不在表的key范围内、表里的数据都比seq新时不用读文件，范围删除常驻内存照样要看
+        for (SsTable ssTable : ssTables) {
+            command = ssTable.getMinSeq() > seq ? null : ssTable.query(key);
+            if (command != null && command.getSeq() > seq) {
+                command = null;
+            }
+            command = newer(command, ssTable.rangeTombstone(key, seq));
+            if (command != null) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @描述 按key升序读[startKey, endKey)内序列号不大于seq时存在的key，最多limit个
+     * 每一轮从内存表、不可变内存表和每个ssTable各取最多limit个候选key，候选key里不大于
+     * 被截断的来源中最后一个key的部分是完整的，逐个按点查确定最新命令（范围删除、过期都由点查处理）；
+     * 不够limit个时从下一个key接着取，内存表和ssTable都直接定位到这一轮的起始key
+     * @param startKey 字节串
+     * @param endKey 字节串，为null表示到最后
+     * @param seq
+     * @param limit
+     * @return List<SetCommand> value已经从值日志读出来的set命令
+     * @Author taoxier
+     */
+    public List<SetCommand> scan(String startKey, String endKey, long seq, int limit) {
+        List<SetCommand> result = new ArrayList<>();
+        String from = startKey;
+        while (result.size() < limit) {
+            TreeSet<String> candidates = new TreeSet<>();
+            //所有被截断的来源里最小的最后一个key，为null表示都没截断
+            String complete = null;
+            List<MemTable> memTables = new ArrayList<>(immutableMemTables.size() + 1);
+            memTables.add(memTable);
+            memTables.addAll(immutableMemTables);
+            for (MemTable table : memTables) {
+                List<String> keys = new ArrayList<>();
+                Iterator<Command> it = table.iterator(from);
+                while (it.hasNext() && keys.size() < limit) {
+                    String key = it.next().getKey();
+                    if (endKey != null && key.compareTo(endKey) >= 0) {
+                        break;
+                    }
+                    keys.add(key);
+                }
+                candidates.addAll(keys);
+                complete = truncatedAt(keys, limit, complete);
+            }
+            for (SsTable ssTable : ssTables) {
+                List<String> keys = new ArrayList<>();
+                for (Command command : ssTable.scan(from, endKey, limit)) {
+                    keys.add(command.getKey());
+                }
+                candidates.addAll(keys);
+                complete = truncatedAt(keys, limit, complete);
+            }
+            for (String key : complete == null ? candidates : candidates.headSet(complete, true)) {
+                Command command = get(key, seq);
+                String value = value(command);
+                if (value != null) {
+                    SetCommand set = new SetCommand(key, value, ((SetCommand) command).getExpireAt());
+                    set.setSeq(command.getSeq());
+                    result.add(set);
+                    if (result.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+            if (complete == null) {
+                break;
+            }
+            //下一个key：complete后面加一个最小的字节
+            from = complete + '\u0000';
+        }
+        return result;
+    }
+
+    private static String truncatedAt(List<String> keys, int limit, String complete) {
+        if (keys.size() < limit) {
+            return complete;
+        }
+        String last = keys.get(keys.size() - 1);
+        return complete == null || last.compareTo(complete) < 0 ? last : complete;
+    }
+
+    private static Command newer(Command command, RangeRmCommand rangeTombstone) {
+        if (rangeTombstone == null) {
+            return command;
+        }
+        if (command == null || rangeTombstone.getSeq() > command.getSeq()) {
+            return rangeTombstone;
+        }
+        return command;
+    }
+
+    /**
+     * @描述 命令对应的值：set命令且没过期时返回值，rm命令、已过期或没有命令返回null
+     * 过期数据读的时候惰性过滤，压缩时再物理删除；value在值日志里时按指针读出来
+     * @param command 从这个版本或持有这个版本的快照读到的命令
+     * @return String
+     * @Author taoxier
+     */
+    public String value(Command command) {
+        if (command instanceof SetCommand) {
+            SetCommand set = (SetCommand) command;
+            if (set.expiredAt(System.currentTimeMillis())) {
+                return null;
+            }
+            if (set.getValuePointer() != null) {
+                return valueLog.read(set.getValuePointer());
+            }
+            return set.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * @描述 切换内存表：当前内存表变为不可变内存表
+     * @param newMemTable
+     * @return Version
+     * @Author taoxier
+     */
+    Version switchMemTable(MemTable newMemTable) {
+        List<MemTable> imm = new ArrayList<>(immutableMemTables.size() + 1);
+        imm.add(memTable);
+        imm.addAll(immutableMemTables);
+        return new Version(newMemTable, imm, ssTables, valueLog);
+    }
+
+    /**
+     * @描述 不可变内存表持久化完成：移除该内存表，新ssTable放在最前
+     * @param flushed
+     * @param ssTable
+     * @return Version
+     * @Author taoxier
+     */
+    Version flushed(MemTable flushed, SsTable ssTable) {
+        List<MemTable> imm = new ArrayList<>(immutableMemTables);
+        imm.remove(flushed);
+        List<SsTable> tables = new ArrayList<>(ssTables.size() + 1);
+        tables.add(ssTable);
+        tables.addAll(ssTables);
+        return new Version(memTable, imm, tables, valueLog);
+    }
+
+    /**
+     * @描述 导入外部表：它比所有表都新，放在所在层的最前面
+     * @param ssTable
+     * @return Version
+     * @Author taoxier
+     */
+    Version ingested(SsTable ssTable) {
+        List<SsTable> tables = new ArrayList<>(ssTables.size() + 1);
+        for (SsTable table : ssTables) {
+            if (!tables.contains(ssTable) && table.getLevel() >= ssTable.getLevel()) {
+                tables.add(ssTable);
+            }
+            tables.add(table);
+        }
+        if (!tables.contains(ssTable)) {
+            tables.add(ssTable);
+        }
+        return new Version(memTable, new ArrayList<>(immutableMemTables), tables, valueLog);
+    }
+
+    /**
+     * @描述 压缩完成：移除输入表，压缩后的表放在输入表原来的位置
+     * @param inputs
+     * @param outputs 按key范围切分的输出表，范围互不重叠；为空表示输入的数据全部被删除
+     * @return Version
+     * @Author taoxier
+     */
+    Version compacted(List<SsTable> inputs, List<SsTable> outputs) {
+        List<SsTable> tables = new ArrayList<>(ssTables.size() + outputs.size());
+        boolean placed = false;
+        for (SsTable ssTable : ssTables) {
+            if (inputs.contains(ssTable)) {
+                if (!placed) {
+                    tables.addAll(outputs);
+                }
+                placed = true;
+            } else {
+                tables.add(ssTable);
+            }
+        }
+        if (!placed) {
+            tables.addAll(outputs);
+        }
+        return new Version(memTable, new ArrayList<>(immutableMemTables), tables, valueLog);
+    }
+
+    /**
+     * @描述 增加引用，失败说明版本已经被释放
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    boolean ref() {
+        while (true) {
+            int n = refs.get();
+            if (n <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @描述 释放引用，归零时释放其中的内存表和ssTable
+     * @param
+     * @return void
+     * @Author taoxier
+     */
+    void unref() {
+        if (refs.decrementAndGet() == 0) {
+            memTable.unref();
+            for (MemTable immutableMemTable : immutableMemTables) {
+                immutableMemTable.unref();
+            }
+            for (SsTable ssTable : ssTables) {
+                ssTable.unref();
+            }
+            if (valueLog != null) {
+                valueLog.unpin(epoch);
+            }
+        }
+    }
+
+    public MemTable getMemTable() {
+        return memTable;
+    }
+
+    public List<MemTable> getImmutableMemTables() {
+        return immutableMemTables;
+    }
+
+    public List<SsTable> getSsTables() {
+        return ssTables;
+    }
+}
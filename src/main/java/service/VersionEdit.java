@@ -0,0 +1,112 @@
+package service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/9 19:30
+ * @注释 版本变更，MANIFEST中的一条记录
+ * 一次持久化或压缩对ssTable集合的增删写在同一条记录里，要么都生效要么都不生效
+ */
+@Setter
+@Getter
+public class VersionEdit {
+
+    /**
+     * 新增的ssTable
+     */
+    private List<TableEntry> addedTables = new ArrayList<>();
+
+    /**
+     * 删除的ssTable文件名
+     */
+    private List<String> deletedTables = new ArrayList<>();
+
+    /**
+     * 已持久化的最大序列号，为空表示不变
+     */
+    private Long lastSequence;
+
+    /**
+     * 下一个可用的文件编号，为空表示不变
+     */
+    private Long nextFileNumber;
+
+    public VersionEdit addTable(TableEntry entry) {
+        addedTables.add(entry);
+        return this;
+    }
+
+    public VersionEdit deleteTable(String fileName) {
+        deletedTables.add(fileName);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "VersionEdit{" +
+                "addedTables=" + addedTables +
+                ", deletedTables=" + deletedTables +
+                ", lastSequence=" + lastSequence +
+                ", nextFileNumber=" + nextFileNumber +
+                '}';
+    }
+
+    /**
+     * ssTable在MANIFEST中的记录
+     */
+    @Setter
+    @Getter
+    public static class TableEntry {
+
+        /**
+         * 文件名
+         */
+        private String fileName;
+
+        /**
+         * 层级，0层是内存表直接持久化的表，1层是压缩后的表
+         */
+        private int level;
+
+        /**
+         * 表内最小序列号
+         */
+        private long minSeq;
+
+        /**
+         * 表内最大序列号
+         */
+        private long maxSeq;
+
+        /**
+         * 导入的外部表整体的序列号，表里的记录按它读；其他表为0
+         */
+        private long globalSeq;
+
+        public TableEntry() {
+        }
+
+        public TableEntry(String fileName, int level, long minSeq, long maxSeq) {
+            this.fileName = fileName;
+            this.level = level;
+            this.minSeq = minSeq;
+            this.maxSeq = maxSeq;
+        }
+
+        @Override
+        public String toString() {
+            return "TableEntry{" +
+                    "fileName='" + fileName + '\'' +
+                    ", level=" + level +
+                    ", minSeq=" + minSeq +
+                    ", maxSeq=" + maxSeq +
+                    ", globalSeq=" + globalSeq +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package service;
+
+import model.command.Command;
+import model.command.MergeCommand;
+import model.command.MergeOperators;
+import model.command.RmCommand;
+import model.command.SetCommand;
+import utils.BytesUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/25 20:00
+ * @注释 一批写入，用Store.write一次提交：只拿一次写锁，wal一次写入，序列号连续
+ * 同一个key在一批里写多次时后写的生效。崩溃时wal末尾可能只留下一批的前一部分，恢复时只重放完整的记录；
+ * 命令写入时会被分配序列号，一批写入后不要再次提交
+ */
+public class WriteBatch {
+
+    private final List<Command> commands = new ArrayList<>();
+
+    public void put(byte[] key, byte[] value) {
+        commands.add(new SetCommand(BytesUtil.toByteString(key), BytesUtil.toByteString(value), 0));
+    }
+
+    public void put(String key, String value) {
+        commands.add(new SetCommand(BytesUtil.utf8ToByteString(key), BytesUtil.utf8ToByteString(value), 0));
+    }
+
+    /**
+     * @描述 带过期时间的写入，过期时间从加入这一批时开始算
+     * @param key
+     * @param value
+     * @param ttl 存活时间，毫秒，必须大于0
+     * @return void
+     * @Author taoxier
+     */
+    public void put(byte[] key, byte[] value, long ttl) {
+        commands.add(new SetCommand(BytesUtil.toByteString(key), BytesUtil.toByteString(value), NormalStore.expireAt(ttl)));
+    }
+
+    public void put(String key, String value, long ttl) {
+        commands.add(new SetCommand(BytesUtil.utf8ToByteString(key), BytesUtil.utf8ToByteString(value), NormalStore.expireAt(ttl)));
+    }
+
+    public void rm(byte[] key) {
+        commands.add(new RmCommand(BytesUtil.toByteString(key)));
+    }
+
+    public void rm(String key) {
+        commands.add(new RmCommand(BytesUtil.utf8ToByteString(key)));
+    }
+
+    /**
+     * @描述 合并，没注册的合并运算在加入时就抛IllegalArgumentException，不影响这一批里的其他命令
+     * @param key
+     * @param operator
+     * @param operand
+     * @return void
+     * @Author taoxier
+     */
+    public void merge(byte[] key, String operator, byte[] operand) {
+        MergeOperators.get(operator);
+        commands.add(new MergeCommand(BytesUtil.toByteString(key), operator, BytesUtil.toByteString(operand)));
+    }
+
+    public void merge(String key, String operator, String operand) {
+        MergeOperators.get(operator);
+        commands.add(new MergeCommand(BytesUtil.utf8ToByteString(key), operator, BytesUtil.utf8ToByteString(operand)));
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+}
@@ -0,0 +1,176 @@
+package service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.LoggerUtil;
+import utils.RateLimiter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/18 19:50
+ * @注释 写入流控
+ * 根据后台积压（不可变内存表个数、0层表个数、待压缩字节数）决定前台写入的状态：
+ * 正常时不限制；积压超过减速阈值时按delayedWriteRate限速，积压越多速率越低，每多一级减半；
+ * 超过停止阈值时写入阻塞，直到后台持久化或压缩把积压降下来。
+ * 积压情况在每次发布新版本时更新，写线程在拿写锁之前调用delay，阻塞期间不占写锁，后台任务可以正常发布版本
+ */
+public class WriteController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteController.class);
+    private static final String logFormat = "[WriteController][{}]: {}";
+
+    /**
+     * 最多减速几级，再往上就是停止
+     */
+    private static final int MAX_SLOWDOWN_LEVEL = 6;
+
+    /**
+     * 待压缩字节数在减速区间内每多这么大的比例升一级
+     */
+    private static final int PENDING_BYTES_LEVELS = 4;
+
+    private final int maxImmutableMemTables;
+
+    private final int level0SlowdownTrigger;
+
+    private final int level0StopTrigger;
+
+    private final long softPendingCompactionBytes;
+
+    private final long hardPendingCompactionBytes;
+
+    private final long delayedWriteRate;
+
+    /**
+     * 减速时前台写入的限速器
+     */
+    private final RateLimiter delayLimiter;
+
+    /**
+     * 当前减速级别，0表示正常
+     */
+    private int slowdownLevel;
+
+    /**
+     * 是否停止写入
+     */
+    private boolean stopped;
+
+    /**
+     * 统计：被减速的写入次数、被阻塞的写入次数、阻塞的总时长（毫秒）
+     */
+    private final AtomicLong delayedWrites;
+    private final AtomicLong stoppedWrites;
+    private final AtomicLong stallMillis;
+
+    public WriteController(StoreOptions options) {
+        this.maxImmutableMemTables = options.getMaxImmutableMemTables();
+        //阈值不能低于压缩阈值，否则0层表达不到压缩条件，写入一直被限制
+        this.level0StopTrigger = Math.max(options.getLevel0StopTrigger(), options.getCompressionThreshold() + 1);
+        this.level0SlowdownTrigger = Math.min(Math.max(options.getLevel0SlowdownTrigger(),
+                options.getCompressionThreshold() + 1), level0StopTrigger);
+        this.softPendingCompactionBytes = options.getSoftPendingCompactionBytes();
+        this.hardPendingCompactionBytes = options.getHardPendingCompactionBytes();
+        this.delayedWriteRate = options.getDelayedWriteRate();
+        this.delayLimiter = new RateLimiter(delayedWriteRate);
+        this.delayedWrites = new AtomicLong();
+        this.stoppedWrites = new AtomicLong();
+        this.stallMillis = new AtomicLong();
+    }
+
+    /**
+     * @描述 更新后台积压情况，重新计算写入状态，解除阻塞
+     * @param immutableMemTables 不可变内存表个数
+     * @param level0 0层表个数
+     * @param pendingCompactionBytes 待压缩字节数
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void update(int immutableMemTables, int level0, long pendingCompactionBytes) {
+        boolean stop = immutableMemTables >= maxImmutableMemTables
+                || level0 >= level0StopTrigger
+                || (hardPendingCompactionBytes > 0 && pendingCompactionBytes >= hardPendingCompactionBytes);
+        int level = 0;
+        if (!stop) {
+            if (maxImmutableMemTables > 1 && immutableMemTables >= maxImmutableMemTables - 1) {
+                level = 1;
+            }
+            if (level0 >= level0SlowdownTrigger) {
+                //每多一个0层表升一级
+                level = Math.max(level, 1 + level0 - level0SlowdownTrigger);
+            }
+            if (softPendingCompactionBytes > 0 && pendingCompactionBytes >= softPendingCompactionBytes) {
+                int pendingLevel = 1;
+                if (hardPendingCompactionBytes > softPendingCompactionBytes) {
+                    pendingLevel += (int) (PENDING_BYTES_LEVELS * (pendingCompactionBytes - softPendingCompactionBytes)
+                            / (hardPendingCompactionBytes - softPendingCompactionBytes));
+                }
+                level = Math.max(level, pendingLevel);
+            }
+            level = Math.min(level, MAX_SLOWDOWN_LEVEL);
+        }
+        if (stop != stopped || level != slowdownLevel) {
+            LoggerUtil.info(LOGGER, logFormat, "update", "stop=" + stop + ",slowdown=" + level
+                    + ",immutable=" + immutableMemTables + ",level0=" + level0 + ",pendingBytes=" + pendingCompactionBytes);
+        }
+        stopped = stop;
+        slowdownLevel = level;
+        if (level > 0) {
+            delayLimiter.setBytesPerSecond(Math.max(1, delayedWriteRate >> (level - 1)));
+        }
+        notifyAll();
+    }
+
+    /**
+     * @描述 写入前调用：停止时阻塞到恢复，减速时按当前速率等待
+     * @param bytes 本次写入的字节数
+     * @return void
+     * @Author taoxier
+     */
+    public void delay(long bytes) {
+        boolean slowdown;
+        synchronized (this) {
+            if (stopped) {
+                stoppedWrites.incrementAndGet();
+                long start = System.currentTimeMillis();
+                try {
+                    while (stopped) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } finally {
+                    stallMillis.addAndGet(System.currentTimeMillis() - start);
+                }
+            }
+            slowdown = slowdownLevel > 0;
+        }
+        if (slowdown) {
+            delayedWrites.incrementAndGet();
+            delayLimiter.acquire(bytes);
+        }
+    }
+
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    public synchronized int getSlowdownLevel() {
+        return slowdownLevel;
+    }
+
+    public long getDelayedWrites() {
+        return delayedWrites.get();
+    }
+
+    public long getStoppedWrites() {
+        return stoppedWrites.get();
+    }
+
+    public long getStallMillis() {
+        return stallMillis.get();
+    }
+}
@@ -0,0 +1,74 @@
+package utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/14 21:00
+ * @注释 堆外缓冲区工具
+ * 直接缓冲区默认要等GC回收对象后才释放堆外内存，这里通过反射主动释放：
+ * Java 9及以上用Unsafe.invokeCleaner，Java 8用DirectBuffer.cleaner().clean()，都不可用时交给GC
+ */
+public class ByteBufferUtil {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ByteBufferUtil.class);
+
+    /**
+     * Unsafe实例，Java 9及以上可用
+     */
+    private static final Object UNSAFE;
+
+    /**
+     * Unsafe.invokeCleaner(ByteBuffer)
+     */
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Throwable t) {
+            //Java 8没有invokeCleaner，释放时走cleaner()
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * @描述 立即释放直接缓冲区的堆外内存，释放后不能再访问该缓冲区
+     * @param buffer
+     * @return void
+     * @Author taoxier
+     */
+    public static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable t) {
+            //释放失败不影响正确性，等GC回收
+            LoggerUtil.debug(LOGGER, "[ByteBufferUtil][free]: {}", t.toString());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package utils;
+
+import model.command.Command;
+import model.command.RangeRmCommand;
+import model.command.RmCommand;
+import model.command.SetCommand;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/15 19:30
+ * @注释 字节串工具
+ * 存储内部的key和value都是字节串：每个字节对应一个0~255的字符（ISO-8859-1），
+ * 这样String.compareTo的结果就是字节的无符号字典序，内存表、稀疏索引和压缩都不用改比较方式，
+ * byte[]和字节串之间只是逐字节拷贝，没有编解码；String接口的key和value按UTF-8转成字节串
+ */
+public class BytesUtil {
+
+    /**
+     * 字节的无符号字典序
+     */
+    public static final Comparator<byte[]> UNSIGNED_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            return BytesUtil.compare(o1, o2);
+        }
+    };
+
+    /**
+     * @描述 按无符号字典序比较
+     * @param a
+     * @param b
+     * @return int
+     * @Author taoxier
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @描述 byte[]转字节串
+     * @param bytes
+     * @return String
+     * @Author taoxier
+     */
+    public static String toByteString(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @描述 ByteBuffer剩余部分转字节串，不移动position
+     * @param buffer
+     * @return String
+     * @Author taoxier
+     */
+    public static String toByteString(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return toByteString(bytes);
+    }
+
+    /**
+     * @描述 字节串转byte[]
+     * @param byteString
+     * @return byte[]
+     * @Author taoxier
+     */
+    public static byte[] toBytes(String byteString) {
+        return byteString == null ? null : byteString.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @描述 普通字符串按UTF-8转字节串
+     * @param s
+     * @return String
+     * @Author taoxier
+     */
+    public static String utf8ToByteString(String s) {
+        return s == null ? null : toByteString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @描述 字节串按UTF-8还原成普通字符串
+     * @param byteString
+     * @return String
+     * @Author taoxier
+     */
+    public static String byteStringToUtf8(String byteString) {
+        return byteString == null ? null : new String(toBytes(byteString), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @描述 旧格式的命令里key和value是普通字符串，转成字节串
+     * @param command
+     * @return Command
+     * @Author taoxier
+     */
+    public static Command fromLegacy(Command command) {
+        if (command instanceof SetCommand) {
+            SetCommand set = (SetCommand) command;
+            set.setKey(utf8ToByteString(set.getKey()));
+            set.setValue(utf8ToByteString(set.getValue()));
+        } else if (command instanceof RangeRmCommand) {
+            RangeRmCommand rangeRm = (RangeRmCommand) command;
+            rangeRm.setKey(utf8ToByteString(rangeRm.getKey()));
+            rangeRm.setEndKey(utf8ToByteString(rangeRm.getEndKey()));
+        } else if (command instanceof RmCommand) {
+            RmCommand rm = (RmCommand) command;
+            rm.setKey(utf8ToByteString(rm.getKey()));
+        }
+        return command;
+    }
+}
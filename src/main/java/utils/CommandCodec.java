@@ -0,0 +1,302 @@
+package utils;
+
+import model.command.Command;
+import model.command.MergeCommand;
+import model.command.RangeRmCommand;
+import model.command.RmCommand;
+import model.command.SetCommand;
+import model.vlog.ValuePointer;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/16 20:10
+ * @注释 命令的二进制编解码，替代写入路径上的fastjson
+ * 一条记录：1字节类型 + 4字节key长度 + key + 8字节序列号，之后按类型：
+ * SET：8字节过期时间 + 4字节value长度（-1表示null） + value；RANGE_RM：4字节endKey长度 + endKey；RM没有后续字段；
+ * SET_POINTER是value在值日志里的SET，只出现在ssTable里：8字节过期时间 + 8字节文件编号 + 8字节位置 + 4字节长度。
+ * MERGE：4字节操作数个数 + 每个操作数8字节写入时间 + 合并运算名字和操作数，都是4字节长度 + 字节串。
+ * key和value是字节串（见BytesUtil），每个字符写一个字节。
+ * 编码写进调用方给的缓冲区或线程复用的缓冲区，不分配中间对象；key放在最前面，查找时可以不解码直接比较
+ */
+public class CommandCodec {
+
+    public static final byte SET = 0;
+    public static final byte RM = 1;
+    public static final byte RANGE_RM = 2;
+    public static final byte SET_POINTER = 3;
+    public static final byte MERGE = 4;
+
+    /**
+     * 记录中key的位置：类型之后是key长度
+     */
+    private static final int KEY_LEN_OFFSET = 1;
+    private static final int KEY_OFFSET = 5;
+    private static final int NULL_LEN = -1;
+
+    /**
+     * 每个线程复用的编码缓冲区，放不下时换一块更大的
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    /**
+     * @描述 编码后的字节数
+     * @param command
+     * @return int
+     * @Author taoxier
+     */
+    public static int encodedSize(Command command) {
+        int size = KEY_OFFSET + command.getKey().length() + 8;
+        if (command instanceof SetCommand) {
+            SetCommand set = (SetCommand) command;
+            if (set.getValuePointer() != null) {
+                return size + 8 + 8 + 8 + 4;
+            }
+            size += 8 + 4 + (set.getValue() == null ? 0 : set.getValue().length());
+        } else if (command instanceof RangeRmCommand) {
+            size += 4 + ((RangeRmCommand) command).getEndKey().length();
+        } else if (command instanceof MergeCommand) {
+            size += operandsSize((MergeCommand) command);
+        }
+        return size;
+    }
+
+    private static int operandsSize(MergeCommand merge) {
+        int size = 4;
+        for (MergeCommand.Operand operand : merge.getOperands()) {
+            size += 8 + 4 + operand.getOperator().length() + 4 + operand.getValue().length();
+        }
+        return size;
+    }
+
+    /**
+     * @描述 从缓冲区当前位置写一条记录，调用方保证剩余空间不小于encodedSize
+     * @param command
+     * @param buffer
+     * @return void
+     * @Author taoxier
+     */
+    public static void encode(Command command, ByteBuffer buffer) {
+        if (command instanceof SetCommand) {
+            buffer.put(((SetCommand) command).getValuePointer() != null ? SET_POINTER : SET);
+        } else if (command instanceof RangeRmCommand) {
+            buffer.put(RANGE_RM);
+        } else if (command instanceof RmCommand) {
+            buffer.put(RM);
+        } else if (command instanceof MergeCommand) {
+            buffer.put(MERGE);
+        } else {
+            throw new IllegalArgumentException("-[异常抛出]：未知命令 " + command);
+        }
+        putByteString(buffer, command.getKey());
+        buffer.putLong(command.getSeq());
+        if (command instanceof SetCommand) {
+            SetCommand set = (SetCommand) command;
+            buffer.putLong(set.getExpireAt());
+            ValuePointer pointer = set.getValuePointer();
+            if (pointer != null) {
+                buffer.putLong(pointer.getFileNumber());
+                buffer.putLong(pointer.getOffset());
+                buffer.putInt(pointer.getLen());
+            } else {
+                putByteString(buffer, set.getValue());
+            }
+        } else if (command instanceof RangeRmCommand) {
+            putByteString(buffer, ((RangeRmCommand) command).getEndKey());
+        } else if (command instanceof MergeCommand) {
+            putOperands(buffer, (MergeCommand) command);
+        }
+    }
+
+    private static void putOperands(ByteBuffer buffer, MergeCommand merge) {
+        buffer.putInt(merge.getOperands().size());
+        for (MergeCommand.Operand operand : merge.getOperands()) {
+            buffer.putLong(operand.getTimestamp());
+            putByteString(buffer, operand.getOperator());
+            putByteString(buffer, operand.getValue());
+        }
+    }
+
+    private static List<MergeCommand.Operand> getOperands(ByteBuffer buffer, int offset) {
+        int count = buffer.getInt(offset);
+        int p = offset + 4;
+        List<MergeCommand.Operand> operands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long timestamp = buffer.getLong(p);
+            p += 8;
+            int operatorLen = buffer.getInt(p);
+            String operator = getByteString(buffer, p + 4, operatorLen);
+            p += 4 + operatorLen;
+            int valueLen = buffer.getInt(p);
+            String value = getByteString(buffer, p + 4, valueLen);
+            p += 4 + valueLen;
+            operands.add(new MergeCommand.Operand(operator, value, timestamp));
+        }
+        return operands;
+    }
+
+    /**
+     * @描述 合并命令的操作数编码成一个字节串，内存表里存成value
+     * @param merge
+     * @return String
+     * @Author taoxier
+     */
+    public static String operandsToByteString(MergeCommand merge) {
+        ByteBuffer buffer = ByteBuffer.allocate(operandsSize(merge));
+        putOperands(buffer, merge);
+        return new String(buffer.array(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @描述 operandsToByteString的逆过程
+     * @param operands
+     * @return List<MergeCommand.Operand>
+     * @Author taoxier
+     */
+    public static List<MergeCommand.Operand> operandsFromByteString(String operands) {
+        return getOperands(ByteBuffer.wrap(operands.getBytes(StandardCharsets.ISO_8859_1)), 0);
+    }
+
+    /**
+     * @描述 编码成4字节长度 + 记录，写进线程复用的缓冲区，返回的缓冲区在本线程下次编码前有效
+     * @param command
+     * @return ByteBuffer 可读部分就是编码结果，底层数组从0开始
+     * @Author taoxier
+     */
+    public static ByteBuffer encodeWithLength(Command command) {
+        int size = encodedSize(command);
+        ByteBuffer buffer = BUFFER.get();
+        if (buffer.capacity() < size + 4) {
+            buffer = ByteBuffer.allocate(Math.max(size + 4, buffer.capacity() * 2));
+            BUFFER.set(buffer);
+        }
+        ((Buffer) buffer).clear();
+        buffer.putInt(size);
+        encode(command, buffer);
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    /**
+     * @描述 解码offset处的一条记录
+     * @param buffer
+     * @param offset
+     * @return Command
+     * @Author taoxier
+     */
+    public static Command decode(ByteBuffer buffer, int offset) {
+        byte type = buffer.get(offset);
+        int p = offset + KEY_LEN_OFFSET;
+        int keyLen = buffer.getInt(p);
+        p += 4;
+        String key = getByteString(buffer, p, keyLen);
+        p += keyLen;
+        long seq = buffer.getLong(p);
+        p += 8;
+        Command command;
+        if (type == SET) {
+            long expireAt = buffer.getLong(p);
+            p += 8;
+            int valueLen = buffer.getInt(p);
+            p += 4;
+            String value = valueLen == NULL_LEN ? null : getByteString(buffer, p, valueLen);
+            command = new SetCommand(key, value, expireAt);
+        } else if (type == SET_POINTER) {
+            SetCommand set = new SetCommand(key, null, buffer.getLong(p));
+            p += 8;
+            set.setValuePointer(new ValuePointer(buffer.getLong(p), buffer.getLong(p + 8), buffer.getInt(p + 16)));
+            command = set;
+        } else if (type == RM) {
+            command = new RmCommand(key);
+        } else if (type == RANGE_RM) {
+            int endLen = buffer.getInt(p);
+            p += 4;
+            command = new RangeRmCommand(key, getByteString(buffer, p, endLen));
+        } else if (type == MERGE) {
+            command = new MergeCommand(key, getOperands(buffer, p));
+        } else {
+            throw new IllegalStateException("-[异常抛出]：未知命令类型 " + type);
+        }
+        command.setSeq(seq);
+        return command;
+    }
+
+    /**
+     * @描述 不解码，直接比较offset处记录的key和key，按字节无符号比较
+     * @param buffer
+     * @param offset
+     * @param key
+     * @return int
+     * @Author taoxier
+     */
+    public static int compareKey(ByteBuffer buffer, int offset, String key) {
+        return compareByteString(buffer, offset + KEY_LEN_OFFSET, key);
+    }
+
+    /**
+     * @描述 不解码，直接比较offset处4字节长度 + 字节串和s，按字节无符号比较
+     * @param buffer
+     * @param offset
+     * @param s
+     * @return int
+     * @Author taoxier
+     */
+    public static int compareByteString(ByteBuffer buffer, int offset, String s) {
+        int len = buffer.getInt(offset);
+        int p = offset + 4;
+        int n = Math.min(len, s.length());
+        for (int i = 0; i < n; i++) {
+            int c = (buffer.get(p + i) & 0xff) - s.charAt(i);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return len - s.length();
+    }
+
+    /**
+     * @描述 写4字节长度 + 字节串，null写长度-1
+     * @param buffer
+     * @param s
+     * @return void
+     * @Author taoxier
+     */
+    public static void putByteString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putInt(NULL_LEN);
+            return;
+        }
+        buffer.putInt(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c > 0xff) {
+                throw new IllegalArgumentException("-[异常抛出]：不是字节串 " + s);
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    /**
+     * @描述 读offset处长度为len的字节串
+     * @param buffer
+     * @param offset
+     * @param len
+     * @return String
+     * @Author taoxier
+     */
+    public static String getByteString(ByteBuffer buffer, int offset, int len) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, len, StandardCharsets.ISO_8859_1);
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
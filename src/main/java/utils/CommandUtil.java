@@ -10,18 +10,33 @@ package utils;
 import com.alibaba.fastjson.JSONObject;
 import model.command.Command;
 import model.command.CommandTypeEnum;
+import model.command.RangeRmCommand;
 import model.command.RmCommand;
 import model.command.SetCommand;
 
 public class CommandUtil {
     public static final String TYPE = "type";
+    public static final String SEQ = "seq";
+    public static final String EXPIRE_AT = "expireAt";
+    public static final String KEY = "key";
+    public static final String END_KEY = "endKey";
 
     public static Command jsonToCommand(JSONObject value){
+        Command command = null;
         if (value.getString(TYPE).equals(CommandTypeEnum.SET.name())) {
-            return value.toJavaObject(SetCommand.class);
+            command = value.toJavaObject(SetCommand.class);
         } else if (value.getString(TYPE).equals(CommandTypeEnum.RM.name())) {
-            return value.toJavaObject(RmCommand.class);
+            command = value.toJavaObject(RmCommand.class);
+        } else if (value.getString(TYPE).equals(CommandTypeEnum.RANGE_RM.name())) {
+            command = new RangeRmCommand(value.getString(KEY), value.getString(END_KEY));
         }
-        return null;
+        //命令类没有无参构造，fastjson只会填构造参数，序列号单独设置；旧数据没有序列号，按0处理
+        if (command != null) {
+            command.setSeq(value.getLongValue(SEQ));
+        }
+        if (command instanceof SetCommand) {
+            ((SetCommand) command).setExpireAt(value.getLongValue(EXPIRE_AT));
+        }
+        return command;
     }
 }
@@ -0,0 +1,134 @@
+package utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/21 20:10
+ * @注释 直接I/O工具，绕过页缓存写文件
+ * 用到的接口都是Java 10才有的（ExtendedOpenOption.DIRECT、FileStore.getBlockSize、ByteBuffer.alignedSlice），
+ * 项目按Java 8编译，这里通过反射取，取不到或者文件系统不支持时返回null，由调用方退回普通写
+ */
+public class DirectIoUtil {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectIoUtil.class);
+
+    /**
+     * 对齐的最小字节数，文件系统块大小更大时按块大小对齐
+     */
+    public static final int MIN_ALIGNMENT = 4096;
+
+    /**
+     * com.sun.nio.file.ExtendedOpenOption.DIRECT
+     */
+    private static final OpenOption DIRECT;
+
+    /**
+     * FileStore.getBlockSize()
+     */
+    private static final Method GET_BLOCK_SIZE;
+
+    /**
+     * ByteBuffer.alignedSlice(int)
+     */
+    private static final Method ALIGNED_SLICE;
+
+    static {
+        OpenOption direct = null;
+        Method getBlockSize = null;
+        Method alignedSlice = null;
+        try {
+            Class<?> optionClass = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            direct = (OpenOption) optionClass.getField("DIRECT").get(null);
+            getBlockSize = FileStore.class.getMethod("getBlockSize");
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (Throwable t) {
+            //Java 10以下没有直接I/O
+            direct = null;
+        }
+        DIRECT = direct;
+        GET_BLOCK_SIZE = getBlockSize;
+        ALIGNED_SLICE = alignedSlice;
+    }
+
+    /**
+     * @描述 当前JDK是否支持直接I/O
+     * @param
+     * @return boolean
+     * @Author taoxier
+     */
+    public static boolean isSupported() {
+        return DIRECT != null;
+    }
+
+    /**
+     * @描述 文件所在文件系统要求的对齐字节数
+     * @param path
+     * @return int
+     * @Author taoxier
+     */
+    public static int alignment(Path path) {
+        try {
+            Path dir = path.toAbsolutePath().getParent();
+            FileStore store = Files.getFileStore(dir);
+            long blockSize = (Long) GET_BLOCK_SIZE.invoke(store);
+            return (int) Math.max(MIN_ALIGNMENT, blockSize);
+        } catch (Throwable t) {
+            return MIN_ALIGNMENT;
+        }
+    }
+
+    /**
+     * @描述 以直接I/O方式打开文件写，不支持时返回null
+     * @param path
+     * @return FileChannel
+     * @Author taoxier
+     */
+    public static FileChannel openForWrite(Path path) {
+        if (DIRECT == null) {
+            return null;
+        }
+        try {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING, DIRECT);
+        } catch (IOException | UnsupportedOperationException e) {
+            //tmpfs等文件系统不支持O_DIRECT
+            LoggerUtil.debug(LOGGER, "[DirectIoUtil][openForWrite]: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @描述 分配起始地址按alignment对齐的直接缓冲区，容量是alignment的整数倍
+     * @param capacity
+     * @param alignment
+     * @return ByteBuffer 不支持时返回null
+     * @Author taoxier
+     */
+    public static ByteBuffer allocateAligned(int capacity, int alignment) {
+        if (ALIGNED_SLICE == null) {
+            return null;
+        }
+        try {
+            int size = (capacity + alignment - 1) / alignment * alignment;
+            ByteBuffer raw = ByteBuffer.allocateDirect(size + alignment);
+            ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(raw, alignment);
+            ((Buffer) aligned).limit(size);
+            return aligned.slice();
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author taoxier
+ * @Date 2024/8/18 19:20
+ * @注释 令牌桶限速器，按字节限速
+ * 令牌按速率持续补充，最多攒100毫秒的量；取令牌时可以透支，透支的部分由调用方按速率睡眠补上，
+ * 后来的调用方要先等前面的透支还完，所以总速率不会超过设定值。速率可以随时调整，不大于0表示不限速
+ */
+public class RateLimiter {
+
+    /**
+     * 最多攒多长时间的令牌，纳秒
+     */
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * 速率，字节每秒
+     */
+    private volatile long bytesPerSecond;
+
+    /**
+     * 当前可用的令牌，负数表示透支
+     */
+    private double available;
+
+    /**
+     * 上次补充令牌的时间
+     */
+    private long lastRefill;
+
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @描述 取bytes个令牌，不够时睡眠到透支还完
+     * @param bytes
+     * @return void
+     * @Author taoxier
+     */
+    public void acquire(long bytes) {
+        long waitNanos;
+        synchronized (this) {
+            long rate = bytesPerSecond;
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            double burst = rate * (MAX_BURST_NANOS / 1e9);
+            available = Math.min(burst, available + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            available -= bytes;
+            waitNanos = available >= 0 ? 0 : (long) (-available * 1e9 / rate);
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @描述 调整速率，不大于0表示不限速
+     * @param bytesPerSecond
+     * @return void
+     * @Author taoxier
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        if (this.bytesPerSecond != bytesPerSecond) {
+            //之前的透支按旧速率已经算进等待时间，换速率时清零
+            available = 0;
+            lastRefill = System.nanoTime();
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}